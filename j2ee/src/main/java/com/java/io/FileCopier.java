@@ -0,0 +1,261 @@
+package com.java.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.nio.ByteBufferPool;
+import com.nio.DirectBuffers;
+
+/**
+ * FileCopier：文件复制，可选多种策略，默认按文件大小自动选择
+ *
+ * 	策略
+ * 		HEAP_BUFFER		InputStream/OutputStream + 复用的堆内byte[]，每次读写一块而不是一个字节
+ * 		DIRECT_BUFFER	FileChannel + 池化的直接缓冲区，少一次堆内外之间的复制
+ * 		TRANSFER		FileChannel.transferTo()，由操作系统在内核中复制（Linux为sendfile/copy_file_range）
+ * 		MAPPED			分段map()源文件，映射区直接write()到目标通道，用完立即解除映射
+ * 		PARALLEL		文件按线程数切分，每个线程用read(ByteBuffer, position)/write(ByteBuffer, position)复制自己的区间
+ * 						每个线程各自打开通道，避免某些系统（如Windows）上同一通道的定位读写互斥（见FileChannel_.test7）
+ *
+ * 	自动选择：小于1M用HEAP_BUFFER，小于1G用TRANSFER，更大的文件用PARALLEL
+ *
+ * 	目标文件存在则覆盖
+ *
+ * @author nerv
+ *
+ */
+public class FileCopier {
+
+	public enum Strategy {
+		HEAP_BUFFER, DIRECT_BUFFER, TRANSFER, MAPPED, PARALLEL
+	}
+
+	/** 默认缓冲区大小 256K */
+	public static final int DEFAULT_BUFFER_SIZE = 256 << 10;
+	/** MAPPED每次映射的大小 */
+	private static final long MAP_WINDOW = 64 << 20;
+	private static final long SMALL_FILE = 1 << 20;
+	private static final long LARGE_FILE = 1L << 30;
+
+	/** 流复制复用的堆内缓冲区，每个线程一个 */
+	private static final ThreadLocal<byte[]> STREAM_BUFFER = ThreadLocal.withInitial(() -> new byte[64 << 10]);
+	private static final ByteBufferPool POOL = new ByteBufferPool();
+
+	private final int bufferSize;
+	private final int threads;
+	private final ThreadLocal<byte[]> heapBuffer;
+
+	public FileCopier() {
+		this(DEFAULT_BUFFER_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param bufferSize	缓冲区大小
+	 * @param threads		PARALLEL使用的线程数
+	 */
+	public FileCopier(int bufferSize, int threads) {
+		if (bufferSize <= 0 || threads <= 0) {
+			throw new IllegalArgumentException("bufferSize=" + bufferSize + "，threads=" + threads);
+		}
+		this.bufferSize = bufferSize;
+		this.threads = threads;
+		this.heapBuffer = ThreadLocal.withInitial(() -> new byte[bufferSize]);
+	}
+
+	/**
+	 * 按文件大小自动选择策略
+	 */
+	public static Strategy choose(long size) {
+		if (size < SMALL_FILE) {
+			return Strategy.HEAP_BUFFER;
+		}
+		return size < LARGE_FILE ? Strategy.TRANSFER : Strategy.PARALLEL;
+	}
+
+	/**
+	 * 复制文件，按文件大小自动选择策略
+	 * @return 复制的字节数
+	 */
+	public long copy(Path src, Path dst) throws IOException {
+		return copy(src, dst, choose(Files.size(src)));
+	}
+
+	/**
+	 * 以指定策略复制文件
+	 * @return 复制的字节数
+	 */
+	public long copy(Path src, Path dst, Strategy strategy) throws IOException {
+		switch (strategy) {
+		case HEAP_BUFFER:
+			return copyHeap(src, dst);
+		case DIRECT_BUFFER:
+			return copyDirect(src, dst);
+		case TRANSFER:
+			return copyTransfer(src, dst);
+		case MAPPED:
+			return copyMapped(src, dst);
+		case PARALLEL:
+			return copyParallel(src, dst);
+		default:
+			throw new IllegalArgumentException(String.valueOf(strategy));
+		}
+	}
+
+	/**
+	 * 流之间的复制，使用线程复用的64K缓冲区，不关闭流
+	 * @return 复制的字节数
+	 */
+	public static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = STREAM_BUFFER.get();
+		long total = 0;
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+			total += n;
+		}
+		return total;
+	}
+
+	private long copyHeap(Path src, Path dst) throws IOException {
+		try (InputStream in = Files.newInputStream(src); OutputStream out = Files.newOutputStream(dst)) {
+			byte[] buffer = heapBuffer.get();
+			long total = 0;
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+				total += n;
+			}
+			return total;
+		}
+	}
+
+	private long copyDirect(Path src, Path dst) throws IOException {
+		try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+				FileChannel out = openTarget(dst)) {
+			ByteBuffer buffer = POOL.acquire(bufferSize);
+			try {
+				long total = 0;
+				while (in.read(buffer) != -1) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						total += out.write(buffer);
+					}
+					buffer.clear();
+				}
+				return total;
+			} finally {
+				POOL.release(buffer);
+			}
+		}
+	}
+
+	private long copyTransfer(Path src, Path dst) throws IOException {
+		try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+				FileChannel out = openTarget(dst)) {
+			long size = in.size(), position = 0;
+			// transferTo()一次传输的字节数可能少于count（如Linux单次最多2G），需循环
+			while (position < size) {
+				long n = in.transferTo(position, size - position, out);
+				if (n == 0 && position >= in.size()) {
+					// 源文件在复制过程中被截断：超出末尾时transferTo()总是返回0，只复制到新的末尾
+					break;
+				}
+				position += n;
+			}
+			return position;
+		}
+	}
+
+	private long copyMapped(Path src, Path dst) throws IOException {
+		try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+				FileChannel out = openTarget(dst)) {
+			long size = in.size();
+			for (long position = 0; position < size; position += MAP_WINDOW) {
+				MappedByteBuffer window = in.map(MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+				try {
+					while (window.hasRemaining()) {
+						out.write(window);
+					}
+				} finally {
+					DirectBuffers.free(window);
+				}
+			}
+			return size;
+		}
+	}
+
+	private long copyParallel(Path src, Path dst) throws IOException {
+		long size = Files.size(src);
+		// 先创建（或清空）目标文件，各线程再以WRITE打开并定位写入
+		openTarget(dst).close();
+		long chunk = Math.max(bufferSize, (size + threads - 1) / threads);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Long>> futures = new ArrayList<>();
+			for (long start = 0; start < size; start += chunk) {
+				long from = start, to = Math.min(size, start + chunk);
+				futures.add(pool.submit(() -> copyRange(src, dst, from, to)));
+			}
+			long total = 0;
+			for (Future<Long> future : futures) {
+				total += future.get();
+			}
+			return total;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("复制被中断", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * 复制[from, to)区间
+	 */
+	private long copyRange(Path src, Path dst, long from, long to) throws IOException {
+		try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(dst, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = POOL.acquire(bufferSize);
+			try {
+				long position = from;
+				while (position < to) {
+					buffer.clear();
+					buffer.limit((int) Math.min(buffer.capacity(), to - position));
+					int n = in.read(buffer, position);
+					if (n == -1) {
+						break;	// 源文件在复制过程中被截短
+					}
+					buffer.flip();
+					long at = position;
+					while (buffer.hasRemaining()) {
+						at += out.write(buffer, at);
+					}
+					position += n;
+				}
+				return position - from;
+			} finally {
+				POOL.release(buffer);
+			}
+		}
+	}
+
+	private static FileChannel openTarget(Path dst) throws IOException {
+		return FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+}
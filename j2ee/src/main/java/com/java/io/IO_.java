@@ -20,6 +20,14 @@ import java.io.Reader;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -84,6 +92,8 @@ public class IO_ implements Serializable {
 	 * 		① 使用输入文件的字符集解码，安全
 	 * 		② 不涉及字符集，安全
 	 * 		③ 如果输入输出文件的字符集不同，【乱码】
+	 * 
+	 * 	available()只是不阻塞可读的字节数估计值，不能据此一次读完整个文件；按块循环读写，见FileCopier.copy(InputStream, OutputStream)
 	 * @throws IOException 
 	 */
 	@Test
@@ -92,11 +102,7 @@ public class IO_ implements Serializable {
 			InputStream pis = new FileInputStream(PATH_IN);
 			OutputStream pos = new FileOutputStream(PATH_OUT, true)	// 追加
 		) {
-			byte[] b = new byte[pis.available()];
-			pis.read(b);
-			// 如果输入文件不是utf-8，则此处乱码，说明系统并非以默认的utf-8解码
-			System.out.println(new String(b, "utf-8"));
-			pos.write(b);
+			System.out.println("复制" + FileCopier.copy(pis, pos) + "字节");
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -178,6 +184,8 @@ public class IO_ implements Serializable {
 	 * 	BufferedOutputStream
 	 * 		flush()			将缓冲区byte[]内容以out.write()方式输出并清空
 	 * 						OutputStream仅缓冲流实现了此方法，其它输出流都是空方法
+	 * 
+	 * 	复制文件不要用readLine()：每行创建一个String，且原换行符被统一替换为"\r\n"；按char[]块读写即可
 	 * @throws IOException 
 	 */
 	@Test
@@ -186,9 +194,10 @@ public class IO_ implements Serializable {
 			BufferedReader br = new BufferedReader(new FileReader(PATH_IN));
 			BufferedWriter bw = new BufferedWriter(new FileWriter(PATH_OUT, true))	// 追加
 		){
-			String str = null;
-			while((str = br.readLine()) != null)
-				bw.write(str + "\r\n");
+			char[] data = new char[8192];
+			int count;
+			while((count = br.read(data)) != -1)
+				bw.write(data, 0, count);
 			bw.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -201,17 +210,18 @@ public class IO_ implements Serializable {
 	 * 数据流读写
 	 * 	DataInputStream
 	 * 		read()			阻塞，读取并返回下一个字节数据，流结尾则返回-1
+	 * 		read(byte[])	阻塞，读取多个字节，返回读取的字节数，流结尾则返回-1
 	 * DataOutputStream
 	 * 		write(int)		写入一字节数据，计数器+1
+	 * 		write(byte[], off, len)	写入多个字节
+	 * 	逐字节read()/write(int)每个字节都是一次系统调用，复制时应按块读写
 	 */
 	public void copyImgData() throws IOException{
 		try (
 			DataInputStream dis = new DataInputStream(new FileInputStream(PATH_IN));
 			DataOutputStream dos = new DataOutputStream(new FileOutputStream(PATH_OUT, true));	// 追加
 		){
-			int result = 0;
-			while((result = dis.read())!=-1)
-				dos.write(result);
+			FileCopier.copy(dis, dos);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -269,11 +279,9 @@ public class IO_ implements Serializable {
 		//2.文件则将其内容写入压缩文件内
 		} else{
 			zos.putNextEntry(new ZipEntry(zipPath + file.getName()));
-			FileInputStream fis = new FileInputStream(inPath);
-			int result = 0;
-			while((result = fis.read()) != -1)
-				zos.write(result);
-			fis.close();
+			try (FileInputStream fis = new FileInputStream(inPath)) {
+				FileCopier.copy(fis, zos);
+			}
 		}
 	}
 	/**
@@ -301,25 +309,206 @@ public class IO_ implements Serializable {
 			return;
 		}
 		ZipInputStream zis = new ZipInputStream(new FileInputStream(inFile));
-		OutputStream fos = null;
 		ZipEntry entry = null;
 		
 		while((entry = zis.getNextEntry()) != null){
 			File outFile = new File(outDir + File.separator + entry.getName());
 			if(!entry.isDirectory()){
 				outFile.getParentFile().mkdirs();	// 创建输出路径中的目录
-				fos = new FileOutputStream(outFile);
-				int result = 0;
-				while((result = zis.read())!= -1)
-					fos.write(result);
+				// 每个条目的输出流都要关闭，zis读到当前条目末尾返回-1
+				try (OutputStream fos = new FileOutputStream(outFile)) {
+					FileCopier.copy(zis, fos);
+				}
 			} else {
 				outFile.mkdirs();
 			}
 		}
-		fos.close();
 		zis.close();
 	}
 	
+	/**
+	 * FileCopier各策略复制耗时矩阵
+	 * 		行：文件大小；列：策略；AUTO为按大小自动选择的策略
+	 * 		每个单元格复制3次取最短时间（第一次含页缓存预热）
+	 * 	文件大小通过-Dbench.sizes=逗号分隔的字节数指定
+	 */
+	@Test
+	public void fileCopier() throws IOException {
+		String sizes = System.getProperty("bench.sizes", "65536,4194304,268435456");
+		FileCopier copier = new FileCopier();
+		Path dir = Files.createTempDirectory("copier");
+		try {
+			System.out.printf("%12s", "size");
+			for (FileCopier.Strategy strategy : FileCopier.Strategy.values()) {
+				System.out.printf("%15s", strategy);
+			}
+			System.out.printf("%15s%n", "AUTO");
+			for (String s : sizes.split(",")) {
+				long size = Long.parseLong(s.trim());
+				Path src = dir.resolve("src"), dst = dir.resolve("dst");
+				byte[] block = new byte[1 << 20];
+				new Random(size).nextBytes(block);
+				try (OutputStream out = Files.newOutputStream(src)) {
+					for (long written = 0; written < size; written += block.length) {
+						out.write(block, 0, (int) Math.min(block.length, size - written));
+					}
+				}
+				System.out.printf("%12d", size);
+				for (FileCopier.Strategy strategy : FileCopier.Strategy.values()) {
+					System.out.printf("%13.2fms", best(() -> copier.copy(src, dst, strategy)) / 1e6);
+				}
+				System.out.printf("%13.2fms%n", best(() -> copier.copy(src, dst)) / 1e6);
+				if (Files.size(dst) != size) {
+					throw new IllegalStateException("复制结果大小不一致");
+				}
+				Files.delete(src);
+				Files.delete(dst);
+			}
+		} finally {
+			Files.delete(dir);
+		}
+	}
+	
+	/**
+	 * LineScanner与readLine()统计日志行数和ERROR行数的对比
+	 * 		readLine()：单线程，每行一个String
+	 * 		LineScanner：ForkJoinPool多线程，每个区间映射后按字节查找，行只是(offset, length)
+	 * 	日志行格式为"yyyy-MM-dd HH:mm:ss LEVEL ..."，级别从第20个字节开始
+	 * 	文件大小通过-Dbench.size=字节数指定，默认512M
+	 */
+	@Test
+	public void lineScanner() throws IOException {
+		long fileSize = Long.getLong("bench.size", 512L << 20);
+		Path path = Files.createTempFile("scan", ".log");
+		try {
+			String[] levels = {"INFO ", "DEBUG", "WARN ", "ERROR"};
+			Random random = new Random(1);
+			try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path), "UTF-8"), 1 << 16)) {
+				StringBuilder line = new StringBuilder();
+				for (long written = 0, id = 0; written < fileSize; written += line.length(), id++) {
+					line.setLength(0);
+					line.append("2018-06-01 12:00:00 ").append(levels[random.nextInt(levels.length)])
+						.append(" 请求id=").append(id).append(" 耗时=").append(random.nextInt(1000)).append("ms\n");
+					out.write(line.toString());
+				}
+			}
+			byte[] error = "ERROR".getBytes("UTF-8");
+			ForkJoinPool pool = new ForkJoinPool();
+			LineScanner scanner = new LineScanner(pool, LineScanner.DEFAULT_MAX_CHUNK);
+			for (int round = 0; round < 2; round++) {
+				long begin = System.nanoTime(), lines = 0, errors = 0;
+				try (BufferedReader in = Files.newBufferedReader(path)) {
+					String line;
+					while ((line = in.readLine()) != null) {
+						lines++;
+						if (line.startsWith("ERROR", 20)) {
+							errors++;
+						}
+					}
+				}
+				System.out.printf("readLine()：%d行，ERROR %d行，%dms%n", lines, errors, (System.nanoTime() - begin) / 1000000);
+				
+				begin = System.nanoTime();
+				long[] counts = scanner.scan(path, () -> new LineScanner.LineHandler<long[]>() {
+					private final long[] counts = new long[2];
+
+					@Override
+					public void line(ByteBuffer buffer, int offset, int length) {
+						counts[0]++;
+						if (length < 20 + error.length) {
+							return;
+						}
+						for (int i = 0; i < error.length; i++) {
+							if (buffer.get(offset + 20 + i) != error[i]) {
+								return;
+							}
+						}
+						counts[1]++;
+					}
+
+					@Override
+					public long[] result() {
+						return counts;
+					}
+				}, (a, b) -> new long[] {a[0] + b[0], a[1] + b[1]});
+				System.out.printf("LineScanner（%d个线程）：%d行，ERROR %d行，%dms%n", pool.getParallelism(),
+						counts[0], counts[1], (System.nanoTime() - begin) / 1000000);
+			}
+			pool.shutdown();
+		} finally {
+			Files.delete(path);
+		}
+	}
+	
+	/**
+	 * ParallelZip与zip()/unZip()比较
+	 * 		files个文件，每个fileSize字节的文本（可压缩），外加一个空目录
+	 * 		交叉验证：ParallelZip写的文件用unZip()（ZipInputStream）解压，zip()写的文件用ParallelZip解压，内容都与源文件一致
+	 * 	总大小通过-Dbench.size=字节数指定，默认256M
+	 */
+	@Test
+	public void parallelZip() throws IOException {
+		int files = 64;
+		long fileSize = Long.getLong("bench.size", 256L << 20) / files;
+		Path dir = Files.createTempDirectory("zip");
+		try {
+			Path src = Files.createDirectories(dir.resolve("src").resolve("日志"));
+			Files.createDirectories(src.resolve("空目录"));
+			Random random = new Random(1);
+			for (int i = 0; i < files; i++) {
+				try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(src.resolve(i + ".log")), "UTF-8"))) {
+					for (long written = 0; written < fileSize; written += 40) {
+						out.write(String.format("%08d 请求耗时=%06dms 状态=OK%n", written, random.nextInt(1000)));
+					}
+				}
+			}
+			ParallelZip parallel = new ParallelZip();
+			Path serialZip = dir.resolve("serial.zip"), parallelZip = dir.resolve("parallel.zip");
+			long begin = System.nanoTime();
+			zip(src.toString(), serialZip.toString());
+			System.out.printf("zip()：%dms，%dK%n", (System.nanoTime() - begin) / 1000000, Files.size(serialZip) >> 10);
+			begin = System.nanoTime();
+			int entries = parallel.zip(src, parallelZip);
+			System.out.printf("ParallelZip.zip()：%d个条目，%dms，%dK%n", entries, (System.nanoTime() - begin) / 1000000, Files.size(parallelZip) >> 10);
+			
+			Path serialOut = dir.resolve("serial"), parallelOut = dir.resolve("parallel");
+			begin = System.nanoTime();
+			unZip(parallelZip.toString(), serialOut.toString());
+			System.out.printf("unZip()：%dms%n", (System.nanoTime() - begin) / 1000000);
+			begin = System.nanoTime();
+			parallel.unzip(serialZip, parallelOut);
+			System.out.printf("ParallelZip.unzip()：%dms%n", (System.nanoTime() - begin) / 1000000);
+			for (Path out : new Path[] {serialOut, parallelOut}) {
+				if (!Files.isDirectory(out.resolve("日志").resolve("空目录"))) {
+					throw new IllegalStateException("空目录未解压：" + out);
+				}
+				for (int i = 0; i < files; i++) {
+					if (!Arrays.equals(Files.readAllBytes(src.resolve(i + ".log")), Files.readAllBytes(out.resolve("日志").resolve(i + ".log")))) {
+						throw new IllegalStateException("解压内容不一致：" + out + "/" + i);
+					}
+				}
+			}
+		} finally {
+			try (Stream<Path> stream = Files.walk(dir)) {
+				stream.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+	}
+	
+	interface CopyTask {
+		long run() throws IOException;
+	}
+	
+	private static long best(CopyTask task) throws IOException {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			long begin = System.nanoTime();
+			task.run();
+			best = Math.min(best, System.nanoTime() - begin);
+		}
+		return best;
+	}
+	
 	
 	public static void main(String[] args) throws IOException {
 		IO_ t = new IO_();
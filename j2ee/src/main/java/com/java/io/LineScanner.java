@@ -0,0 +1,219 @@
+package com.java.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Supplier;
+
+import com.nio.DirectBuffers;
+
+/**
+ * LineScanner：多线程按行扫描大文本文件
+ *
+ * 	IO_.copyFileBuffered式的readLine()循环只能用一个线程，且每行创建一个String
+ * 	实现
+ * 		文件按大小切分为多个区间，每个切分点向后移到下一个'\n'之后，保证每行完整地属于一个区间
+ * 		ForkJoinPool执行RecursiveTask：区间列表二分，左半fork()，右半在当前线程compute()，再join()合并结果
+ * 		叶子任务map()自己的区间，逐字节查找'\n'，行以(buffer, offset, length)的形式交给LineHandler，不创建String
+ * 		行不含行尾的'\n'和'\r'；文件最后一行没有'\n'时也会交付
+ * 		叶子任务结束即解除映射，同一时刻的映射量约为并行度 * 区间大小
+ *
+ * 	结果合并
+ * 		每个叶子任务通过Supplier创建自己的LineHandler，处理完后取result()
+ * 		相邻区间的结果按文件顺序用combiner合并（左在前），combiner不需要满足交换律
+ *
+ * @author nerv
+ *
+ */
+public class LineScanner {
+
+	/**
+	 * 行处理器，每个区间一个实例，只被一个线程使用
+	 */
+	public interface LineHandler<R> {
+		/**
+		 * @param buffer	区间的映射缓冲区，只读，只在扫描期间有效，不应保存
+		 * @param offset	行在buffer中的起始位置
+		 * @param length	行的字节数，不含行尾
+		 */
+		void line(ByteBuffer buffer, int offset, int length);
+
+		/**
+		 * 区间扫描完后的结果
+		 */
+		R result();
+	}
+
+	/** 默认区间大小上限 64M */
+	public static final int DEFAULT_MAX_CHUNK = 64 << 20;
+	private static final int MIN_CHUNK = 1 << 20;
+
+	private final ForkJoinPool pool;
+	private final int maxChunk;
+
+	public LineScanner() {
+		this(ForkJoinPool.commonPool(), DEFAULT_MAX_CHUNK);
+	}
+
+	/**
+	 * @param pool		执行扫描的线程池
+	 * @param maxChunk	每个区间的大小上限（不含向后对齐到行尾的部分），即一次映射的大小
+	 */
+	public LineScanner(ForkJoinPool pool, int maxChunk) {
+		if (maxChunk <= 0) {
+			throw new IllegalArgumentException("maxChunk=" + maxChunk);
+		}
+		this.pool = pool;
+		this.maxChunk = maxChunk;
+	}
+
+	/**
+	 * 扫描文件的全部行
+	 * @param handlers	为每个区间创建行处理器
+	 * @param combiner	按文件顺序合并相邻区间的结果
+	 * @return 合并后的结果，空文件返回新处理器的result()
+	 */
+	public <R> R scan(Path path, Supplier<? extends LineHandler<R>> handlers, BinaryOperator<R> combiner) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long[] bounds = split(channel);
+			if (bounds.length < 2) {
+				return handlers.get().result();
+			}
+			try {
+				return pool.invoke(new ScanTask<>(channel, bounds, 0, bounds.length - 1, handlers, combiner));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * 计算切分点：bounds[i]到bounds[i + 1]为第i个区间，每个切分点（首尾除外）都紧跟在'\n'之后
+	 */
+	private long[] split(FileChannel channel) throws IOException {
+		long size = channel.size();
+		// 区间数为并行度的4倍，使各线程负载均衡，又不至于过小
+		long chunk = Math.max(MIN_CHUNK, Math.min(maxChunk, size / (pool.getParallelism() * 4L) + 1));
+		List<Long> bounds = new ArrayList<>();
+		bounds.add(0L);
+		ByteBuffer probe = ByteBuffer.allocate(8 << 10);
+		long position = 0;
+		while (position < size) {
+			long next = position + chunk;
+			if (next >= size) {
+				next = size;
+			} else {
+				next = nextLine(channel, next, probe);
+			}
+			if (next - position > Integer.MAX_VALUE) {
+				throw new IOException("行过长，从" + position + "起的区间超过2G，无法映射");
+			}
+			bounds.add(next);
+			position = next;
+		}
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * 从position起查找'\n'，返回其后一个字节的位置；没有则返回文件大小
+	 */
+	private static long nextLine(FileChannel channel, long position, ByteBuffer probe) throws IOException {
+		while (true) {
+			probe.clear();
+			int n = channel.read(probe, position);
+			if (n == -1) {
+				return channel.size();
+			}
+			for (int i = 0; i < n; i++) {
+				if (probe.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * 扫描bounds[from]到bounds[to]之间的区间
+	 */
+	private static final class ScanTask<R> extends RecursiveTask<R> {
+		private static final long serialVersionUID = 1L;
+		private final FileChannel channel;
+		private final long[] bounds;
+		private final int from, to;
+		private final Supplier<? extends LineHandler<R>> handlers;
+		private final BinaryOperator<R> combiner;
+
+		ScanTask(FileChannel channel, long[] bounds, int from, int to,
+				Supplier<? extends LineHandler<R>> handlers, BinaryOperator<R> combiner) {
+			this.channel = channel;
+			this.bounds = bounds;
+			this.from = from;
+			this.to = to;
+			this.handlers = handlers;
+			this.combiner = combiner;
+		}
+
+		@Override
+		protected R compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				ScanTask<R> left = new ScanTask<>(channel, bounds, from, middle, handlers, combiner);
+				ScanTask<R> right = new ScanTask<>(channel, bounds, middle, to, handlers, combiner);
+				left.fork();
+				R r = right.compute();
+				return combiner.apply(left.join(), r);
+			}
+			try {
+				return scan(bounds[from], bounds[to]);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private R scan(long start, long end) throws IOException {
+			LineHandler<R> handler = handlers.get();
+			// FileChannel的map()是线程安全的，多个叶子任务共用一个通道
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, start, end - start);
+			try {
+				int limit = buffer.limit(), begin = 0;
+				for (int i = 0; i < limit; i++) {
+					if (buffer.get(i) == '\n') {
+						emit(handler, buffer, begin, i);
+						begin = i + 1;
+					}
+				}
+				if (begin < limit) {
+					emit(handler, buffer, begin, limit);
+				}
+				return handler.result();
+			} finally {
+				DirectBuffers.free(buffer);
+			}
+		}
+
+		/**
+		 * 交付[begin, end)，去掉行尾的'\r'
+		 */
+		private static void emit(LineHandler<?> handler, ByteBuffer buffer, int begin, int end) {
+			if (end > begin && buffer.get(end - 1) == '\r') {
+				end--;
+			}
+			handler.line(buffer, begin, end - begin);
+		}
+	}
+}
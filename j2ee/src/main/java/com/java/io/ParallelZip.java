@@ -0,0 +1,384 @@
+package com.java.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * ParallelZip：多线程压缩/解压zip文件
+ *
+ * 	压缩
+ * 		ZipOutputStream只能在写入线程中逐个条目压缩，无法利用多核
+ * 		此处每个条目由线程池中的一个线程读取文件、计算CRC32、用该线程自己的Deflater（nowrap，即zip使用的原始deflate格式）压缩到内存
+ * 		工作线程退出时end()自己的Deflater，线程池关闭即释放本地内存，不依赖finalize()
+ * 		调用线程按条目顺序取结果，自行写出zip格式：本地文件头 + 压缩数据，最后写中央目录和目录结束记录
+ * 		最多同时有threads * 2个条目在压缩或等待写出，内存占用约为这些条目压缩后的大小之和
+ * 		条目名与IO_.putEntry相同：以源目录名开头，分隔符为'/'，空目录以'/'结尾；文件名按UTF-8编码（标志位11）
+ * 		不支持ZIP64：单个条目或整个文件超过4G、条目数超过65535时抛出IOException
+ * 		压缩数据缓存在ByteArrayOutputStream中，单个条目压缩后超过MAX_BUFFER（约2G）时也抛出IOException，在写入缓冲区前检查
+ *
+ * 	解压
+ * 		ZipFile可随机访问条目，多个线程可同时getInputStream()，每个条目由一个线程用大缓冲区写出
+ * 		条目路径规范化后必须位于输出目录内，防止"../"形式的路径穿越（zip slip）
+ *
+ * @author nerv
+ *
+ */
+public class ParallelZip {
+
+	private static final int LOCAL_HEADER = 30;
+	private static final int CENTRAL_HEADER = 46;
+	private static final int END_RECORD = 22;
+	private static final int VERSION = 20;
+	private static final int FLAG_UTF8 = 1 << 11;
+	private static final long MAX_32 = 0xFFFFFFFFL;
+	/** 数组的最大长度，ByteArrayOutputStream无法超过 */
+	private static final int MAX_BUFFER = Integer.MAX_VALUE - 8;
+
+	private final int threads;
+	private final int level;
+	private final int bufferSize;
+
+	public ParallelZip() {
+		this(Runtime.getRuntime().availableProcessors(), Deflater.DEFAULT_COMPRESSION, FileCopier.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param threads		线程数
+	 * @param level			压缩级别，0~9或Deflater.DEFAULT_COMPRESSION
+	 * @param bufferSize	读写缓冲区大小
+	 */
+	public ParallelZip(int threads, int level, int bufferSize) {
+		if (threads <= 0 || bufferSize <= 0) {
+			throw new IllegalArgumentException("threads=" + threads + "，bufferSize=" + bufferSize);
+		}
+		this.threads = threads;
+		this.level = level;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * 压缩文件或目录
+	 * @return 写入的条目数
+	 */
+	public int zip(Path source, Path zipFile) throws IOException {
+		List<Path> paths = new ArrayList<>();
+		Path base = source.toAbsolutePath().getParent();
+		if (Files.isDirectory(source)) {
+			try (Stream<Path> stream = Files.walk(source)) {
+				stream.filter(p -> !Files.isDirectory(p) || isEmptyDirectory(p)).forEach(paths::add);
+			}
+			Collections.sort(paths);
+		} else {
+			paths.add(source);
+		}
+		if (paths.size() > 0xFFFF) {
+			throw new IOException("条目数超过65535");
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads, task -> new Worker(task, level, bufferSize));
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(zipFile), 1 << 16)) {
+			List<Entry> written = new ArrayList<>(paths.size());
+			Deque<Future<Entry>> window = new ArrayDeque<>();
+			long offset = 0;
+			int next = 0;
+			while (next < paths.size() || !window.isEmpty()) {
+				// 保持最多threads * 2个条目在处理中，按提交顺序写出
+				while (next < paths.size() && window.size() < threads * 2) {
+					Path path = paths.get(next++);
+					String name = base == null ? path.toString() : base.relativize(path.toAbsolutePath()).toString();
+					name = name.replace(path.getFileSystem().getSeparator(), "/");
+					String entryName = Files.isDirectory(path) ? name + "/" : name;
+					window.add(pool.submit(() -> compress(path, entryName)));
+				}
+				Entry entry = window.poll().get();
+				entry.offset = offset;
+				offset += writeLocal(out, entry);
+				if (offset > MAX_32) {
+					throw new IOException("压缩文件超过4G");
+				}
+				written.add(entry);
+			}
+			writeCentral(out, written, offset);
+			return written.size();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("压缩被中断", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * 解压到目录
+	 * @return 解压的文件数（不含目录）
+	 */
+	public int unzip(Path zipFile, Path outDir) throws IOException {
+		Path root = outDir.toAbsolutePath().normalize();
+		ExecutorService pool = Executors.newFixedThreadPool(threads, task -> new Worker(task, level, bufferSize));
+		try (ZipFile zip = new ZipFile(zipFile.toFile(), StandardCharsets.UTF_8)) {
+			List<Future<Long>> futures = new ArrayList<>();
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				Path target = root.resolve(entry.getName()).normalize();
+				if (!target.startsWith(root)) {
+					throw new IOException("条目路径超出输出目录：" + entry.getName());
+				}
+				if (entry.isDirectory()) {
+					Files.createDirectories(target);
+					continue;
+				}
+				Files.createDirectories(target.getParent());
+				futures.add(pool.submit(() -> {
+					try (InputStream in = zip.getInputStream(entry); OutputStream out = Files.newOutputStream(target)) {
+						byte[] data = Worker.current().buffer;
+						long total = 0;
+						int n;
+						while ((n = in.read(data)) != -1) {
+							out.write(data, 0, n);
+							total += n;
+						}
+						return total;
+					}
+				}));
+			}
+			// 关闭ZipFile前等待全部条目写完
+			for (Future<Long> future : futures) {
+				future.get();
+			}
+			return futures.size();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("解压被中断", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * 在工作线程中读取并压缩一个条目，目录条目不压缩
+	 */
+	private Entry compress(Path path, String name) throws IOException {
+		Entry entry = new Entry(name, dosTime(path));
+		if (Files.isDirectory(path)) {
+			entry.method = ZipEntry.STORED;
+			return entry;
+		}
+		entry.method = ZipEntry.DEFLATED;
+		long fileSize = Files.size(path);
+		if (fileSize > MAX_32) {
+			throw new IOException("条目超过4G：" + name);
+		}
+		Worker worker = Worker.current();
+		Deflater deflater = worker.deflater();
+		deflater.reset();
+		byte[] data = worker.buffer;
+		byte[] compressed = new byte[data.length];
+		CRC32 crc = new CRC32();
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(fileSize / 2 + 64, 1 << 24));
+		try (InputStream in = Files.newInputStream(path)) {
+			int n;
+			while ((n = in.read(data)) != -1) {
+				crc.update(data, 0, n);
+				entry.size += n;
+				// 文件可能在读取时变大
+				if (entry.size > MAX_32) {
+					throw new IOException("条目超过4G：" + name);
+				}
+				deflater.setInput(data, 0, n);
+				while (!deflater.needsInput()) {
+					buffer(out, compressed, deflater.deflate(compressed), name);
+				}
+			}
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			buffer(out, compressed, deflater.deflate(compressed), name);
+		}
+		entry.crc = crc.getValue();
+		entry.compressed = out.size();
+		entry.data = out;
+		return entry;
+	}
+
+	/**
+	 * 压缩数据写入内存缓冲区，超过MAX_BUFFER前抛出IOException，而不是由ByteArrayOutputStream抛出OutOfMemoryError
+	 */
+	private static void buffer(ByteArrayOutputStream out, byte[] compressed, int n, String name) throws IOException {
+		if (n > MAX_BUFFER - out.size()) {
+			throw new IOException("条目压缩后超过" + MAX_BUFFER + "字节，无法缓存：" + name);
+		}
+		out.write(compressed, 0, n);
+	}
+
+	/**
+	 * 写本地文件头和压缩数据
+	 * @return 写入的字节数
+	 */
+	private static long writeLocal(OutputStream out, Entry entry) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER + entry.name.length).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(0x04034b50)
+			.putShort((short) VERSION)
+			.putShort((short) FLAG_UTF8)
+			.putShort((short) entry.method)
+			.putInt(entry.time)
+			.putInt((int) entry.crc)
+			.putInt((int) entry.compressed)
+			.putInt((int) entry.size)
+			.putShort((short) entry.name.length)
+			.putShort((short) 0)
+			.put(entry.name);
+		out.write(header.array());
+		if (entry.data != null) {
+			entry.data.writeTo(out);
+		}
+		long length = header.capacity() + entry.compressed;
+		// 写出后即可释放压缩数据，中央目录只需要元数据
+		entry.data = null;
+		return length;
+	}
+
+	/**
+	 * 写中央目录和目录结束记录
+	 */
+	private static void writeCentral(OutputStream out, List<Entry> entries, long offset) throws IOException {
+		long size = 0;
+		for (Entry entry : entries) {
+			ByteBuffer header = ByteBuffer.allocate(CENTRAL_HEADER + entry.name.length).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(0x02014b50)
+				.putShort((short) VERSION)
+				.putShort((short) VERSION)
+				.putShort((short) FLAG_UTF8)
+				.putShort((short) entry.method)
+				.putInt(entry.time)
+				.putInt((int) entry.crc)
+				.putInt((int) entry.compressed)
+				.putInt((int) entry.size)
+				.putShort((short) entry.name.length)
+				.putShort((short) 0)	// 扩展字段长度
+				.putShort((short) 0)	// 注释长度
+				.putShort((short) 0)	// 起始磁盘号
+				.putShort((short) 0)	// 内部属性
+				.putInt(entry.method == ZipEntry.STORED ? 0x10 : 0)	// 外部属性，0x10为MS-DOS目录
+				.putInt((int) entry.offset)
+				.put(entry.name);
+			out.write(header.array());
+			size += header.capacity();
+		}
+		if (offset + size > MAX_32) {
+			throw new IOException("压缩文件超过4G");
+		}
+		ByteBuffer end = ByteBuffer.allocate(END_RECORD).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(0x06054b50)
+			.putShort((short) 0)
+			.putShort((short) 0)
+			.putShort((short) entries.size())
+			.putShort((short) entries.size())
+			.putInt((int) size)
+			.putInt((int) offset)
+			.putShort((short) 0);
+		out.write(end.array());
+	}
+
+	private static boolean isEmptyDirectory(Path dir) {
+		try (Stream<Path> children = Files.list(dir)) {
+			return !children.findAny().isPresent();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * 修改时间转为MS-DOS格式：高16位日期，低16位时间（秒精度为2秒）
+	 */
+	private static int dosTime(Path path) throws IOException {
+		LocalDateTime time = LocalDateTime.ofInstant(Files.getLastModifiedTime(path).toInstant(), ZoneId.systemDefault());
+		if (time.getYear() < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+				| time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+	}
+
+	/**
+	 * 线程池的工作线程，持有自己的读写缓冲区和Deflater
+	 * 	Deflater在第一次压缩时创建（解压不需要），线程退出时end()：线程只在任务返回后退出，不会end()正在使用的Deflater
+	 */
+	private static final class Worker extends Thread {
+		final byte[] buffer;
+		private final int level;
+		private Deflater deflater;
+
+		Worker(Runnable task, int level, int bufferSize) {
+			super(task, "ParallelZip-worker");
+			this.buffer = new byte[bufferSize];
+			this.level = level;
+		}
+
+		static Worker current() {
+			return (Worker) Thread.currentThread();
+		}
+
+		Deflater deflater() {
+			if (deflater == null) {
+				deflater = new Deflater(level, true);
+			}
+			return deflater;
+		}
+
+		@Override
+		public void run() {
+			try {
+				super.run();
+			} finally {
+				if (deflater != null) {
+					deflater.end();
+				}
+			}
+		}
+	}
+
+	private static final class Entry {
+		final byte[] name;
+		final int time;
+		int method;
+		long crc;
+		long size;
+		long compressed;
+		long offset;
+		ByteArrayOutputStream data;
+
+		Entry(String name, int time) {
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.time = time;
+		}
+	}
+}
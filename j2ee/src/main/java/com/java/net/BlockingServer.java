@@ -0,0 +1,215 @@
+package com.java.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BlockingServer：阻塞式服务端的启动器，保持一个连接一个任务的阻塞编程模型，连接由可选的执行器处理
+ *
+ * 	ServerSocket_、聊天_群聊_多线程.server()为每个连接new Thread()，连接数受平台线程数限制（每个线程默认1M栈）
+ * 	执行器Mode
+ * 		BOUNDED		固定threads个平台线程，超出的连接在队列中等待空闲线程（已accept但未处理）
+ * 		UNBOUNDED	newCachedThreadPool()，每个并发连接一个平台线程，空闲线程60秒后回收
+ * 		VIRTUAL		JDK 21+的虚拟线程，每个连接一个虚拟线程；阻塞的socket读写只挂起虚拟线程，不占用平台线程
+ * 	VIRTUAL在运行时通过MethodHandle查找Executors.newVirtualThreadPerTaskExecutor()，源码仍按Java 8编译
+ * 		在低于21的JDK上isVirtualThreadsSupported()为false，选择VIRTUAL时抛出UnsupportedOperationException
+ *
+ * 	accept()失败（如文件描述符耗尽）时等待ACCEPT_BACKOFF_MILLIS后重试，连接关闭释放描述符后恢复接收
+ * 	关闭：先关闭ServerSocket停止接收，再关闭全部活动连接（阻塞的socket读写不响应中断），最后关闭执行器
+ *
+ * @author nerv
+ *
+ */
+public class BlockingServer implements Closeable {
+
+	public enum Mode {
+		BOUNDED, UNBOUNDED, VIRTUAL
+	}
+
+	/**
+	 * 连接处理器，在执行器的线程中调用，返回或抛出异常后连接被关闭
+	 */
+	public interface ConnectionHandler {
+		void handle(Socket socket) throws IOException;
+	}
+
+	private static final MethodHandle NEW_VIRTUAL_EXECUTOR = findVirtualExecutor();
+	/** accept()失败（如文件描述符耗尽EMFILE）后等待多久再试，避免接收线程空转刷屏 */
+	private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+	private final ServerSocket server;
+	private final ConnectionHandler handler;
+	private final ExecutorService executor;
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger peak = new AtomicInteger();
+	private final Thread acceptor;
+
+	/**
+	 * @param mode		执行器类型
+	 * @param threads	BOUNDED的线程数，其它类型忽略
+	 */
+	public BlockingServer(InetSocketAddress address, Mode mode, int threads, ConnectionHandler handler) throws IOException {
+		this.executor = newExecutor(mode, threads);
+		this.server = new ServerSocket();
+		try {
+			server.bind(address, 4096);
+		} catch (IOException e) {
+			executor.shutdown();
+			server.close();
+			throw e;
+		}
+		this.handler = handler;
+		this.acceptor = new Thread(this::acceptLoop, "blocking-acceptor");
+		acceptor.start();
+	}
+
+	/**
+	 * 当前JDK是否支持虚拟线程
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return NEW_VIRTUAL_EXECUTOR != null;
+	}
+
+	/**
+	 * 创建指定类型的执行器
+	 */
+	public static ExecutorService newExecutor(Mode mode, int threads) {
+		switch (mode) {
+		case BOUNDED:
+			if (threads <= 0) {
+				throw new IllegalArgumentException("threads=" + threads);
+			}
+			return Executors.newFixedThreadPool(threads, named("blocking-bounded-"));
+		case UNBOUNDED:
+			return Executors.newCachedThreadPool(named("blocking-unbounded-"));
+		case VIRTUAL:
+			if (NEW_VIRTUAL_EXECUTOR == null) {
+				throw new UnsupportedOperationException("虚拟线程需要JDK 21+，当前为" + System.getProperty("java.version"));
+			}
+			try {
+				return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke();
+			} catch (Throwable e) {
+				throw new IllegalStateException(e);
+			}
+		default:
+			throw new IllegalArgumentException(String.valueOf(mode));
+		}
+	}
+
+	/**
+	 * 实际绑定的地址，端口为0时可用于获取系统分配的端口
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) server.getLocalSocketAddress();
+	}
+
+	/**
+	 * 正在处理的连接数
+	 */
+	public int activeConnections() {
+		return active.get();
+	}
+
+	/**
+	 * 同时处理的最大连接数
+	 */
+	public int peakConnections() {
+		return peak.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		for (Socket socket : connections) {
+			socket.close();
+		}
+		executor.shutdownNow();
+		try {
+			acceptor.join();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void acceptLoop() {
+		while (!server.isClosed()) {
+			Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				if (!server.isClosed()) {
+					e.printStackTrace();
+					try {
+						Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				continue;
+			}
+			connections.add(socket);
+			try {
+				executor.execute(() -> serve(socket));
+			} catch (RejectedExecutionException e) {
+				// 执行器已关闭
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		int n = active.incrementAndGet();
+		peak.accumulateAndGet(n, Math::max);
+		try {
+			handler.handle(socket);
+		} catch (IOException e) {
+			// 客户端断开等连接级异常只结束该连接
+		} finally {
+			active.decrementAndGet();
+			closeQuietly(socket);
+		}
+	}
+
+	private void closeQuietly(Socket socket) {
+		connections.remove(socket);
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static ThreadFactory named(String prefix) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> new Thread(r, prefix + count.incrementAndGet());
+	}
+
+	/**
+	 * 查找Executors.newVirtualThreadPerTaskExecutor()，JDK 21以下返回null
+	 */
+	private static MethodHandle findVirtualExecutor() {
+		try {
+			return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+					MethodType.methodType(ExecutorService.class));
+		} catch (NoSuchMethodException | IllegalAccessException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,690 @@
+package com.java.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.java.util.HashedTimingWheel;
+
+/**
+ * ChatServer：群聊服务端，一个接收线程 + N个工作线程的多Reactor模型，替代聊天_群聊_多线程.server()的一个连接一个线程
+ *
+ * 	聊天_群聊_多线程.server()的问题
+ * 		每个连接一个线程，几千个连接即耗尽线程；多个线程同时读写未同步的ArrayList<Socket>
+ * 		每条消息都重新创建DataInputStream/DataOutputStream
+ * 	线程模型
+ * 		接收Reactor：一个线程，Selector只注册ServerSocketChannel的OP_ACCEPT，接收的连接轮流分配给各工作Reactor
+ * 		工作Reactor：默认每个CPU一个线程，各自一个Selector，负责所分配连接的全部读写
+ * 		连接只在所属工作线程中注册和修改interestOps：其它线程把任务放入该Reactor的任务队列再wakeup()
+ * 	会话
+ * 		sessions为ConcurrentHashMap，所有线程都可以遍历，连接关闭时移除
+ * 		每个会话有自己的发送队列，由所属工作线程在OP_WRITE时写出
+ * 	广播（扇出）
+ * 		消息只编码/复制一次，各接收方入队其只读副本，入队为O(1)，发送方不等待任何接收方的socket
+ * 		发送队列有界（queueCapacity条），队列为空到非空时才向所属工作线程提交一次打开OP_WRITE的任务，不是每条消息一次
+ * 		OP_WRITE时一次取出最多MAX_GATHER个帧，用一次聚集写write(ByteBuffer[])写出，减少系统调用
+ * 		慢消费者（队列已满）的处理策略SlowConsumerPolicy
+ * 			DROP		丢弃发给该会话的消息，其它会话不受影响
+ * 			DISCONNECT	断开该会话
+ * 			BLOCK		阻塞生产者：broadcast(String)的调用线程等待队列有空位
+ * 						转发其它客户端的消息时不能阻塞工作线程，改为暂停读取发送方（关闭其OP_READ），接收方队列降到一半以下时恢复
+ * 						TCP的流量控制随之把压力传回发送方客户端
+ * 	协议：与DataOutputStream.writeUTF()/DataInputStream.readUTF()相同
+ * 		2字节无符号长度 + modified UTF-8内容
+ * 		服务端不解码内容，收到的完整帧原样转发给其它会话；同一帧只复制一次，各接收方使用其只读副本（duplicate），不复制数据
+ * 		每个工作线程一个读缓冲区，由各会话的UtfFrameCodec增量解码，只有跨多次读取的帧才在会话内缓存
+ * 	超时：timeouts()设置，默认不检测
+ * 		每个工作Reactor一个HashedTimingWheel，select()的超时为到下一个刻度的时间，每轮循环推进一次，超时任务在工作线程中执行
+ * 		空闲：idleTimeout内未收到客户端的数据，按IdleAction关闭连接或发送一个空消息（长度为0的帧）
+ * 			读写时只记录时间，不重新调度：定时器到期时检查最后一次读取的时间，未超时则按剩余时间重新调度
+ * 			每个连接最多一个待执行的空闲定时器，读取频繁的连接也不会增加时间轮的开销
+ * 		写：发送队列非空、writeTimeout内没有写出任何数据（客户端不读取、窗口为0）时关闭连接
+ *
+ * @author nerv
+ *
+ */
+public class ChatServer implements Closeable {
+
+	/** 工作线程读缓冲区大小 */
+	static final int READ_BUFFER = 64 << 10;
+	/** 一次聚集写最多的帧数 */
+	static final int MAX_GATHER = 64;
+	/** 默认每个会话的发送队列容量 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 4096;
+
+	/**
+	 * 发送队列已满时的处理策略
+	 */
+	public enum SlowConsumerPolicy {
+		DROP, DISCONNECT, BLOCK
+	}
+
+	/**
+	 * 连接空闲时的处理
+	 */
+	public enum IdleAction {
+		/** 关闭连接，回收长时间不活动或已失效的连接 */
+		CLOSE,
+		/** 发送一个空消息，探测连接是否仍然有效，并让NAT/防火墙保持映射 */
+		PING
+	}
+
+	/** 时间轮的刻度（毫秒），即超时的精度 */
+	static final long TIMER_TICK = 100;
+	/** 时间轮的槽数，一圈约51秒 */
+	static final int TIMER_WHEEL = 512;
+	/** 空消息：writeUTF("") */
+	private static final ByteBuffer PING = ByteBuffer.wrap(new byte[UtfFrameCodec.HEADER]).asReadOnlyBuffer();
+
+	private final ServerSocketChannel server;
+	private final Selector acceptSelector;
+	private final Worker[] workers;
+	private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+	private final AtomicLong ids = new AtomicLong();
+	private final int queueCapacity;
+	private final SlowConsumerPolicy policy;
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder disconnected = new LongAdder();
+	private final LongAdder timedOut = new LongAdder();
+	private final LongAdder pings = new LongAdder();
+	private long idleTimeout;
+	private long writeTimeout;
+	private IdleAction idleAction = IdleAction.CLOSE;
+	private Thread acceptor;
+	private volatile boolean running = true;
+	private int next;
+
+	public ChatServer(InetSocketAddress address) throws IOException {
+		this(address, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, SlowConsumerPolicy.DISCONNECT);
+	}
+
+	/**
+	 * @param workers		工作Reactor数
+	 * @param queueCapacity	每个会话的发送队列容量（帧数）
+	 * @param policy		发送队列已满时的处理策略
+	 */
+	public ChatServer(InetSocketAddress address, int workers, int queueCapacity, SlowConsumerPolicy policy) throws IOException {
+		if (workers <= 0 || queueCapacity <= 0) {
+			throw new IllegalArgumentException("workers=" + workers + "，queueCapacity=" + queueCapacity);
+		}
+		this.queueCapacity = queueCapacity;
+		this.policy = policy;
+		this.server = ServerSocketChannel.open();
+		server.bind(address, 1024);
+		server.configureBlocking(false);
+		this.acceptSelector = Selector.open();
+		server.register(acceptSelector, SelectionKey.OP_ACCEPT);
+		this.workers = new Worker[workers];
+		for (int i = 0; i < workers; i++) {
+			this.workers[i] = new Worker(i);
+		}
+	}
+
+	/**
+	 * 设置超时，在start()之前调用
+	 * @param idleTimeout	未收到客户端数据的时间超过此值时按action处理，0表示不检测
+	 * @param writeTimeout	有待发送的数据但超过此时间没有写出任何字节时关闭连接，0表示不检测
+	 */
+	public ChatServer timeouts(long idleTimeout, long writeTimeout, TimeUnit unit, IdleAction action) {
+		if (idleTimeout < 0 || writeTimeout < 0) {
+			throw new IllegalArgumentException("idleTimeout=" + idleTimeout + "，writeTimeout=" + writeTimeout);
+		}
+		this.idleTimeout = unit.toNanos(idleTimeout);
+		this.writeTimeout = unit.toNanos(writeTimeout);
+		this.idleAction = action;
+		return this;
+	}
+
+	/**
+	 * 启动接收线程和工作线程
+	 */
+	public ChatServer start() {
+		for (Worker worker : workers) {
+			worker.thread.start();
+		}
+		acceptor = new Thread(this::acceptLoop, "chat-acceptor");
+		acceptor.start();
+		return this;
+	}
+
+	/**
+	 * 实际绑定的地址，端口为0时可用于获取系统分配的端口
+	 */
+	public InetSocketAddress getLocalAddress() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	/**
+	 * 当前在线的会话数
+	 */
+	public int sessions() {
+		return sessions.size();
+	}
+
+	/**
+	 * DROP策略丢弃的消息数
+	 */
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * DISCONNECT策略断开的会话数
+	 */
+	public long disconnected() {
+		return disconnected.sum();
+	}
+
+	/**
+	 * 因空闲（CLOSE）或写超时而关闭的会话数
+	 */
+	public long timedOut() {
+		return timedOut.sum();
+	}
+
+	/**
+	 * 空闲时发送的空消息数（PING）
+	 */
+	public long pings() {
+		return pings.sum();
+	}
+
+	/**
+	 * 以服务端身份向全部会话发送一条消息，BLOCK策略下可能阻塞
+	 */
+	public void broadcast(String message) {
+		ByteBuffer frame;
+		try {
+			frame = ByteBuffer.allocate(UtfFrameCodec.HEADER + UtfFrameCodec.utfLength(message));
+			new UtfFrameCodec().encode(message, frame);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);	// 超过65535字节
+		}
+		frame.flip();
+		broadcast(frame, null);
+	}
+
+	/**
+	 * 把一个完整帧发给除from以外的全部会话
+	 * @param frame	position到limit为完整帧，调用后不应再修改
+	 */
+	void broadcast(ByteBuffer frame, Session from) {
+		ByteBuffer shared = frame.asReadOnlyBuffer();
+		for (Session session : sessions.values()) {
+			if (session != from) {
+				session.send(shared.duplicate(), from);
+			}
+		}
+	}
+
+	/**
+	 * 停止接收，关闭全部连接
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		acceptSelector.wakeup();
+		for (Worker worker : workers) {
+			worker.selector.wakeup();
+		}
+		try {
+			if (acceptor != null) {
+				acceptor.join();
+			}
+			for (Worker worker : workers) {
+				worker.thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void acceptLoop() {
+		try {
+			while (running) {
+				acceptSelector.select();
+				acceptSelector.selectedKeys().clear();
+				SocketChannel channel;
+				while ((channel = server.accept()) != null) {
+					try {
+						channel.configureBlocking(false);
+						channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					} catch (IOException e) {
+						// 客户端已断开等，只关闭该连接，继续接收
+						try {
+							channel.close();
+						} catch (IOException e1) {
+							e1.printStackTrace();
+						}
+						continue;
+					}
+					// 轮流分配，连接数在各工作Reactor之间均衡
+					Worker worker = workers[next];
+					next = (next + 1) % workers.length;
+					Session session = new Session(ids.incrementAndGet(), channel, worker);
+					worker.execute(() -> worker.register(session));
+				}
+			}
+		} catch (IOException e) {
+			if (running) {
+				e.printStackTrace();
+			}
+		} finally {
+			try {
+				server.close();
+				acceptSelector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 工作Reactor：一个线程一个Selector，处理所分配连接的读写
+	 */
+	final class Worker {
+		final Selector selector;
+		final Thread thread;
+		/** 其它线程提交的任务：注册新连接、打开OP_WRITE */
+		final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		/** 聚集写复用的数组 */
+		final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+		/** 本线程全部会话共用的读缓冲区 */
+		final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER);
+		/** 本线程全部会话的超时，只在本线程中访问 */
+		final HashedTimingWheel timers = new HashedTimingWheel(TIMER_TICK, TimeUnit.MILLISECONDS, TIMER_WHEEL);
+		/** 本轮select()返回的时间，读写时用于记录活动时间，避免每次读写都调用System.nanoTime() */
+		long now = System.nanoTime();
+
+		Worker(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this::loop, "chat-worker-" + index);
+		}
+
+		/**
+		 * 在本Reactor线程中执行任务
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			if (Thread.currentThread() != thread) {
+				selector.wakeup();
+			}
+		}
+
+		void register(Session session) {
+			try {
+				session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+				sessions.put(session.id, session);
+				session.lastRead = now;
+				if (idleTimeout > 0) {
+					session.idleTimer = timers.schedule(session::checkIdle, idleTimeout, TimeUnit.NANOSECONDS);
+				}
+			} catch (IOException e) {
+				session.close();
+			}
+		}
+
+		private void loop() {
+			try {
+				while (running) {
+					selector.select(timers.timeoutMillis());
+					now = System.nanoTime();
+					// 任务、单个连接或定时任务的运行时异常只记录，不能结束工作线程，否则其全部会话都不再被服务
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						}
+					}
+					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+					while (iterator.hasNext()) {
+						SelectionKey key = iterator.next();
+						iterator.remove();
+						if (!key.isValid()) {
+							// 本轮任务中已被关闭
+							continue;
+						}
+						Session session = (Session) key.attachment();
+						try {
+							if (key.isReadable()) {
+								session.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								session.flush();
+							}
+						} catch (IOException e) {
+							// 客户端下线或连接异常，只关闭该连接
+							session.close();
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+							session.close();
+						}
+					}
+					try {
+						timers.advance();
+					} catch (RuntimeException e) {
+						// 同一刻度中其余到期的任务留到下一刻度执行
+						e.printStackTrace();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					((Session) key.attachment()).close();
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 一个客户端连接
+	 * 		codec		解码读到的帧，不完整的帧由codec缓存
+	 * 		outbound	待发送的帧，任意线程入队；writing为已从outbound取出、正在写的帧，只由所属工作线程访问
+	 * 		queued		outbound + writing中的帧数，用于判断队列是否已满
+	 * 		scheduled	已提交打开OP_WRITE的任务或OP_WRITE已打开，避免每条消息都提交任务
+	 * 		blocked		BLOCK策略下因本会话队列已满而暂停读取的发送方
+	 */
+	final class Session {
+		final long id;
+		final SocketChannel channel;
+		final Worker worker;
+		final UtfFrameCodec codec = new UtfFrameCodec();
+		final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+		final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>(MAX_GATHER);
+		final AtomicInteger queued = new AtomicInteger();
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		final Set<Session> blocked = ConcurrentHashMap.newKeySet();
+		SelectionKey key;
+		// 超时，只由所属工作线程访问
+		HashedTimingWheel.Timeout idleTimer;
+		HashedTimingWheel.Timeout writeTimer;
+		/** 最后一次读到数据的时间 */
+		long lastRead;
+		/** 最后一次写出数据或发送队列由空变为非空的时间 */
+		long lastWrite;
+		/** BLOCK策略下在awaitSpace()中等待的线程数 */
+		volatile int waiting;
+		/** 因其它会话的队列已满而暂停读取，只由所属工作线程访问 */
+		boolean paused;
+		volatile boolean closed;
+
+		Session(long id, SocketChannel channel, Worker worker) {
+			this.id = id;
+			this.channel = channel;
+			this.worker = worker;
+		}
+
+		/**
+		 * 读取并转发全部完整帧
+		 */
+		void read() throws IOException {
+			ByteBuffer in = worker.readBuffer;
+			in.clear();
+			int n = channel.read(in);
+			if (n == -1) {
+				close();
+				return;
+			}
+			if (n > 0) {
+				lastRead = worker.now;
+			}
+			in.flip();
+			while (codec.decode(in)) {
+				// 复制一次，之后由全部接收方共享
+				ByteBuffer frame = codec.frame();
+				ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+				copy.put(frame).flip();
+				broadcast(copy, this);
+			}
+		}
+
+		/**
+		 * 入队一个帧，队列已满时按策略处理
+		 * @param from	转发时为发送方会话（在其工作线程中调用），服务端消息为null
+		 */
+		void send(ByteBuffer frame, Session from) {
+			if (closed) {
+				return;
+			}
+			if (queued.incrementAndGet() > queueCapacity) {
+				switch (policy) {
+				case DROP:
+					queued.decrementAndGet();
+					dropped.increment();
+					return;
+				case DISCONNECT:
+					queued.decrementAndGet();
+					worker.execute(() -> {
+						if (!closed) {
+							disconnected.increment();
+							close();
+						}
+					});
+					return;
+				case BLOCK:
+					if (from != null) {
+						// 已计数，超出容量入队，之后暂停发送方
+						from.pauseFor(this);
+					} else {
+						queued.decrementAndGet();
+						if (!awaitSpace()) {
+							return;
+						}
+					}
+					break;
+				}
+			}
+			outbound.add(frame);
+			if (scheduled.compareAndSet(false, true)) {
+				if (Thread.currentThread() == worker.thread) {
+					interestWrite();
+				} else {
+					worker.execute(this::interestWrite);
+				}
+			}
+		}
+
+		/**
+		 * BLOCK策略下非工作线程等待队列有空位并占用一个位置
+		 * @return false表示会话已关闭或线程被中断
+		 */
+		private boolean awaitSpace() {
+			synchronized (this) {
+				waiting++;
+				try {
+					while (true) {
+						if (closed) {
+							return false;
+						}
+						if (queued.incrementAndGet() <= queueCapacity) {
+							return true;
+						}
+						queued.decrementAndGet();
+						wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				} finally {
+					waiting--;
+				}
+			}
+		}
+
+		/**
+		 * 本会话（发送方）暂停读取，直到recipient的队列降到一半以下。在本会话的工作线程中调用
+		 */
+		private void pauseFor(Session recipient) {
+			if (!paused && key != null && key.isValid()) {
+				paused = true;
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			}
+			recipient.blocked.add(this);
+			// recipient可能已在另一个线程中写出了队列，重新检查，避免错过恢复
+			if (recipient.closed || recipient.queued.get() <= queueCapacity / 2) {
+				recipient.resumeBlocked();
+			}
+		}
+
+		/**
+		 * 恢复因本会话队列已满而暂停的发送方
+		 */
+		private void resumeBlocked() {
+			for (Session sender : blocked) {
+				if (blocked.remove(sender)) {
+					sender.worker.execute(sender::resume);
+				}
+			}
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+
+		private void resume() {
+			if (paused && key != null && key.isValid()) {
+				paused = false;
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			}
+		}
+
+		private void interestWrite() {
+			if (key != null && key.isValid()) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				if (writeTimeout > 0 && (writeTimer == null || !writeTimer.isPending())) {
+					lastWrite = System.nanoTime();
+					writeTimer = worker.timers.schedule(this::checkWrite, writeTimeout, TimeUnit.NANOSECONDS);
+				}
+			}
+		}
+
+		/**
+		 * 空闲定时器到期：未超时则按剩余时间重新调度
+		 */
+		private void checkIdle() {
+			if (closed) {
+				return;
+			}
+			long idle = System.nanoTime() - lastRead;
+			if (idle < idleTimeout) {
+				idleTimer = worker.timers.schedule(this::checkIdle, idleTimeout - idle, TimeUnit.NANOSECONDS);
+				return;
+			}
+			if (idleAction == IdleAction.CLOSE) {
+				timedOut.increment();
+				close();
+				return;
+			}
+			// 仍有待发送的数据时不需要探测，写超时会处理写不出去的连接
+			if (queued.get() == 0) {
+				pings.increment();
+				// from为自身：队列已满时（BLOCK）只暂停读取自身，不阻塞工作线程
+				send(PING.duplicate(), this);
+			}
+			idleTimer = worker.timers.schedule(this::checkIdle, idleTimeout, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * 写定时器到期：发送队列已空则停止检测，有进展则按剩余时间重新调度
+		 */
+		private void checkWrite() {
+			if (closed || queued.get() == 0) {
+				return;
+			}
+			long stalled = System.nanoTime() - lastWrite;
+			if (stalled >= writeTimeout) {
+				timedOut.increment();
+				close();
+			} else {
+				writeTimer = worker.timers.schedule(this::checkWrite, writeTimeout - stalled, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		/**
+		 * 聚集写出发送队列，发送缓冲区满则保留剩余部分等待下一次OP_WRITE；写完则关闭OP_WRITE
+		 */
+		void flush() throws IOException {
+			ByteBuffer[] gather = worker.gather;
+			while (true) {
+				ByteBuffer frame;
+				while (writing.size() < MAX_GATHER && (frame = outbound.poll()) != null) {
+					writing.add(frame);
+				}
+				if (writing.isEmpty()) {
+					break;
+				}
+				int count = 0;
+				for (ByteBuffer buffer : writing) {
+					gather[count++] = buffer;
+				}
+				if (channel.write(gather, 0, count) > 0) {
+					lastWrite = worker.now;
+				}
+				int written = 0;
+				while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+					writing.poll();
+					written++;
+				}
+				Arrays.fill(gather, 0, count, null);
+				if (written > 0 && queued.addAndGet(-written) <= queueCapacity / 2 && (!blocked.isEmpty() || waiting > 0)) {
+					resumeBlocked();
+				}
+				if (!writing.isEmpty()) {
+					return;	// 发送缓冲区已满，等待下一次OP_WRITE
+				}
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			scheduled.set(false);
+			// 关闭OP_WRITE与清除scheduled之间入队的帧不会提交任务，需重新检查
+			if (!outbound.isEmpty() && scheduled.compareAndSet(false, true)) {
+				interestWrite();
+			}
+		}
+
+		void close() {
+			closed = true;
+			if (idleTimer != null) {
+				idleTimer.cancel();
+			}
+			if (writeTimer != null) {
+				writeTimer.cancel();
+			}
+			sessions.remove(id);
+			outbound.clear();
+			writing.clear();
+			resumeBlocked();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,300 @@
+package com.java.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * DatagramReceiver：高速率UDP接收，一个接收线程批量读取，多个解码线程并行处理
+ *
+ * 	DatagramSocket_.server1/server3每次receive()一个包，每个包新建byte[1024]，处理完才接收下一个
+ * 	接收线程：DatagramChannel注册到Selector，每次唤醒循环receive()直到返回null，读空内核缓冲区中的全部数据报
+ * 		SO_RCVBUF默认设为4M，突发流量先由内核缓冲区吸收
+ * 	环形缓冲区：ringSize个槽，每个槽是同一块直接内存的一段（slotSize字节），启动时一次分配，之后不再分配内存
+ * 		数据报直接receive()进槽位，不经过堆内存复制
+ * 	交接：槽位本身构成一个有界的无锁队列（Vyukov MPMC队列的单生产者用法）
+ * 		每个槽位有序号sequence：等于pos表示空闲可写，pos + 1表示已写入可读，解码完成后设为pos + ringSize交还
+ * 		接收线程写入后发布序号；解码线程CAS推进读位置认领槽位，原地解码后交还，全程无锁、无对象分配
+ * 		解码线程空闲时先自旋，再yield()，最后parkNanos()短暂休眠，接收线程不需要唤醒它们
+ * 	丢包计数
+ * 		ringDrops()	环形缓冲区已满（解码跟不上）时接收的数据报被丢弃的个数，增大ringSize或解码线程数
+ * 		truncated()	超过slotSize被截断的数据报个数（DatagramChannel丢弃超出部分，按填满槽位判断）
+ * 		kernelDrops()	内核因接收缓冲区已满丢弃的个数，Linux上读取/proc/net/udp的drops列，其它系统返回-1
+ * 	一个槽位的解码较慢时，接收线程绕回到该槽位即视为已满，即使其它槽位空闲，解码耗时应大致均匀
+ *
+ * @author nerv
+ *
+ */
+public class DatagramReceiver implements Closeable {
+
+	public static final int DEFAULT_RECEIVE_BUFFER = 4 << 20;
+
+	/**
+	 * 解码器，在解码线程中调用
+	 */
+	public interface Decoder {
+		/**
+		 * @param datagram	数据报内容，只在调用期间有效
+		 */
+		void decode(SocketAddress source, ByteBuffer datagram) throws Exception;
+	}
+
+	/**
+	 * 槽位：同一块直接内存的一段，及其序号
+	 */
+	static final class Slot {
+		final AtomicLong sequence;
+		final ByteBuffer buffer;
+		SocketAddress source;
+
+		Slot(long sequence, ByteBuffer buffer) {
+			this.sequence = new AtomicLong(sequence);
+			this.buffer = buffer;
+		}
+	}
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final Decoder decoder;
+	private final Slot[] slots;
+	private final int mask;
+	/** 环形缓冲区已满时用于读出并丢弃数据报 */
+	private final ByteBuffer discard;
+	/** 下一个写入位置，只由接收线程访问 */
+	private long head;
+	/** 下一个读取位置，解码线程CAS认领 */
+	private final AtomicLong tail = new AtomicLong();
+	private final Thread receiver;
+	private final List<Thread> decoders = new ArrayList<>();
+	private volatile boolean running = true;
+
+	private final LongAdder received = new LongAdder();
+	private final LongAdder decoded = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder ringDrops = new LongAdder();
+	private final LongAdder truncated = new LongAdder();
+
+	/**
+	 * @param ringSize		槽位数，向上取2的幂
+	 * @param slotSize		每个槽位的字节数，即最大数据报长度
+	 * @param threads		解码线程数
+	 */
+	public DatagramReceiver(InetSocketAddress address, int ringSize, int slotSize, int threads, Decoder decoder) throws IOException {
+		if (ringSize <= 0 || slotSize <= 0 || threads <= 0) {
+			throw new IllegalArgumentException("ringSize=" + ringSize + "，slotSize=" + slotSize + "，threads=" + threads);
+		}
+		int size = Integer.highestOneBit(ringSize - 1) << 1;
+		if (size <= 0) {
+			size = 1;
+		}
+		ByteBuffer memory = ByteBuffer.allocateDirect(size * slotSize);
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			memory.limit((i + 1) * slotSize).position(i * slotSize);
+			slots[i] = new Slot(i, memory.slice());
+		}
+		this.mask = size - 1;
+		this.discard = ByteBuffer.allocateDirect(slotSize);
+		this.decoder = decoder;
+		this.channel = DatagramChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, DEFAULT_RECEIVE_BUFFER);
+			channel.bind(address);
+			channel.configureBlocking(false);
+			this.selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.receiver = new Thread(this::receiveLoop, "datagram-receiver");
+		for (int i = 0; i < threads; i++) {
+			decoders.add(new Thread(this::decodeLoop, "datagram-decoder-" + i));
+		}
+		decoders.forEach(Thread::start);
+		receiver.start();
+	}
+
+	public InetSocketAddress getLocalAddress() throws IOException {
+		return (InetSocketAddress) channel.getLocalAddress();
+	}
+
+	/**
+	 * 接收线程读到的数据报个数，含被丢弃的
+	 */
+	public long received() {
+		return received.sum();
+	}
+
+	public long decoded() {
+		return decoded.sum();
+	}
+
+	/**
+	 * 解码器抛出异常的次数
+	 */
+	public long errors() {
+		return errors.sum();
+	}
+
+	public long ringDrops() {
+		return ringDrops.sum();
+	}
+
+	public long truncated() {
+		return truncated.sum();
+	}
+
+	/**
+	 * 内核丢弃的数据报个数，不支持时返回-1
+	 */
+	public long kernelDrops() {
+		try {
+			return kernelDrops(getLocalAddress().getPort());
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * 本机绑定在port上的UDP套接字被内核丢弃的数据报个数，读取Linux的/proc/net/udp(6)，不支持时返回-1
+	 */
+	public static long kernelDrops(int port) {
+		long drops = -1;
+		try {
+			for (String file : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+				Path path = Paths.get(file);
+				if (!Files.isReadable(path)) {
+					continue;
+				}
+				for (String line : Files.readAllLines(path)) {
+					// sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ref pointer drops
+					String[] fields = line.trim().split("\\s+");
+					if (fields.length >= 13 && fields[1].contains(":")
+							&& Integer.parseInt(fields[1].substring(fields[1].lastIndexOf(':') + 1), 16) == port) {
+						drops = Math.max(drops, 0) + Long.parseLong(fields[12]);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			return -1;
+		}
+		return drops;
+	}
+
+	/**
+	 * 停止接收，已进入环形缓冲区的数据报解码完后返回
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			receiver.join();
+			for (Thread thread : decoders) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		selector.close();
+		channel.close();
+	}
+
+	private void receiveLoop() {
+		try {
+			while (running) {
+				if (selector.select() == 0) {
+					continue;
+				}
+				selector.selectedKeys().clear();
+				drain();
+			}
+		} catch (IOException e) {
+			if (running) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 读空内核缓冲区：写入head处的槽位并发布；槽位未交还（环形缓冲区已满）时读出丢弃
+	 */
+	private void drain() throws IOException {
+		while (true) {
+			Slot slot = slots[(int) head & mask];
+			if (slot.sequence.get() != head) {
+				discard.clear();
+				if (channel.receive(discard) == null) {
+					return;
+				}
+				received.increment();
+				ringDrops.increment();
+				continue;
+			}
+			ByteBuffer buffer = slot.buffer;
+			buffer.clear();
+			SocketAddress source = channel.receive(buffer);
+			if (source == null) {
+				return;
+			}
+			received.increment();
+			if (!buffer.hasRemaining()) {
+				truncated.increment();
+			}
+			buffer.flip();
+			slot.source = source;
+			slot.sequence.lazySet(head + 1);
+			head++;
+		}
+	}
+
+	private void decodeLoop() {
+		int idle = 0;
+		while (true) {
+			long pos = tail.get();
+			Slot slot = slots[(int) pos & mask];
+			long sequence = slot.sequence.get();
+			if (sequence == pos + 1) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					try {
+						decoder.decode(slot.source, slot.buffer);
+						decoded.increment();
+					} catch (Exception e) {
+						errors.increment();
+					}
+					slot.source = null;
+					slot.sequence.lazySet(pos + slots.length);
+					idle = 0;
+				}
+			} else if (sequence <= pos) {
+				// 空：接收线程已退出且没有待解码的数据报时结束
+				if (!running && !receiver.isAlive() && tail.get() == pos && slot.sequence.get() <= pos) {
+					return;
+				}
+				if (++idle < 100) {
+					continue;
+				} else if (idle < 200) {
+					Thread.yield();
+				} else {
+					LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+				}
+			}
+		}
+	}
+}
@@ -1,16 +1,26 @@
 package com.java.net;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
 import java.net.MulticastSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.IntStream;
 
 import org.junit.Test;
@@ -152,4 +162,198 @@ public class DatagramSocket_ {
 			});
 		}
 	}
+
+	/**
+	 * 高速率接收：发送线程全速发送packets个64字节的数据报（前8字节为序号），对比
+	 * 		server1方式：DatagramSocket.receive()，每个包新建byte[1024]和DatagramPacket，在接收线程中解码
+	 * 		DatagramReceiver：批量读入直接内存环形缓冲区，解码线程并行解码
+	 * 	解码用work次整数运算模拟（-Dbench.work，默认200），-Dbench.packets默认1000000
+	 * 	两者SO_RCVBUF相同（4M）；丢包 = 发送数 - 解码数，分别列出环形缓冲区和内核丢弃的个数
+	 * 	解码线程数为CPU数，单核机器上并行解码没有收益，差别主要来自批量读取和不分配内存
+	 */
+	@Test
+	public void batchedReceiver() throws Exception {
+		int packets = Integer.getInteger("bench.packets", 1000000), work = Integer.getInteger("bench.work", 200);
+		int threads = Runtime.getRuntime().availableProcessors();
+		LongAdder checksum = new LongAdder();
+		for (int round = 0; round < 2; round++) {
+			Thread reader;
+			try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+				socket.setReceiveBufferSize(DatagramReceiver.DEFAULT_RECEIVE_BUFFER);
+				LongAdder decoded = new LongAdder();
+				reader = new Thread(() -> {
+					try {
+						while (true) {
+							byte[] data = new byte[1024];
+							DatagramPacket packet = new DatagramPacket(data, data.length);
+							socket.receive(packet);
+							checksum.add(decode(ByteBuffer.wrap(data, 0, packet.getLength()), work));
+							decoded.increment();
+						}
+					} catch (IOException e) {
+						// close()
+					}
+				});
+				reader.start();
+				long begin = System.nanoTime();
+				blast(socket.getLocalSocketAddress(), packets);
+				long cost = awaitQuiet(decoded) - begin;
+				System.out.printf("DatagramSocket.receive()：发送%d，解码%d，%dms，%.0f个/秒，丢失%.1f%%（内核丢弃%d）%n", packets, decoded.sum(),
+						cost / 1000000, decoded.sum() * 1e9 / cost, (packets - decoded.sum()) * 100.0 / packets,
+						DatagramReceiver.kernelDrops(socket.getLocalPort()));
+			}
+			// try-with-resources关闭socket后，receive()抛出SocketException，接收线程退出
+			reader.join();
+			
+			LongAdder decoded = new LongAdder();
+			try (DatagramReceiver receiver = new DatagramReceiver(new InetSocketAddress("127.0.0.1", 0), 16384, 2048, threads,
+					(source, datagram) -> {
+						checksum.add(decode(datagram, work));
+						decoded.increment();
+					})) {
+				long begin = System.nanoTime();
+				blast(receiver.getLocalAddress(), packets);
+				long cost = awaitQuiet(decoded) - begin;
+				System.out.printf("DatagramReceiver（%d个解码线程）：发送%d，解码%d，%dms，%.0f个/秒，丢失%.1f%%（环形缓冲区丢弃%d，内核丢弃%d）%n",
+						threads, packets, decoded.sum(), cost / 1000000, decoded.sum() * 1e9 / cost,
+						(packets - decoded.sum()) * 100.0 / packets, receiver.ringDrops(), receiver.kernelDrops());
+			}
+		}
+		System.out.println("checksum=" + checksum.sum());
+	}
+	
+	/**
+	 * ReliableMulticast与N个TCP连接逐个发送对比：同一组消息分发给N个接收方
+	 * 	-Dbench.receivers默认20，-Dbench.messages默认20000（每条1K），-Dbench.loss接收方模拟丢包率默认0.01
+	 * 	-Dbench.rate组播发送速率默认20MB/s：超过接收方的处理能力时内核丢包，NACK和重传反而增加
+	 * 	发送方CPU为发送线程的CPU时间（ThreadMXBean）；回环接口上内核把组播报文复制给各接收方的开销也记在发送线程上
+	 * 	每个接收方检查序号连续、全部收到
+	 */
+	@Test
+	public void reliableMulticast() throws Exception {
+		int receivers = Integer.getInteger("bench.receivers", 20), messages = Integer.getInteger("bench.messages", 20000);
+		double loss = Double.parseDouble(System.getProperty("bench.loss", "0.01"));
+		long rate = Long.getLong("bench.rate", 20 << 20);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		ByteBuffer payload = ByteBuffer.allocate(1024);
+		
+		InetSocketAddress group = new InetSocketAddress("239.255.10.19", 45619);
+		NetworkInterface nif = ReliableMulticast.loopback();
+		List<ReliableMulticast.Receiver> list = new ArrayList<>();
+		LongAdder outOfOrder = new LongAdder();
+		try (ReliableMulticast.Sender sender = new ReliableMulticast.Sender(group, nif, 8192, rate)) {
+			for (int i = 0; i < receivers; i++) {
+				long[] last = {-1};
+				ReliableMulticast.Receiver receiver = new ReliableMulticast.Receiver(group, nif, 8192, 20, (seq, data) -> {
+					if (seq <= last[0]) {
+						outOfOrder.increment();
+					}
+					last[0] = seq;
+				});
+				receiver.simulateLoss(loss);
+				list.add(receiver);
+			}
+			long begin = System.nanoTime(), cpu = threads.getCurrentThreadCpuTime();
+			for (int i = 0; i < messages; i++) {
+				payload.clear();
+				payload.putInt(0, i);
+				sender.publish(payload);
+			}
+			cpu = threads.getCurrentThreadCpuTime() - cpu;
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			while (list.stream().anyMatch(r -> r.delivered() + r.lost() < messages) && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			long cost = System.nanoTime() - begin;
+			System.out.printf("组播：%d个接收方×%d条，%.0fMB/s，%dms，发送线程CPU %dms，NACK %d，重传%d，LOST %d%n", receivers, messages,
+					rate / 1048576.0, cost / 1000000, cpu / 1000000, sender.nacks(), sender.retransmitted(), sender.lost());
+			for (ReliableMulticast.Receiver r : list) {
+				if (r.delivered() != messages) {
+					System.out.printf("	接收方交付%d，修复%d，丢失%d，重复%d%n", r.delivered(), r.repaired(), r.lost(), r.duplicates());
+				}
+			}
+			System.out.printf("	交付%d，其中修复%d，乱序交付%d%n", list.stream().mapToLong(ReliableMulticast.Receiver::delivered).sum(),
+					list.stream().mapToLong(ReliableMulticast.Receiver::repaired).sum(), outOfOrder.sum());
+		} finally {
+			for (ReliableMulticast.Receiver r : list) {
+				r.close();
+			}
+		}
+		
+		try (ServerSocket server = new ServerSocket(0, receivers, InetAddress.getLoopbackAddress())) {
+			LongAdder received = new LongAdder();
+			List<Socket> sockets = new ArrayList<>();
+			for (int i = 0; i < receivers; i++) {
+				sockets.add(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+				Socket accepted = server.accept();
+				new Thread(() -> {
+					byte[] buffer = new byte[64 << 10];
+					try (Socket s = accepted) {
+						int n;
+						while ((n = s.getInputStream().read(buffer)) > 0) {
+							received.add(n);
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}).start();
+			}
+			long begin = System.nanoTime(), cpu = threads.getCurrentThreadCpuTime();
+			for (int i = 0; i < messages; i++) {
+				payload.putInt(0, i);
+				for (Socket socket : sockets) {
+					socket.getOutputStream().write(payload.array());
+				}
+			}
+			cpu = threads.getCurrentThreadCpuTime() - cpu;
+			long expected = (long) receivers * messages * payload.capacity();
+			while (received.sum() < expected) {
+				Thread.sleep(10);
+			}
+			System.out.printf("TCP：%d个连接×%d条，%dms，发送线程CPU %dms%n", receivers, messages, (System.nanoTime() - begin) / 1000000,
+					cpu / 1000000);
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+	
+	/**
+	 * 模拟解码：读序号，再做work次整数运算
+	 */
+	private static long decode(ByteBuffer datagram, int work) {
+		long h = datagram.getLong(datagram.position());
+		for (int i = 0; i < work; i++) {
+			h = h * 31 + i;
+		}
+		return h;
+	}
+	
+	private static void blast(SocketAddress target, int packets) throws IOException {
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			channel.connect(target);
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+			for (long seq = 0; seq < packets; seq++) {
+				buffer.clear();
+				buffer.putLong(0, seq);
+				channel.write(buffer);
+			}
+		}
+	}
+	
+	/**
+	 * 等待计数在200ms内不再变化，返回最后一次变化的时间
+	 */
+	private static long awaitQuiet(LongAdder counter) throws InterruptedException {
+		long last = -1, changed = System.nanoTime();
+		while (System.nanoTime() - changed < TimeUnit.MILLISECONDS.toNanos(200)) {
+			long n = counter.sum();
+			if (n != last) {
+				last = n;
+				changed = System.nanoTime();
+			}
+			Thread.sleep(5);
+		}
+		return changed;
+	}
 }
@@ -0,0 +1,84 @@
+package com.java.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * EchoLoad：非阻塞回显客户端负载，比较各种服务端实现时共用（ServerSocket_、AsynchronousChannel_）
+ *
+ * 	一个Selector驱动全部连接，客户端自身只有一个线程，连接数不受客户端线程数限制
+ * 	每个连接：发送MESSAGE_SIZE字节，读回同样多的字节为一次往返，rounds次后关闭；TCP_NODELAY
+ * 	客户端和服务端在同一进程时，需要两倍连接数的文件描述符（ulimit -n）
+ *
+ * @author nerv
+ *
+ */
+public class EchoLoad {
+
+	/** 每次往返的字节数 */
+	public static final int MESSAGE_SIZE = 64;
+
+	/**
+	 * 同时发起connections个连接，每个连接回显rounds次后关闭
+	 * @return 每个连接从发起到完成的耗时（纳秒），按完成顺序
+	 */
+	public static long[] run(InetSocketAddress address, int connections, int rounds) throws IOException {
+		class Client {
+			final ByteBuffer buffer = ByteBuffer.allocate(MESSAGE_SIZE);
+			final long begin = System.nanoTime();
+			int round;
+		}
+		long[] latency = new long[connections];
+		int done = 0;
+		try (Selector selector = Selector.open()) {
+			for (int i = 0; i < connections; i++) {
+				SocketChannel channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.connect(address);
+				channel.register(selector, SelectionKey.OP_CONNECT, new Client());
+			}
+			while (done < connections) {
+				selector.select();
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					SocketChannel channel = (SocketChannel) key.channel();
+					Client client = (Client) key.attachment();
+					if (key.isConnectable()) {
+						channel.finishConnect();
+						key.interestOps(SelectionKey.OP_WRITE);
+					} else if (key.isWritable()) {
+						channel.write(client.buffer);
+						if (!client.buffer.hasRemaining()) {
+							client.buffer.clear();
+							key.interestOps(SelectionKey.OP_READ);
+						}
+					} else if (key.isReadable()) {
+						if (channel.read(client.buffer) == -1) {
+							throw new EOFException("服务端关闭了连接");
+						}
+						if (!client.buffer.hasRemaining()) {
+							client.buffer.clear();
+							if (++client.round == rounds) {
+								latency[done++] = System.nanoTime() - client.begin;
+								channel.close();
+							} else {
+								key.interestOps(SelectionKey.OP_WRITE);
+							}
+						}
+					}
+				}
+			}
+		}
+		return latency;
+	}
+}
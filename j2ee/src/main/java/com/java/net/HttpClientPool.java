@@ -0,0 +1,798 @@
+package com.java.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.nio.ByteBufferPool;
+
+/**
+ * HttpClientPool：基于SocketChannel的HTTP/1.1客户端，按主机维护keep-alive连接池
+ *
+ * 	HttpURLConnection_每次请求创建新的HttpURLConnection，连接的建立（TCP握手）占了内部调用的大部分耗时
+ * 	线程模型：一个IO线程（Reactor），全部连接的连接、读写、解析都在其中进行，连接池状态只由IO线程访问
+ * 		send()在调用线程中解析主机地址，把请求放入提交队列后wakeup()，立即返回CompletableFuture
+ * 		future在IO线程中完成，其回调也在IO线程中执行，回调中不能阻塞等待其它请求（可以继续send()）
+ * 	连接池：每个主机最多maxConnectionsPerHost个连接
+ * 		请求优先分配给空闲连接，其次在允许管线化时追加到在途请求最少的连接，都没有时新建连接，达到上限则排队
+ * 		管线化（pipelineDepth > 1）：同一连接上不等响应连续发送多个请求，响应按请求顺序返回
+ * 			只管线化幂等请求（GET/HEAD/PUT/DELETE/OPTIONS），非幂等请求只在连接空闲时发送
+ * 		空闲连接超过idleTimeout后关闭（每秒检查一次）；服务端关闭的空闲连接在读到-1时移除
+ * 		响应为HTTP/1.0或带Connection: close时，收完该响应后关闭连接，其后已管线化发出的请求重新排队
+ * 		连接在有在途请求时断开（如服务端恰好关闭了keep-alive连接）：尚未收到响应数据的幂等请求重试一次，其余失败
+ * 	响应解析：增量解析状态行、头部、Content-Length/chunked/读到关闭为止的响应体，数据可分多次到达
+ * 		每个连接一个池化的读缓冲区（ByteBufferPool），连接关闭时归还
+ * 		send(request, handler)：响应体按到达的片段交给BodyHandler，片段是读缓冲区的视图，不复制、不累积
+ * 		send(request)：响应体累积为byte[]
+ *
+ * @author nerv
+ *
+ */
+public class HttpClientPool implements Closeable {
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+	public static final long DEFAULT_IDLE_TIMEOUT = 30_000;
+	/** 每个连接的读缓冲区，也是状态行、头部单行的最大长度 */
+	static final int READ_BUFFER = 16 << 10;
+	static final int MAX_GATHER = 16;
+
+	/**
+	 * 流式接收响应体，在IO线程中调用
+	 */
+	public interface BodyHandler {
+		/**
+		 * @param chunk	响应体的一个片段，只在调用期间有效
+		 */
+		void onChunk(ByteBuffer chunk) throws IOException;
+	}
+
+	/**
+	 * 请求，只支持http
+	 */
+	public static final class Request {
+		final String method;
+		final URI uri;
+		final Map<String, String> headers = new LinkedHashMap<>();
+		final byte[] body;
+
+		public Request(String method, URI uri, byte[] body) {
+			if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+				throw new IllegalArgumentException("只支持http：" + uri);
+			}
+			this.method = method.toUpperCase(Locale.ROOT);
+			this.uri = uri;
+			this.body = body;
+		}
+
+		public static Request get(String url) {
+			return new Request("GET", URI.create(url), null);
+		}
+
+		public static Request post(String url, String contentType, byte[] body) {
+			return new Request("POST", URI.create(url), body).header("Content-Type", contentType);
+		}
+
+		public Request header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		boolean idempotent() {
+			switch (method) {
+			case "GET":
+			case "HEAD":
+			case "PUT":
+			case "DELETE":
+			case "OPTIONS":
+				return true;
+			default:
+				return false;
+			}
+		}
+
+		InetSocketAddress address() {
+			return new InetSocketAddress(uri.getHost(), uri.getPort() == -1 ? 80 : uri.getPort());
+		}
+
+		ByteBuffer encode() {
+			StringBuilder sb = new StringBuilder(128);
+			String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+			sb.append(method).append(' ').append(path);
+			if (uri.getRawQuery() != null) {
+				sb.append('?').append(uri.getRawQuery());
+			}
+			sb.append(" HTTP/1.1\r\nHost: ").append(uri.getHost());
+			if (uri.getPort() != -1) {
+				sb.append(':').append(uri.getPort());
+			}
+			sb.append("\r\n");
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+			if (body != null || "POST".equals(method) || "PUT".equals(method)) {
+				sb.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+			}
+			sb.append("\r\n");
+			byte[] head = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+			ByteBuffer buffer = ByteBuffer.allocate(head.length + (body == null ? 0 : body.length));
+			buffer.put(head);
+			if (body != null) {
+				buffer.put(body);
+			}
+			buffer.flip();
+			return buffer;
+		}
+	}
+
+	/**
+	 * 响应，头部名称为小写
+	 */
+	public static final class Response {
+		private final int status;
+		private final Map<String, String> headers;
+		private final byte[] body;
+
+		Response(int status, Map<String, String> headers, byte[] body) {
+			this.status = status;
+			this.headers = Collections.unmodifiableMap(headers);
+			this.body = body;
+		}
+
+		public int status() {
+			return status;
+		}
+
+		public String header(String name) {
+			return headers.get(name.toLowerCase(Locale.ROOT));
+		}
+
+		public Map<String, String> headers() {
+			return headers;
+		}
+
+		/**
+		 * 响应体，使用BodyHandler时为null
+		 */
+		public byte[] body() {
+			return body;
+		}
+	}
+
+	private final int maxConnectionsPerHost;
+	private final int pipelineDepth;
+	private final long idleTimeoutNanos;
+	private final Selector selector;
+	private final Thread io;
+	private final Queue<Exchange> submissions = new ConcurrentLinkedQueue<>();
+	private final ByteBufferPool pool = new ByteBufferPool();
+	private final LongAdder opened = new LongAdder();
+	private final LongAdder evicted = new LongAdder();
+	/** 只由IO线程访问 */
+	private final Map<InetSocketAddress, Host> hosts = new HashMap<>();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private volatile boolean running = true;
+
+	public HttpClientPool() throws IOException {
+		this(DEFAULT_MAX_CONNECTIONS, 1, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * @param maxConnectionsPerHost	每个主机的最大连接数
+	 * @param pipelineDepth			每个连接的最大在途请求数，1表示不管线化
+	 * @param idleTimeout			空闲连接的保持时间（毫秒）
+	 */
+	public HttpClientPool(int maxConnectionsPerHost, int pipelineDepth, long idleTimeout) throws IOException {
+		if (maxConnectionsPerHost <= 0 || pipelineDepth <= 0 || idleTimeout <= 0) {
+			throw new IllegalArgumentException("maxConnectionsPerHost=" + maxConnectionsPerHost + "，pipelineDepth=" + pipelineDepth
+					+ "，idleTimeout=" + idleTimeout);
+		}
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.pipelineDepth = pipelineDepth;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+		this.selector = Selector.open();
+		this.io = new Thread(this::loop, "http-client-io");
+		io.setDaemon(true);
+		io.start();
+	}
+
+	/**
+	 * 异步发送，响应体累积为byte[]
+	 */
+	public CompletableFuture<Response> send(Request request) {
+		return send(request, null);
+	}
+
+	/**
+	 * 异步发送，响应体交给handler，返回的Response不含响应体
+	 */
+	public CompletableFuture<Response> send(Request request, BodyHandler handler) {
+		Exchange exchange = new Exchange(request, handler);
+		if (!running) {
+			exchange.future.completeExceptionally(new IOException("HttpClientPool已关闭"));
+			return exchange.future;
+		}
+		exchange.address = request.address();
+		if (exchange.address.isUnresolved()) {
+			exchange.future.completeExceptionally(new UnknownHostException(request.uri.getHost()));
+			return exchange.future;
+		}
+		submissions.add(exchange);
+		selector.wakeup();
+		return exchange.future;
+	}
+
+	/**
+	 * 同步发送
+	 */
+	public Response execute(Request request) throws IOException, InterruptedException {
+		try {
+			return send(request).get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		}
+	}
+
+	/**
+	 * 累计建立的连接数
+	 */
+	public long connectionsOpened() {
+		return opened.sum();
+	}
+
+	/**
+	 * 因空闲超时关闭的连接数
+	 */
+	public long connectionsEvicted() {
+		return evicted.sum();
+	}
+
+	/**
+	 * 关闭全部连接，未完成的请求失败
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			io.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void loop() {
+		long nextEviction = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		IOException cause = new IOException("HttpClientPool已关闭");
+		try {
+			while (running) {
+				selector.select(1000);
+				Exchange exchange;
+				while ((exchange = submissions.poll()) != null) {
+					Host host = hosts.computeIfAbsent(exchange.address, Host::new);
+					host.waiting.add(exchange);
+					dispatch(host);
+				}
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (!key.isValid()) {
+							// 本轮中已被关闭，如收到Connection: close
+							continue;
+						}
+						if (key.isConnectable()) {
+							connection.finishConnect();
+						}
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (IOException e) {
+						connection.close(e, connection.connected);
+					}
+				}
+				long now = System.nanoTime();
+				if (now >= nextEviction) {
+					evictIdle(now);
+					nextEviction = now + TimeUnit.SECONDS.toNanos(1);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			cause = e;
+		} finally {
+			for (Host host : hosts.values()) {
+				for (Connection connection : new ArrayList<>(host.connections)) {
+					connection.close(cause, false);
+				}
+				for (Exchange exchange : host.waiting) {
+					exchange.future.completeExceptionally(cause);
+				}
+			}
+			Exchange exchange;
+			while ((exchange = submissions.poll()) != null) {
+				exchange.future.completeExceptionally(cause);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 把排队的请求分配给连接
+	 */
+	private void dispatch(Host host) {
+		while (!host.waiting.isEmpty()) {
+			Exchange next = host.waiting.peek();
+			Connection connection = pick(host, next.request.idempotent());
+			if (connection == null) {
+				if (host.connections.size() >= maxConnectionsPerHost) {
+					return;
+				}
+				try {
+					connection = new Connection(host);
+				} catch (IOException e) {
+					// 无法建立连接，本主机排队的请求全部失败
+					for (Exchange exchange : host.waiting) {
+						exchange.future.completeExceptionally(e);
+					}
+					host.waiting.clear();
+					return;
+				}
+			}
+			host.waiting.poll();
+			connection.assign(next);
+		}
+	}
+
+	/**
+	 * 优先空闲连接，其次在途请求最少、可以管线化的连接
+	 */
+	private Connection pick(Host host, boolean idempotent) {
+		Connection best = null;
+		for (Connection connection : host.connections) {
+			if (connection.closing) {
+				continue;
+			}
+			int inflight = connection.inflight.size();
+			if (inflight == 0) {
+				return connection;
+			}
+			if (idempotent && inflight < pipelineDepth && connection.inflight.peekLast().request.idempotent()
+					&& (best == null || inflight < best.inflight.size())) {
+				best = connection;
+			}
+		}
+		return best;
+	}
+
+	private void evictIdle(long now) {
+		for (Host host : hosts.values()) {
+			for (Connection connection : new ArrayList<>(host.connections)) {
+				if (connection.inflight.isEmpty() && connection.connected && now - connection.idleSince >= idleTimeoutNanos) {
+					evicted.increment();
+					connection.close(null, false);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 一个主机的连接和排队的请求
+	 */
+	private final class Host {
+		final InetSocketAddress address;
+		final ArrayDeque<Exchange> waiting = new ArrayDeque<>();
+		final List<Connection> connections = new ArrayList<>();
+
+		Host(InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	/**
+	 * 一次请求-响应
+	 */
+	private static final class Exchange {
+		final Request request;
+		final BodyHandler handler;
+		final CompletableFuture<Response> future = new CompletableFuture<>();
+		InetSocketAddress address;
+		boolean retried;
+		/** 已收到响应数据，不能再重试 */
+		boolean started;
+
+		Exchange(Request request, BodyHandler handler) {
+			this.request = request;
+			this.handler = handler;
+		}
+	}
+
+	private enum State {
+		STATUS, HEADERS, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE
+	}
+
+	/**
+	 * 一个连接：在途请求按发送顺序排列，响应依次对应队首
+	 */
+	private final class Connection {
+		final Host host;
+		final SocketChannel channel;
+		final SelectionKey key;
+		final ByteBuffer in = pool.acquire(READ_BUFFER);
+		final ArrayDeque<Exchange> inflight = new ArrayDeque<>();
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+		boolean connected;
+		boolean closed;
+		/** 收完当前响应后关闭，不再分配请求 */
+		boolean closing;
+		long idleSince = System.nanoTime();
+
+		// 当前响应的解析状态
+		State state = State.STATUS;
+		final StringBuilder line = new StringBuilder();
+		/** line是上一次readLine()读完的一行，下次读取前清空 */
+		boolean lineComplete;
+		int status;
+		boolean keepAlive;
+		Map<String, String> headers;
+		long remaining;
+		ByteArrayOutputStream body;
+		byte[] copy;
+
+		Connection(Host host) throws IOException {
+			this.host = host;
+			this.channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+				connected = channel.connect(host.address);
+				key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+			} catch (IOException e) {
+				channel.close();
+				pool.release(in);
+				throw e;
+			}
+			host.connections.add(this);
+			opened.increment();
+		}
+
+		void assign(Exchange exchange) {
+			inflight.add(exchange);
+			out.add(exchange.request.encode());
+			if (connected) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		void finishConnect() throws IOException {
+			channel.finishConnect();
+			connected = true;
+			key.interestOps(SelectionKey.OP_READ | (out.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+
+		/**
+		 * 聚集写出待发送的请求，发送缓冲区满时保留OP_WRITE等待下一次
+		 */
+		void flush() throws IOException {
+			while (!out.isEmpty()) {
+				int n = 0;
+				for (ByteBuffer buffer : out) {
+					gather[n++] = buffer;
+					if (n == MAX_GATHER) {
+						break;
+					}
+				}
+				long written = channel.write(gather, 0, n);
+				Arrays.fill(gather, 0, n, null);
+				while (!out.isEmpty() && !out.peek().hasRemaining()) {
+					out.poll();
+				}
+				if (written == 0 || !out.isEmpty() && out.peek().position() > 0) {
+					return;
+				}
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		void read() throws IOException {
+			int n = channel.read(in);
+			in.flip();
+			while (!closed && parse()) {
+			}
+			if (closed) {
+				return;
+			}
+			// 行和响应体都已从缓冲区取走，compact()只是重置
+			in.compact();
+			if (n == -1) {
+				if (state == State.UNTIL_CLOSE) {
+					complete();
+				}
+				close(new IOException("服务端关闭了连接"), true);
+			}
+		}
+
+		/**
+		 * 解析读缓冲区，返回true表示有进展，可以继续
+		 */
+		private boolean parse() throws IOException {
+			switch (state) {
+			case STATUS:
+				if (!readLine()) {
+					return false;
+				}
+				if (inflight.isEmpty()) {
+					throw new IOException("没有请求时收到响应：" + line);
+				}
+				inflight.peek().started = true;
+				String[] parts = line.toString().split(" ", 3);
+				if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+					throw new IOException("状态行格式错误：" + line);
+				}
+				try {
+					status = Integer.parseInt(parts[1]);
+				} catch (NumberFormatException e) {
+					throw new IOException("状态行格式错误：" + line);
+				}
+				keepAlive = !"HTTP/1.0".equals(parts[0]);
+				headers = new LinkedHashMap<>();
+				state = State.HEADERS;
+				return true;
+			case HEADERS:
+				if (!readLine()) {
+					return false;
+				}
+				if (line.length() == 0) {
+					headersDone();
+					return true;
+				}
+				int colon = line.indexOf(":");
+				if (colon <= 0) {
+					throw new IOException("头部格式错误：" + line);
+				}
+				String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+				headers.merge(name, line.substring(colon + 1).trim(), (a, b) -> a + ", " + b);
+				return true;
+			case LENGTH:
+			case CHUNK_DATA:
+				if (!in.hasRemaining()) {
+					return false;
+				}
+				int n = (int) Math.min(remaining, in.remaining());
+				deliver(n);
+				remaining -= n;
+				if (remaining == 0) {
+					if (state == State.LENGTH) {
+						complete();
+					} else {
+						state = State.CHUNK_END;
+					}
+				}
+				return true;
+			case CHUNK_SIZE:
+				if (!readLine()) {
+					return false;
+				}
+				int semicolon = line.indexOf(";");
+				String size = (semicolon < 0 ? line.toString() : line.substring(0, semicolon)).trim();
+				try {
+					remaining = Long.parseLong(size, 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("chunk大小格式错误：" + line);
+				}
+				state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+				return true;
+			case CHUNK_END:
+				if (!readLine()) {
+					return false;
+				}
+				state = State.CHUNK_SIZE;
+				return true;
+			case TRAILERS:
+				if (!readLine()) {
+					return false;
+				}
+				if (line.length() == 0) {
+					complete();
+				}
+				return true;
+			case UNTIL_CLOSE:
+				if (in.hasRemaining()) {
+					deliver(in.remaining());
+				}
+				return false;
+			default:
+				throw new IllegalStateException(String.valueOf(state));
+			}
+		}
+
+		/**
+		 * 读一行到line（不含CRLF），行不完整时已读部分保留在line中，下次继续
+		 */
+		private boolean readLine() throws IOException {
+			if (lineComplete) {
+				line.setLength(0);
+				lineComplete = false;
+			}
+			while (in.hasRemaining()) {
+				char c = (char) (in.get() & 0xFF);
+				if (c == '\n') {
+					int end = line.length();
+					if (end > 0 && line.charAt(end - 1) == '\r') {
+						line.setLength(end - 1);
+					}
+					lineComplete = true;
+					return true;
+				}
+				if (line.length() >= READ_BUFFER) {
+					throw new IOException("状态行或头部超过" + READ_BUFFER + "字节");
+				}
+				line.append(c);
+			}
+			return false;
+		}
+
+		/**
+		 * 头部读完：确定是否保持连接和响应体的长度
+		 */
+		private void headersDone() throws IOException {
+			if (status >= 100 && status < 200) {
+				// 100 Continue等中间响应，继续等待最终响应
+				state = State.STATUS;
+				return;
+			}
+			Exchange exchange = inflight.peek();
+			String connection = headers.get("connection");
+			if (connection != null) {
+				String value = connection.toLowerCase(Locale.ROOT);
+				if (value.contains("close")) {
+					keepAlive = false;
+				} else if (value.contains("keep-alive")) {
+					keepAlive = true;
+				}
+			}
+			boolean empty = "HEAD".equals(exchange.request.method) || status == 204 || status == 304;
+			String transferEncoding = headers.get("transfer-encoding");
+			boolean chunked = transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked");
+			String contentLength = headers.get("content-length");
+			if (!empty && !chunked && contentLength == null) {
+				// 没有长度，读到连接关闭为止
+				keepAlive = false;
+			}
+			closing |= !keepAlive;
+			if (exchange.handler == null) {
+				body = new ByteArrayOutputStream();
+			}
+			if (empty) {
+				complete();
+			} else if (chunked) {
+				state = State.CHUNK_SIZE;
+			} else if (contentLength != null) {
+				try {
+					remaining = Long.parseLong(contentLength.trim());
+				} catch (NumberFormatException e) {
+					throw new IOException("Content-Length格式错误：" + contentLength);
+				}
+				state = State.LENGTH;
+				if (remaining == 0) {
+					complete();
+				}
+			} else {
+				state = State.UNTIL_CLOSE;
+			}
+		}
+
+		/**
+		 * 交付读缓冲区中接下来的n字节响应体：BodyHandler得到缓冲区的视图，否则复制到body
+		 */
+		private void deliver(int n) throws IOException {
+			Exchange exchange = inflight.peek();
+			if (exchange.handler == null) {
+				if (copy == null) {
+					copy = new byte[in.capacity()];
+				}
+				in.get(copy, 0, n);
+				body.write(copy, 0, n);
+				return;
+			}
+			int limit = in.limit();
+			in.limit(in.position() + n);
+			ByteBuffer chunk = in.slice();
+			in.position(in.limit());
+			in.limit(limit);
+			try {
+				exchange.handler.onChunk(chunk);
+			} catch (RuntimeException e) {
+				throw new IOException(e);
+			}
+		}
+
+		private void complete() {
+			Exchange exchange = inflight.poll();
+			Response response = new Response(status, headers, body == null ? null : body.toByteArray());
+			state = State.STATUS;
+			headers = null;
+			body = null;
+			if (inflight.isEmpty()) {
+				idleSince = System.nanoTime();
+			}
+			exchange.future.complete(response);
+			if (closing) {
+				close(null, true);
+			} else {
+				dispatch(host);
+			}
+		}
+
+		/**
+		 * 关闭连接，在途请求重新排队或失败
+		 * @param cause	在途请求失败的原因，null表示按Connection: close正常关闭
+		 * @param retry	是否重新排队尚未收到响应数据的幂等请求
+		 */
+		void close(IOException cause, boolean retry) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			host.connections.remove(this);
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			pool.release(in);
+			IOException failure = cause != null ? cause : new IOException("连接已关闭");
+			Iterator<Exchange> iterator = inflight.descendingIterator();
+			while (iterator.hasNext()) {
+				Exchange exchange = iterator.next();
+				if (retry && running && !exchange.started && exchange.request.idempotent() && (cause == null || !exchange.retried)) {
+					// Connection: close之后的请求服务端没有处理，总是重新排队；连接异常断开时只重试一次
+					exchange.retried |= cause != null;
+					host.waiting.addFirst(exchange);
+				} else {
+					exchange.future.completeExceptionally(failure);
+				}
+			}
+			inflight.clear();
+			if (running) {
+				dispatch(host);
+			}
+		}
+	}
+}
@@ -0,0 +1,927 @@
+package com.java.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HttpServer：基于Selector的嵌入式HTTP/1.1服务端，用于健康检查、指标、文件下载，也作为客户端基准测试的本地替身
+ *
+ * 	线程模型：一个IO线程（Reactor），接收连接、读取、解析、写出都在其中进行；路由处理器在执行器（工作线程池）中执行
+ * 		处理器完成后把响应编码为字节（状态行、头部、响应体在同一个缓冲区中），提交任务给IO线程写出
+ * 		执行器为null时处理器直接在IO线程中执行，只适合不阻塞的简单处理器
+ * 	请求解析：增量解析，数据可分多次到达，每个连接一个读缓冲区（READ_BUFFER，也是请求行和头部的最大长度）
+ * 		记录已扫描的位置，不完整的行在下次读取后从上次的位置继续查找换行，不重复扫描
+ * 		只支持带Content-Length的请求体（最大maxBody字节）；Transfer-Encoding的请求返回501并关闭连接
+ * 	keep-alive：HTTP/1.1默认保持连接，请求带Connection: close时响应后关闭；HTTP/1.0只在带Connection: keep-alive时保持
+ * 		空闲超过idleTimeout的连接关闭（每秒检查一次）
+ * 	管线化：一个连接上连续到达的多个请求同时分派给执行器，可以乱序完成，按请求顺序写出响应
+ * 		每个连接最多maxPipeline个未写完的请求，达到时暂停读取（关闭OP_READ），已读到的请求留在读缓冲区中，响应写出后继续解析
+ * 		已完成的相邻响应用一次聚集写write(ByteBuffer[])写出
+ * 	Date头：每秒最多格式化一次，各线程共用不可变的缓存
+ * 	静态文件：files()按前缀映射目录，在工作线程中打开文件，IO线程用FileChannel.transferTo()写出（Linux上为sendfile，不经过用户空间）
+ * 		socket发送缓冲区已满时transferTo()返回0，打开OP_WRITE后从已写出的位置继续
+ *
+ * @author nerv
+ *
+ */
+public class HttpServer implements Closeable {
+
+	/** 每个连接的读缓冲区，也是请求行和头部的最大长度 */
+	static final int READ_BUFFER = 16 << 10;
+	static final int MAX_GATHER = 16;
+	static final int MAX_HEADERS = 100;
+	public static final int DEFAULT_MAX_BODY = 1 << 20;
+	public static final int DEFAULT_MAX_PIPELINE = 16;
+	public static final long DEFAULT_IDLE_TIMEOUT = 30_000;
+
+	private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+			.withZone(ZoneOffset.UTC);
+	private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+	static {
+		CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+		CONTENT_TYPES.put("txt", "text/plain; charset=UTF-8");
+		CONTENT_TYPES.put("css", "text/css");
+		CONTENT_TYPES.put("js", "application/javascript");
+		CONTENT_TYPES.put("json", "application/json");
+		CONTENT_TYPES.put("xml", "application/xml");
+		CONTENT_TYPES.put("png", "image/png");
+		CONTENT_TYPES.put("jpg", "image/jpeg");
+		CONTENT_TYPES.put("gif", "image/gif");
+	}
+
+	/**
+	 * 路由处理器，在执行器中调用
+	 */
+	public interface Handler {
+		Response handle(Request request) throws Exception;
+	}
+
+	/**
+	 * 请求，头部名称为小写
+	 */
+	public static final class Request {
+		final String method;
+		final String target;
+		final String version;
+		final Map<String, String> headers;
+		final byte[] body;
+
+		Request(String method, String target, String version, Map<String, String> headers, byte[] body) {
+			this.method = method;
+			this.target = target;
+			this.version = version;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		public String method() {
+			return method;
+		}
+
+		/**
+		 * 请求行中的目标，含查询串
+		 */
+		public String target() {
+			return target;
+		}
+
+		public String path() {
+			int query = target.indexOf('?');
+			return query < 0 ? target : target.substring(0, query);
+		}
+
+		/**
+		 * 查询串，没有时为null
+		 */
+		public String query() {
+			int query = target.indexOf('?');
+			return query < 0 ? null : target.substring(query + 1);
+		}
+
+		public String version() {
+			return version;
+		}
+
+		public String header(String name) {
+			return headers.get(name.toLowerCase(Locale.ROOT));
+		}
+
+		public Map<String, String> headers() {
+			return Collections.unmodifiableMap(headers);
+		}
+
+		public byte[] body() {
+			return body;
+		}
+	}
+
+	/**
+	 * 响应：响应体为byte[]或文件，Content-Length、Date、Connection由服务端设置
+	 */
+	public static final class Response {
+		final int status;
+		final Map<String, String> headers = new LinkedHashMap<>();
+		final byte[] body;
+		final Path file;
+
+		private Response(int status, byte[] body, Path file) {
+			this.status = status;
+			this.body = body;
+			this.file = file;
+		}
+
+		public static Response ok(String text) {
+			return ok(text.getBytes(StandardCharsets.UTF_8), "text/plain; charset=UTF-8");
+		}
+
+		public static Response ok(byte[] body, String contentType) {
+			return new Response(200, body, null).header("Content-Type", contentType);
+		}
+
+		/**
+		 * 响应体为状态的原因短语
+		 */
+		public static Response status(int status) {
+			return new Response(status, reason(status).getBytes(StandardCharsets.ISO_8859_1), null).header("Content-Type",
+					"text/plain; charset=UTF-8");
+		}
+
+		/**
+		 * 文件在工作线程中打开，不存在时响应404
+		 */
+		public static Response file(Path file) {
+			String name = file.getFileName().toString();
+			String type = CONTENT_TYPES.get(name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT));
+			return new Response(200, null, file).header("Content-Type", type == null ? "application/octet-stream" : type);
+		}
+
+		public Response header(String name, String value) {
+			headers.put(name, value);
+			return this;
+		}
+
+		public int status() {
+			return status;
+		}
+	}
+
+	/**
+	 * Date头的缓存，不可变，每秒替换一次
+	 */
+	private static final class CachedDate {
+		final long second;
+		final String value;
+
+		CachedDate(long second) {
+			this.second = second;
+			this.value = DATE_FORMAT.format(Instant.ofEpochSecond(second));
+		}
+	}
+
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final Thread thread;
+	private final Executor executor;
+	private final boolean ownsExecutor;
+	/** 路由，start()之前配置：路径 -> 方法 -> 处理器 */
+	private final Map<String, Map<String, Handler>> routes = new HashMap<>();
+	/** 前缀路由，最长的前缀在前 */
+	private final List<Map.Entry<String, Handler>> prefixes = new ArrayList<>();
+	/** 其它线程提交给IO线程的任务：写出已完成的响应 */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final LongAdder requests = new LongAdder();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+	private volatile CachedDate date = new CachedDate(System.currentTimeMillis() / 1000);
+	private volatile boolean running = true;
+	/** IO线程已退出并关闭全部连接，之后execute()的任务由调用线程执行 */
+	private volatile boolean stopped;
+	private int maxBody = DEFAULT_MAX_BODY;
+	private int maxPipeline = DEFAULT_MAX_PIPELINE;
+	private long idleTimeout = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT);
+	/** 本轮select()返回的时间 */
+	private long now = System.nanoTime();
+
+	/**
+	 * 处理器在每个CPU一个线程的工作线程池中执行
+	 */
+	public HttpServer(InetSocketAddress address) throws IOException {
+		this(address, newWorkers(Runtime.getRuntime().availableProcessors()), true);
+	}
+
+	/**
+	 * @param executor	执行处理器，由调用方关闭；null表示在IO线程中执行
+	 */
+	public HttpServer(InetSocketAddress address, Executor executor) throws IOException {
+		this(address, executor, false);
+	}
+
+	private HttpServer(InetSocketAddress address, Executor executor, boolean ownsExecutor) throws IOException {
+		this.executor = executor;
+		this.ownsExecutor = ownsExecutor;
+		this.server = ServerSocketChannel.open();
+		server.bind(address, 1024);
+		server.configureBlocking(false);
+		this.selector = Selector.open();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		this.thread = new Thread(this::loop, "http-io");
+	}
+
+	private static ExecutorService newWorkers(int threads) {
+		AtomicInteger ids = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "http-worker-" + ids.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * 精确匹配路径的路由，在start()之前调用；GET的处理器也处理HEAD（不发送响应体）
+	 */
+	public HttpServer route(String method, String path, Handler handler) {
+		routes.computeIfAbsent(path, p -> new HashMap<>()).put(method.toUpperCase(Locale.ROOT), handler);
+		return this;
+	}
+
+	/**
+	 * 按前缀匹配的路由，精确匹配的路由优先，在start()之前调用
+	 */
+	public HttpServer prefix(String prefix, Handler handler) {
+		prefixes.add(new AbstractMap.SimpleImmutableEntry<>(prefix, handler));
+		prefixes.sort((a, b) -> b.getKey().length() - a.getKey().length());
+		return this;
+	}
+
+	/**
+	 * 静态文件：prefix之后的路径映射到root下的文件，只支持GET/HEAD，不能访问root以外的文件
+	 */
+	public HttpServer files(String prefix, Path root) {
+		Path base = root.toAbsolutePath().normalize();
+		return prefix(prefix, request -> {
+			if (!"GET".equals(request.method()) && !"HEAD".equals(request.method())) {
+				return Response.status(405).header("Allow", "GET, HEAD");
+			}
+			Path file = base.resolve(request.path().substring(prefix.length())).normalize();
+			if (!file.startsWith(base) || !Files.isRegularFile(file)) {
+				return Response.status(404);
+			}
+			return Response.file(file);
+		});
+	}
+
+	/**
+	 * 设置限制，在start()之前调用
+	 * @param maxBody		请求体的最大字节数，超过时响应413
+	 * @param maxPipeline	每个连接未写完的请求数上限，达到时暂停读取
+	 * @param idleTimeout	没有未完成请求的连接空闲超过此时间后关闭
+	 */
+	public HttpServer limits(int maxBody, int maxPipeline, long idleTimeout, TimeUnit unit) {
+		if (maxBody < 0 || maxPipeline <= 0 || idleTimeout <= 0) {
+			throw new IllegalArgumentException("maxBody=" + maxBody + "，maxPipeline=" + maxPipeline + "，idleTimeout=" + idleTimeout);
+		}
+		this.maxBody = maxBody;
+		this.maxPipeline = maxPipeline;
+		this.idleTimeout = unit.toNanos(idleTimeout);
+		return this;
+	}
+
+	public HttpServer start() {
+		thread.start();
+		return this;
+	}
+
+	/**
+	 * 实际绑定的地址，端口为0时可用于获取系统分配的端口
+	 */
+	public InetSocketAddress getLocalAddress() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	/**
+	 * 已解析的请求数
+	 */
+	public long requests() {
+		return requests.sum();
+	}
+
+	/**
+	 * 当前打开的连接数
+	 */
+	public int connections() {
+		return connections.get();
+	}
+
+	/**
+	 * 停止接收，关闭全部连接；自建的工作线程池随之关闭
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (ownsExecutor) {
+				((ExecutorService) executor).shutdown();
+			}
+			// 未start()时由这里关闭，否则IO线程退出时已关闭
+			server.close();
+			selector.close();
+		}
+	}
+
+	/**
+	 * 当前秒的Date头，跨秒时由第一个发现的线程重新格式化
+	 */
+	String date() {
+		CachedDate cached = date;
+		long second = System.currentTimeMillis() / 1000;
+		if (cached.second != second) {
+			date = cached = new CachedDate(second);
+		}
+		return cached.value;
+	}
+
+	/**
+	 * 在IO线程中执行任务
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		if (stopped) {
+			// IO线程已退出：连接均已关闭，任务（complete()）只会关闭响应打开的文件
+			runTasks();
+		} else if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void loop() {
+		long lastSweep = now;
+		try {
+			while (running) {
+				selector.select(1000);
+				now = System.nanoTime();
+				runTasks();
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					if (!key.isValid()) {
+						// 本轮中已被关闭，如执行任务时写出响应遇到连接重置
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (IOException e) {
+						// 客户端断开或连接异常，只关闭该连接
+						connection.close();
+					}
+				}
+				if (now - lastSweep >= TimeUnit.SECONDS.toNanos(1)) {
+					lastSweep = now;
+					for (SelectionKey key : selector.keys()) {
+						Connection connection = (Connection) key.attachment();
+						if (connection != null && connection.pending.isEmpty() && now - connection.lastActive > idleTimeout) {
+							connection.close();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() != null) {
+					((Connection) key.attachment()).close();
+				}
+			}
+			// 退出后才完成的工作线程任务由execute()自行执行；已排队的在这里执行，关闭其中打开的文件
+			stopped = true;
+			runTasks();
+			try {
+				server.close();
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 接收全部待接收的连接；单个连接设置失败时只关闭该连接，accept()本身失败（如文件描述符耗尽）时等下一轮再试
+	 */
+	private void accept() {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			if (channel == null) {
+				return;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				Connection connection = new Connection(channel);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				connections.incrementAndGet();
+			} catch (IOException e) {
+				// 客户端已断开等，只关闭该连接
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 查找路由并执行处理器，处理器的异常响应500
+	 */
+	private Response handle(Request request) {
+		try {
+			Map<String, Handler> methods = routes.get(request.path());
+			if (methods != null) {
+				Handler handler = methods.get(request.method());
+				if (handler == null && "HEAD".equals(request.method())) {
+					handler = methods.get("GET");
+				}
+				if (handler == null) {
+					return Response.status(405).header("Allow", String.join(", ", methods.keySet()));
+				}
+				return handler.handle(request);
+			}
+			for (Map.Entry<String, Handler> prefix : prefixes) {
+				if (request.path().startsWith(prefix.getKey())) {
+					return prefix.getValue().handle(request);
+				}
+			}
+			return Response.status(404);
+		} catch (Exception e) {
+			e.printStackTrace();
+			return Response.status(500);
+		}
+	}
+
+	static String reason(int status) {
+		switch (status) {
+		case 200: return "OK";
+		case 204: return "No Content";
+		case 400: return "Bad Request";
+		case 404: return "Not Found";
+		case 405: return "Method Not Allowed";
+		case 413: return "Payload Too Large";
+		case 431: return "Request Header Fields Too Large";
+		case 500: return "Internal Server Error";
+		case 501: return "Not Implemented";
+		case 503: return "Service Unavailable";
+		case 505: return "HTTP Version Not Supported";
+		default: return "Status " + status;
+		}
+	}
+
+	/**
+	 * 一个请求及其响应
+	 * 		head		状态行、头部和byte[]响应体
+	 * 		file		文件响应体，[position, end)为未写出的部分
+	 * 		ready		响应已编码，只由IO线程访问；工作线程编码后通过execute()交给IO线程，任务队列保证可见性
+	 */
+	final class Exchange {
+		final Request request;
+		final boolean close;
+		ByteBuffer head;
+		FileChannel file;
+		long position, end;
+		boolean ready;
+
+		Exchange(Request request, boolean close) {
+			this.request = request;
+			this.close = close;
+		}
+
+		void encode(Response response) {
+			boolean bodyless = request != null && "HEAD".equals(request.method) || response.status == 204 || response.status == 304;
+			long length = response.body == null ? 0 : response.body.length;
+			if (response.file != null) {
+				try {
+					file = FileChannel.open(response.file, StandardOpenOption.READ);
+					length = end = file.size();
+				} catch (NoSuchFileException e) {
+					encode(Response.status(404));
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+					encode(Response.status(500));
+					return;
+				}
+				if (bodyless) {
+					closeFile();
+				}
+			}
+			StringBuilder sb = new StringBuilder(128);
+			sb.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+			sb.append("Date: ").append(date()).append("\r\n");
+			for (Map.Entry<String, String> header : response.headers.entrySet()) {
+				sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+			if (response.status != 204 && response.status != 304) {
+				sb.append("Content-Length: ").append(length).append("\r\n");
+			}
+			if (close) {
+				sb.append("Connection: close\r\n");
+			} else if (request != null && "HTTP/1.0".equals(request.version)) {
+				sb.append("Connection: keep-alive\r\n");
+			}
+			sb.append("\r\n");
+			int bodyLength = bodyless || response.body == null ? 0 : response.body.length;
+			head = ByteBuffer.allocate(sb.length() + bodyLength);
+			for (int i = 0; i < sb.length(); i++) {
+				head.put((byte) sb.charAt(i));
+			}
+			if (bodyLength > 0) {
+				head.put(response.body);
+			}
+			head.flip();
+		}
+
+		void closeFile() {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				file = null;
+			}
+		}
+	}
+
+	private enum State {
+		REQUEST_LINE, HEADERS, BODY
+	}
+
+	/**
+	 * 一个客户端连接，只由IO线程访问
+	 * 		in			读缓冲区，两次读取之间处于写模式，未解析的数据从0开始
+	 * 		scanned		未解析的数据中已查找过换行的长度
+	 * 		pending		按请求顺序的未写完的请求
+	 * 		paused		未写完的请求达到maxPipeline，暂停读取和解析
+	 * 		closing		已收到要求关闭的请求（或已响应错误），不再解析，写完后关闭
+	 */
+	final class Connection {
+		final SocketChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+		final ArrayDeque<Exchange> pending = new ArrayDeque<>();
+		SelectionKey key;
+		long lastActive = now;
+		int scanned;
+		boolean paused, closing, writing, closed;
+		// 正在解析的请求
+		State state = State.REQUEST_LINE;
+		String method, target, version;
+		Map<String, String> headers;
+		byte[] body;
+		int bodyRead;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() throws IOException {
+			if (channel.read(in) < 0) {
+				close();
+				return;
+			}
+			lastActive = now;
+			parse();
+			flush();
+		}
+
+		/**
+		 * 解析读缓冲区中的完整请求并分派，不完整的部分留到下次读取
+		 */
+		void parse() {
+			in.flip();
+			try {
+				while (!closing) {
+					if (pending.size() >= maxPipeline) {
+						paused = true;
+						return;
+					}
+					paused = false;
+					if (state == State.BODY) {
+						int n = Math.min(in.remaining(), body.length - bodyRead);
+						in.get(body, bodyRead, n);
+						bodyRead += n;
+						if (bodyRead < body.length) {
+							return;
+						}
+						dispatch();
+						continue;
+					}
+					int eol = -1;
+					byte[] array = in.array();
+					for (int i = in.position() + scanned; i < in.limit(); i++) {
+						if (array[i] == '\n') {
+							eol = i;
+							break;
+						}
+					}
+					if (eol < 0) {
+						scanned = in.remaining();
+						if (in.remaining() == in.capacity()) {
+							reject(431);
+						}
+						return;
+					}
+					int length = eol - in.position();
+					if (length > 0 && array[eol - 1] == '\r') {
+						length--;
+					}
+					String line = new String(array, in.position(), length, StandardCharsets.ISO_8859_1);
+					in.position(eol + 1);
+					scanned = 0;
+					if (state == State.REQUEST_LINE) {
+						requestLine(line);
+					} else {
+						header(line);
+					}
+				}
+			} finally {
+				in.compact();
+			}
+		}
+
+		private void requestLine(String line) {
+			if (line.isEmpty()) {
+				return;	// 请求之间多余的空行
+			}
+			String[] parts = line.split(" ");
+			if (parts.length != 3 || parts[0].isEmpty() || !parts[1].startsWith("/") && !"*".equals(parts[1])) {
+				reject(400);
+				return;
+			}
+			if (!"HTTP/1.1".equals(parts[2]) && !"HTTP/1.0".equals(parts[2])) {
+				reject(505);
+				return;
+			}
+			method = parts[0];
+			target = parts[1];
+			version = parts[2];
+			headers = new HashMap<>();
+			state = State.HEADERS;
+		}
+
+		private void header(String line) {
+			if (!line.isEmpty()) {
+				int colon = line.indexOf(':');
+				if (colon <= 0) {
+					reject(400);
+				} else if (headers.size() >= MAX_HEADERS) {
+					reject(431);
+				} else {
+					headers.merge(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim(),
+							(a, b) -> a + ", " + b);
+				}
+				return;
+			}
+			if (headers.containsKey("transfer-encoding")) {
+				reject(501);
+				return;
+			}
+			int length = 0;
+			String contentLength = headers.get("content-length");
+			if (contentLength != null) {
+				try {
+					long l = Long.parseLong(contentLength);
+					if (l < 0) {
+						throw new NumberFormatException(contentLength);
+					}
+					if (l > maxBody) {
+						reject(413);
+						return;
+					}
+					length = (int) l;
+				} catch (NumberFormatException e) {
+					reject(400);
+					return;
+				}
+			}
+			body = new byte[length];
+			bodyRead = 0;
+			state = State.BODY;
+		}
+
+		/**
+		 * 请求已完整，交给执行器
+		 */
+		private void dispatch() {
+			String connection = headers.get("connection");
+			boolean close = "HTTP/1.0".equals(version) ? !"keep-alive".equalsIgnoreCase(connection)
+					: connection != null && "close".equalsIgnoreCase(connection);
+			Exchange exchange = new Exchange(new Request(method, target, version, headers, body), close);
+			state = State.REQUEST_LINE;
+			headers = null;
+			body = null;
+			pending.add(exchange);
+			closing = close;
+			requests.increment();
+			if (executor == null) {
+				exchange.encode(handle(exchange.request));
+				exchange.ready = true;
+				return;
+			}
+			try {
+				executor.execute(() -> {
+					exchange.encode(handle(exchange.request));
+					execute(() -> complete(exchange));
+				});
+			} catch (RejectedExecutionException e) {
+				exchange.encode(Response.status(503));
+				exchange.ready = true;
+			}
+		}
+
+		/**
+		 * 响应错误并关闭连接，之后的数据不再解析
+		 */
+		private void reject(int status) {
+			Exchange exchange = new Exchange(null, true);
+			exchange.encode(Response.status(status));
+			exchange.ready = true;
+			pending.add(exchange);
+			closing = true;
+			state = State.REQUEST_LINE;
+		}
+
+		private void complete(Exchange exchange) {
+			if (closed) {
+				exchange.closeFile();
+				return;
+			}
+			exchange.ready = true;
+			try {
+				flush();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * 按请求顺序写出已完成的响应，遇到未完成的请求或socket发送缓冲区已满时停止
+		 */
+		void flush() throws IOException {
+			boolean full = false;
+			write:
+			while (true) {
+				int n = 0;
+				long requested = 0;
+				for (Exchange exchange : pending) {
+					if (!exchange.ready || n == MAX_GATHER) {
+						break;
+					}
+					if (exchange.head.hasRemaining()) {
+						gather[n++] = exchange.head;
+						requested += exchange.head.remaining();
+					}
+					if (exchange.file != null) {
+						break;	// 文件在其响应头之后单独写出
+					}
+				}
+				if (n > 0) {
+					long written = channel.write(gather, 0, n);
+					Arrays.fill(gather, 0, n, null);
+					lastActive = now;
+					full = written < requested;
+				}
+				while (!pending.isEmpty()) {
+					Exchange exchange = pending.peek();
+					if (!exchange.ready) {
+						break;
+					}
+					if (exchange.head.hasRemaining()) {
+						if (full) {
+							break write;
+						}
+						continue write;
+					}
+					if (exchange.file != null) {
+						long sent = exchange.file.transferTo(exchange.position, exchange.end - exchange.position, channel);
+						if (sent == 0 && exchange.position >= exchange.file.size()) {
+							// 文件在写出过程中被截断：Content-Length已发出，transferTo()会一直返回0，关闭连接而不是保持OP_WRITE空转
+							throw new IOException("文件已被截断");
+						}
+						exchange.position += sent;
+						lastActive = now;
+						if (exchange.position < exchange.end) {
+							full = sent == 0;
+							if (full) {
+								break write;
+							}
+							continue write;
+						}
+						exchange.closeFile();
+					}
+					pending.poll();
+					if (exchange.close) {
+						close();
+						return;
+					}
+				}
+				full = false;
+				// 管线化暂停时已读到的请求留在读缓冲区中，有空位后继续解析；处理器在IO线程中执行时新的响应已就绪，继续写出
+				if (paused && pending.size() < maxPipeline) {
+					parse();
+					if (!pending.isEmpty() && pending.peek().ready) {
+						continue;
+					}
+				}
+				break;
+			}
+			int ops = (closing || paused ? 0 : SelectionKey.OP_READ) | (full ? SelectionKey.OP_WRITE : 0);
+			if (key.interestOps() != ops) {
+				key.interestOps(ops);
+			}
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			connections.decrementAndGet();
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			for (Exchange exchange : pending) {
+				if (exchange.ready) {
+					exchange.closeFile();
+				}
+			}
+			pending.clear();
+		}
+	}
+}
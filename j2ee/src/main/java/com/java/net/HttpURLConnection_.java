@@ -1,5 +1,7 @@
 package com.java.net;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -7,7 +9,25 @@ import java.io.InputStreamReader;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
 
 /**
  * =================== HttpURLConnection ===================
@@ -125,4 +145,215 @@ public class HttpURLConnection_ {
 		}
     	return null;
     }
+
+	/**
+	 * 对比：每次新建连接 vs JDK自带的keep-alive vs HttpClientPool（不管线化/管线化），本地替身服务端
+	 * 		替身服务端：BlockingServer，每个连接一个线程，按顺序读请求、写响应（天然支持管线化），固定返回1K响应体
+	 * 			/chunked返回chunked编码的响应体；请求带Connection: close时响应后关闭
+	 * 		HttpURLConnection：concurrency个线程各自循环请求；HttpClientPool：保持concurrency个在途请求
+	 * 		最后检查chunked流式接收和空闲连接回收
+	 * 	-Dbench.requests=请求数，默认20000
+	 */
+	@Test
+	public void keepAlivePool() throws Exception {
+		int requests = Integer.getInteger("bench.requests", 20000), concurrency = 16;
+		try (BlockingServer server = new BlockingServer(new InetSocketAddress("127.0.0.1", 0), BlockingServer.Mode.UNBOUNDED, 0,
+				HttpURLConnection_::standIn)) {
+			String url = "http://127.0.0.1:" + server.getLocalAddress().getPort() + "/hello";
+			for (int round = 0; round < 2; round++) {
+				long begin = System.nanoTime();
+				urlConnections(url, requests, concurrency, true);
+				report("HttpURLConnection，每次新建连接", requests, begin, -1);
+				
+				begin = System.nanoTime();
+				urlConnections(url, requests, concurrency, false);
+				report("HttpURLConnection，JDK keep-alive", requests, begin, -1);
+				
+				for (int depth : new int[] {1, 8}) {
+					pooled("HttpClientPool，", url, requests, concurrency, depth);
+				}
+			}
+			
+			try (HttpClientPool pool = new HttpClientPool(4, 1, 500)) {
+				LongAdder streamed = new LongAdder();
+				HttpClientPool.Response response = pool.send(HttpClientPool.Request.get(url.replace("/hello", "/chunked")),
+						chunk -> streamed.add(chunk.remaining())).get();
+				System.out.printf("chunked：状态%d，Transfer-Encoding=%s，流式收到%d字节%n", response.status(),
+						response.header("Transfer-Encoding"), streamed.sum());
+				Thread.sleep(2000);
+				System.out.printf("空闲500ms后：建立%d个连接，回收%d个%n", pool.connectionsOpened(), pool.connectionsEvicted());
+			}
+		}
+	}
+	
+	/**
+	 * HttpServer作为替身服务端：与BlockingServer（每个连接一个线程）对比，负载同keepAlivePool()中的HttpClientPool
+	 * 		HttpServer：一个IO线程解析、写出，/hello的处理器在工作线程池中执行，管线化的请求同时处理、按顺序响应
+	 * 		最后检查静态文件（transferTo）、HEAD、404、Date头和Connection: close
+	 * 	-Dbench.requests=请求数，默认20000
+	 */
+	@Test
+	public void httpServer() throws Exception {
+		int requests = Integer.getInteger("bench.requests", 20000), concurrency = 16;
+		byte[] hello = new byte[1024];
+		Arrays.fill(hello, (byte) 'x');
+		Path root = Files.createTempDirectory("http");
+		byte[] content = new byte[4 << 20];
+		new Random(1).nextBytes(content);
+		Path file = Files.write(root.resolve("data.bin"), content);
+		try (BlockingServer blocking = new BlockingServer(new InetSocketAddress("127.0.0.1", 0), BlockingServer.Mode.UNBOUNDED, 0,
+				HttpURLConnection_::standIn);
+				HttpServer server = new HttpServer(new InetSocketAddress("127.0.0.1", 0))
+						.route("GET", "/hello", request -> HttpServer.Response.ok(hello, "text/plain"))
+						.files("/static/", root).start()) {
+			String base = "http://127.0.0.1:" + server.getLocalAddress().getPort();
+			for (int round = 0; round < 2; round++) {
+				for (int depth : new int[] {1, 8}) {
+					pooled("BlockingServer，", "http://127.0.0.1:" + blocking.getLocalAddress().getPort() + "/hello", requests,
+							concurrency, depth);
+					pooled("HttpServer，", base + "/hello", requests, concurrency, depth);
+				}
+			}
+			
+			try (HttpClientPool pool = new HttpClientPool()) {
+				HttpClientPool.Response response = pool.execute(HttpClientPool.Request.get(base + "/static/data.bin"));
+				System.out.printf("静态文件：状态%d，%d字节，%s，Date: %s%n", response.status(), response.body().length,
+						Arrays.equals(content, response.body()) ? "内容一致" : "内容不一致", response.header("Date"));
+				response = pool.execute(new HttpClientPool.Request("HEAD", URI.create(base + "/static/data.bin"), null));
+				System.out.printf("HEAD：状态%d，Content-Length=%s，响应体%d字节%n", response.status(), response.header("Content-Length"),
+						response.body().length);
+				System.out.printf("404：/static/../%s -> %d，/missing -> %d%n", file.getFileName(),
+						pool.execute(HttpClientPool.Request.get(base + "/static/../" + file.getFileName())).status(),
+						pool.execute(HttpClientPool.Request.get(base + "/missing")).status());
+				response = pool.execute(HttpClientPool.Request.get(base + "/hello").header("Connection", "close"));
+				System.out.printf("Connection: close：状态%d，Connection=%s%n", response.status(), response.header("Connection"));
+			}
+			System.out.printf("HttpServer：处理%d个请求%n", server.requests());
+		} finally {
+			Files.delete(file);
+			Files.delete(root);
+		}
+	}
+	
+	/**
+	 * HttpClientPool保持concurrency个在途请求：depth为1时concurrency个连接，否则2个连接、每个连接管线化depth个
+	 */
+	private static void pooled(String name, String url, int requests, int concurrency, int depth) throws Exception {
+		try (HttpClientPool pool = new HttpClientPool(depth == 1 ? concurrency : 2, depth, 30_000)) {
+			long begin = System.nanoTime();
+			Semaphore window = new Semaphore(concurrency);
+			AtomicInteger failed = new AtomicInteger();
+			for (int i = 0; i < requests; i++) {
+				window.acquire();
+				pool.send(HttpClientPool.Request.get(url)).whenComplete((response, e) -> {
+					if (e != null || response.status() != 200 || response.body().length != 1024) {
+						failed.incrementAndGet();
+					}
+					window.release();
+				});
+			}
+			window.acquire(concurrency);
+			report(name + (depth == 1 ? concurrency + "个连接" : "2个连接、管线化深度" + depth), requests, begin, pool.connectionsOpened());
+			if (failed.get() > 0) {
+				throw new IllegalStateException(failed.get() + "个请求失败");
+			}
+		}
+	}
+	
+	private static void report(String name, int requests, long begin, long connections) {
+		long cost = System.nanoTime() - begin;
+		System.out.printf("%-40s %d次请求，%dms，%.0f次/秒%s%n", name, requests, cost / 1000000, requests * 1e9 / cost,
+				connections < 0 ? "" : "，建立" + connections + "个连接");
+	}
+	
+	private static void urlConnections(String url, int requests, int concurrency, boolean close) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+		List<Future<?>> futures = new ArrayList<>();
+		byte[] buffer = new byte[8192];
+		for (int t = 0; t < concurrency; t++) {
+			futures.add(executor.submit(() -> {
+				byte[] b = buffer.clone();
+				for (int i = 0; i < requests / concurrency; i++) {
+					HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+					if (close) {
+						con.setRequestProperty("Connection", "close");
+					}
+					// 读完响应体并close()，连接才能放回JDK的keep-alive缓存
+					try (InputStream in = con.getInputStream()) {
+						while (in.read(b) != -1) {
+						}
+					}
+				}
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+	}
+	
+	/**
+	 * 替身服务端：HTTP/1.1 keep-alive，只支持带Content-Length的请求体
+	 */
+	private static void standIn(Socket socket) throws IOException {
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+		byte[] body = new byte[1024];
+		Arrays.fill(body, (byte) 'x');
+		while (true) {
+			String requestLine = readLine(in);
+			if (requestLine == null) {
+				return;
+			}
+			int contentLength = 0;
+			boolean close = false;
+			String line;
+			while ((line = readLine(in)) != null && !line.isEmpty()) {
+				String lower = line.toLowerCase();
+				if (lower.startsWith("content-length:")) {
+					contentLength = Integer.parseInt(lower.substring(15).trim());
+				} else if (lower.startsWith("connection:") && lower.contains("close")) {
+					close = true;
+				}
+			}
+			for (int i = 0; i < contentLength; i++) {
+				in.read();
+			}
+			String connection = close ? "Connection: close\r\n" : "";
+			if (requestLine.startsWith("GET /chunked")) {
+				out.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n" + connection + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				for (int size : new int[] {100, 5000, 70000}) {
+					out.write((Integer.toHexString(size) + ";ext=1\r\n").getBytes(StandardCharsets.ISO_8859_1));
+					for (int i = 0; i < size; i++) {
+						out.write('c');
+					}
+					out.write("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				}
+				out.write("0\r\nX-Trailer: t\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			} else {
+				out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length + "\r\n" + connection + "\r\n")
+						.getBytes(StandardCharsets.ISO_8859_1));
+				out.write(body);
+			}
+			// 管线化的后续请求已到达时暂不flush，一起写出
+			if (close || in.available() == 0) {
+				out.flush();
+			}
+			if (close) {
+				return;
+			}
+		}
+	}
+	
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1 && c != '\n') {
+			if (c != '\r') {
+				sb.append((char) c);
+			}
+		}
+		return c == -1 && sb.length() == 0 ? null : sb.toString();
+	}
 }
@@ -0,0 +1,263 @@
+package com.java.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import com.java.util.LatencyHistogram;
+
+/**
+ * LoopbackBenchmark：回环地址上的Socket选项基准，一次run()测量一组选项的往返延迟和单向吞吐
+ *
+ * 	Socket_.test10_1/test10_2用Wireshark手工观察Nagle算法，这里把同样的问题变成可重复的测量
+ * 	选项
+ * 		noDelay		TCP_NODELAY，客户端与服务端相同
+ * 		bufferSize	SO_SNDBUF/SO_RCVBUF，0表示系统默认；服务端的SO_RCVBUF在bind()前设置，大于64K时才能协商窗口扩大
+ * 		flush		见FlushPolicy
+ * 		messageSize	每条消息的内容字节数，帧格式为4字节长度 + 内容
+ * 	测量
+ * 		延迟：请求-响应，服务端原样返回，每次往返记录到LatencyHistogram（纳秒）
+ * 		吞吐：客户端连续发送，最后发送长度-1，服务端回复收到的总字节数，按总耗时计算
+ * 		两个阶段各有时间上限，Nagle与延迟ACK叠加时每次往返可达40ms，到达上限即停止，样本数会少于指定值
+ *
+ * @author nerv
+ *
+ */
+public class LoopbackBenchmark {
+
+	/**
+	 * 客户端的写出方式
+	 */
+	public enum FlushPolicy {
+		/** 直接写SocketOutputStream，帧头和内容分两次write()：write-write-read，Nagle算法会等待第一段的ACK */
+		UNBUFFERED,
+		/** BufferedOutputStream，每条消息flush()一次，一条消息一次write() */
+		PER_MESSAGE,
+		/** BufferedOutputStream，吞吐阶段只在缓冲区满时写出；延迟阶段必须等响应，与PER_MESSAGE相同 */
+		BATCH
+	}
+
+	/**
+	 * 一组选项的结果
+	 */
+	public static final class Result {
+		/** 往返延迟，纳秒 */
+		public final LatencyHistogram latency;
+		/** 吞吐阶段发送的消息数和耗时 */
+		public final long messages;
+		public final long nanos;
+		public final long bytes;
+
+		Result(LatencyHistogram latency, long messages, long bytes, long nanos) {
+			this.latency = latency;
+			this.messages = messages;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		public double megabytesPerSecond() {
+			return bytes * 1e9 / nanos / (1 << 20);
+		}
+
+		public double messagesPerSecond() {
+			return messages * 1e9 / nanos;
+		}
+	}
+
+	private static final int ECHO = 'E', STREAM = 'S';
+
+	private final boolean noDelay;
+	private final int bufferSize;
+	private final FlushPolicy flush;
+	private final int messageSize;
+
+	public LoopbackBenchmark(boolean noDelay, int bufferSize, FlushPolicy flush, int messageSize) {
+		if (bufferSize < 0 || messageSize <= 0) {
+			throw new IllegalArgumentException("bufferSize=" + bufferSize + "，messageSize=" + messageSize);
+		}
+		this.noDelay = noDelay;
+		this.bufferSize = bufferSize;
+		this.flush = flush;
+		this.messageSize = messageSize;
+	}
+
+	/**
+	 * @param rounds		延迟阶段的往返次数，之前另有rounds / 10次预热
+	 * @param streamBytes	吞吐阶段发送的字节数
+	 * @param maxNanos		每个阶段的时间上限
+	 */
+	public Result run(int rounds, long streamBytes, long maxNanos) throws IOException {
+		try (ServerSocket server = new ServerSocket()) {
+			if (bufferSize > 0) {
+				server.setReceiveBufferSize(bufferSize);
+			}
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			Thread acceptor = new Thread(() -> accept(server), "loopback-acceptor");
+			acceptor.setDaemon(true);
+			acceptor.start();
+			InetSocketAddress address = (InetSocketAddress) server.getLocalSocketAddress();
+			LatencyHistogram latency = new LatencyHistogram();
+			try (Socket socket = connect(address)) {
+				echo(socket, rounds / 10, rounds, latency, maxNanos);
+			}
+			try (Socket socket = connect(address)) {
+				return stream(socket, latency, Math.max(1, streamBytes / messageSize), maxNanos);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("noDelay=%-5s 缓冲区=%-6s flush=%-11s 大小=%d", noDelay, bufferSize == 0 ? "默认" : (bufferSize >> 10) + "K",
+				flush, messageSize);
+	}
+
+	private Socket connect(InetSocketAddress address) throws IOException {
+		Socket socket = new Socket();
+		configure(socket);
+		socket.connect(address);
+		return socket;
+	}
+
+	private void configure(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(noDelay);
+		if (bufferSize > 0) {
+			socket.setSendBufferSize(bufferSize);
+			socket.setReceiveBufferSize(bufferSize);
+		}
+	}
+
+	/**
+	 * 请求-响应，前warmup次不记录；预热最多占用maxNanos的1/10，避免Nagle的40ms停顿耗尽全部时间
+	 */
+	private void echo(Socket socket, int warmup, int rounds, LatencyHistogram histogram, long maxNanos) throws IOException {
+		Writer writer = new Writer(socket.getOutputStream());
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 << 10));
+		byte[] payload = new byte[messageSize];
+		long begin = System.nanoTime(), warmupDeadline = begin + maxNanos / 10, deadline = begin + maxNanos;
+		writer.out.write(ECHO);
+		for (int i = 0; i < warmup && System.nanoTime() < warmupDeadline; i++) {
+			roundTrip(writer, in, payload);
+		}
+		for (int i = 0; i < rounds && System.nanoTime() < deadline; i++) {
+			long start = System.nanoTime();
+			roundTrip(writer, in, payload);
+			histogram.record(System.nanoTime() - start);
+		}
+		writer.end();
+	}
+
+	private void roundTrip(Writer writer, DataInputStream in, byte[] payload) throws IOException {
+		writer.write(payload);
+		writer.out.flush();
+		int length = in.readInt();
+		in.readFully(payload, 0, length);
+	}
+
+	private Result stream(Socket socket, LatencyHistogram latency, long messages, long maxNanos) throws IOException {
+		Writer writer = new Writer(socket.getOutputStream());
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+		byte[] payload = new byte[messageSize];
+		long begin = System.nanoTime(), deadline = begin + maxNanos, sent = 0;
+		writer.out.write(STREAM);
+		while (sent < messages && System.nanoTime() < deadline) {
+			writer.write(payload);
+			if (flush == FlushPolicy.PER_MESSAGE) {
+				writer.out.flush();
+			}
+			sent++;
+		}
+		writer.end();
+		long bytes = in.readLong();
+		if (bytes != sent * messageSize) {
+			throw new IllegalStateException("发送" + sent * messageSize + "字节，服务端收到" + bytes);
+		}
+		return new Result(latency, sent, bytes, System.nanoTime() - begin);
+	}
+
+	/**
+	 * 按FlushPolicy写帧
+	 */
+	private final class Writer {
+		final OutputStream out;
+		final byte[] header = new byte[4];
+
+		Writer(OutputStream socketOut) {
+			// 缓冲区至少容纳一条消息，PER_MESSAGE才是一条消息一次write()
+			this.out = flush == FlushPolicy.UNBUFFERED ? socketOut
+					: new BufferedOutputStream(socketOut, Math.max(64 << 10, messageSize + header.length));
+		}
+
+		void write(byte[] payload) throws IOException {
+			// 不用DataOutputStream.writeInt()：在SocketOutputStream上它是4次单字节write()
+			header[0] = (byte) (payload.length >>> 24);
+			header[1] = (byte) (payload.length >>> 16);
+			header[2] = (byte) (payload.length >>> 8);
+			header[3] = (byte) payload.length;
+			out.write(header);
+			out.write(payload);
+		}
+
+		void end() throws IOException {
+			out.write(new byte[] {-1, -1, -1, -1});
+			out.flush();
+		}
+	}
+
+	private void accept(ServerSocket server) {
+		while (!server.isClosed()) {
+			try {
+				Socket socket = server.accept();
+				Thread handler = new Thread(() -> serve(socket), "loopback-server");
+				handler.setDaemon(true);
+				handler.start();
+			} catch (IOException e) {
+				if (!server.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 服务端：ECHO原样返回每个帧（缓冲后一次写出），STREAM累计字节数，收到长度-1时结束
+	 */
+	private void serve(Socket socket) {
+		try (Socket s = socket) {
+			configure(s);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 << 10));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 << 10));
+			int mode = in.read();
+			byte[] payload = new byte[messageSize];
+			long total = 0;
+			int length;
+			while ((length = in.readInt()) >= 0) {
+				in.readFully(payload, 0, length);
+				if (mode == ECHO) {
+					out.writeInt(length);
+					out.write(payload, 0, length);
+					out.flush();
+				} else {
+					total += length;
+				}
+			}
+			if (mode == STREAM) {
+				out.writeLong(total);
+				out.flush();
+			}
+		} catch (EOFException e) {
+			// 客户端提前关闭
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,545 @@
+package com.java.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ReliableMulticast：基于NACK的可靠组播，一次组播发送代替N个TCP连接各发送一次
+ *
+ * 	DatagramSocket_.server3/client3直接组播，没有顺序和丢包恢复
+ * 	报文（大端）：类型1字节 + 会话号4字节 + 序号8字节 + ...
+ * 		DATA		+ 内容，组播发送；修复时单播给请求的接收方
+ * 		HEARTBEAT	空闲时定期组播，序号为已发送的最大序号，接收方据此发现末尾的丢包
+ * 		NACK		+ 个数4字节，接收方单播给发送方，请求重传[序号, 序号 + 个数)
+ * 		LOST		+ 个数4字节，请求的序号已移出重传窗口，接收方只跳过其中确实缺少的序号并计入丢失，已收到的照常按序交付
+ * 	Sender
+ * 		一个非阻塞DatagramChannel：组播发送，同时接收NACK、单播重传；发送缓冲区满时短暂等待后重试，不丢弃
+ * 		最近window条消息保存在重传窗口中（按序号取模的环，预先分配的直接缓冲区），收到NACK时单播重传
+ * 		发送速率按令牌桶限制（字节/秒，允许1/10秒的突发），publish()在令牌不足时等待，避免突发打满接收方的内核缓冲区
+ * 			重传也消耗令牌
+ * 		会话号在每次创建Sender时随机生成，接收方发现会话号变化即重新开始
+ * 	Receiver
+ * 		组播通道（SO_REUSEADDR，同一主机的多个接收方绑定同一端口）+ 单播通道（发送NACK、接收修复），同一个Selector
+ * 		按序号顺序交付：等于期望序号立即交付，之后缓存中连续的消息一并交付；大于期望序号则缓存（最多window条）并立即NACK
+ * 		缺口在nackInterval内仍未补齐时再次NACK，一轮最多请求MAX_NACK条；第一条收到的消息决定起始序号（后加入的接收方不追补之前的消息）
+ *
+ * @author nerv
+ *
+ */
+public class ReliableMulticast {
+
+	static final byte DATA = 1, HEARTBEAT = 2, NACK = 3, LOST = 4;
+	static final int HEADER = 1 + 4 + 8;
+	/** 单个数据报的最大内容长度，避免IP分片 */
+	public static final int MAX_PAYLOAD = 1400;
+	/** 空闲多久发送一次HEARTBEAT */
+	static final long HEARTBEAT_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+	/** 一轮NACK最多请求的消息数，其余下一轮再请求，避免落后较多的接收方引发重传风暴 */
+	static final int MAX_NACK = 256;
+	/** 接收方pending中已确认丢失的序号 */
+	static final ByteBuffer MISSING = ByteBuffer.allocate(0);
+
+	/**
+	 * 消息监听器，在接收线程中按序号顺序调用
+	 */
+	public interface Listener {
+		/**
+		 * @param payload	消息内容，只在调用期间有效
+		 */
+		void onMessage(long sequence, ByteBuffer payload);
+	}
+
+	/**
+	 * 本机回环接口，用于同一主机上的发送方和接收方
+	 */
+	public static NetworkInterface loopback() throws IOException {
+		return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+	}
+
+	/**
+	 * 发送方
+	 */
+	public static class Sender implements Closeable {
+		private final DatagramChannel channel;
+		private final Selector selector;
+		private final InetSocketAddress group;
+		private final int session = ThreadLocalRandom.current().nextInt();
+		/** 重传窗口，window[seq % length]，以下状态都由window锁保护 */
+		private final ByteBuffer[] window;
+		/** 下一个序号 */
+		private long next;
+		private long lastSend = System.nanoTime();
+		// 令牌桶：rate字节/秒，最多积累burst字节
+		private final long rate;
+		private final long burst;
+		private double tokens;
+		private long refilled = System.nanoTime();
+
+		private final Thread control;
+		private volatile boolean running = true;
+		private final LongAdder published = new LongAdder();
+		private final LongAdder retransmitted = new LongAdder();
+		private final LongAdder nacks = new LongAdder();
+		private final LongAdder lost = new LongAdder();
+
+		/**
+		 * @param group				组播地址和端口
+		 * @param networkInterface	发送组播的网络接口
+		 * @param window			重传窗口的消息数
+		 * @param rate				发送速率上限（字节/秒，含报文头）
+		 */
+		public Sender(InetSocketAddress group, NetworkInterface networkInterface, int window, long rate) throws IOException {
+			if (window <= 0 || rate <= 0) {
+				throw new IllegalArgumentException("window=" + window + "，rate=" + rate);
+			}
+			this.group = group;
+			this.rate = rate;
+			this.burst = Math.max(rate / 10, HEADER + MAX_PAYLOAD);
+			this.tokens = burst;
+			this.window = new ByteBuffer[window];
+			ByteBuffer memory = ByteBuffer.allocateDirect(window * (HEADER + MAX_PAYLOAD));
+			for (int i = 0; i < window; i++) {
+				memory.limit((i + 1) * (HEADER + MAX_PAYLOAD)).position(i * (HEADER + MAX_PAYLOAD));
+				this.window[i] = memory.slice();
+			}
+			this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+			try {
+				channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+				channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, 4 << 20);
+				channel.bind(new InetSocketAddress(0));
+				channel.configureBlocking(false);
+				this.selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			this.control = new Thread(this::controlLoop, "multicast-sender-control");
+			control.setDaemon(true);
+			control.start();
+		}
+
+		/**
+		 * 组播一条消息，令牌不足时等待
+		 * @return 消息的序号
+		 */
+		public long publish(ByteBuffer payload) throws IOException {
+			if (payload.remaining() > MAX_PAYLOAD) {
+				throw new IllegalArgumentException("消息长度" + payload.remaining() + "超过" + MAX_PAYLOAD);
+			}
+			long sequence;
+			synchronized (window) {
+				sequence = next++;
+				int slot = (int) (sequence % window.length);
+				ByteBuffer packet = window[slot];
+				packet.clear();
+				packet.put(DATA).putInt(session).putLong(sequence).put(payload).flip();
+				send(packet.duplicate(), group);
+			}
+			published.increment();
+			return sequence;
+		}
+
+		public long published() {
+			return published.sum();
+		}
+
+		public long retransmitted() {
+			return retransmitted.sum();
+		}
+
+		public long nacks() {
+			return nacks.sum();
+		}
+
+		/**
+		 * 已移出重传窗口、回复了LOST的消息数
+		 */
+		public long lost() {
+			return lost.sum();
+		}
+
+		@Override
+		public void close() throws IOException {
+			running = false;
+			selector.wakeup();
+			try {
+				control.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			selector.close();
+			channel.close();
+		}
+
+		/**
+		 * 按令牌桶限速后发送，发送缓冲区满时重试，调用方持有window锁
+		 */
+		private void send(ByteBuffer packet, SocketAddress target) throws IOException {
+			int n = packet.remaining();
+			while (true) {
+				long now = System.nanoTime();
+				tokens = Math.min(burst, tokens + (now - refilled) * rate / 1e9);
+				refilled = now;
+				if (tokens >= n) {
+					tokens -= n;
+					break;
+				}
+				LockSupport.parkNanos((long) ((n - tokens) * 1e9 / rate));
+			}
+			while (channel.send(packet, target) == 0) {
+				LockSupport.parkNanos(10_000);
+			}
+			lastSend = System.nanoTime();
+		}
+
+		/**
+		 * 接收NACK并重传；空闲超过HEARTBEAT_INTERVAL时组播HEARTBEAT
+		 */
+		private void controlLoop() {
+			ByteBuffer in = ByteBuffer.allocateDirect(64);
+			ByteBuffer heartbeat = ByteBuffer.allocateDirect(HEADER);
+			try {
+				while (running) {
+					selector.select(TimeUnit.NANOSECONDS.toMillis(HEARTBEAT_INTERVAL));
+					selector.selectedKeys().clear();
+					SocketAddress source;
+					while ((source = channel.receive(in)) != null) {
+						in.flip();
+						if (in.remaining() >= HEADER + 4 && in.get(0) == NACK && in.getInt(1) == session) {
+							nacks.increment();
+							repair(in.getLong(5), in.getInt(HEADER), source);
+						}
+						in.clear();
+					}
+					synchronized (window) {
+						if (next > 0 && System.nanoTime() - lastSend > HEARTBEAT_INTERVAL) {
+							heartbeat.clear();
+							heartbeat.put(HEARTBEAT).putInt(session).putLong(next - 1).flip();
+							send(heartbeat, group);
+						}
+					}
+				}
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		/**
+		 * 单播重传[from, from + count)，已移出窗口的部分回复LOST
+		 */
+		private void repair(long from, int count, SocketAddress target) throws IOException {
+			synchronized (window) {
+				long end = Math.min(from + count, next);
+				// 窗口按序号滑动，移出窗口的一定是请求范围中较小的一段；整个请求范围都已移出时LOST只覆盖到end
+				long oldest = Math.max(from, next - window.length);
+				long lostEnd = Math.min(oldest, end);
+				if (lostEnd > from) {
+					ByteBuffer packet = ByteBuffer.allocate(HEADER + 4);
+					packet.put(LOST).putInt(session).putLong(from).putInt((int) (lostEnd - from)).flip();
+					send(packet, target);
+					lost.add(lostEnd - from);
+				}
+				for (long sequence = oldest; sequence < end; sequence++) {
+					ByteBuffer packet = window[(int) (sequence % window.length)].duplicate();
+					packet.position(0);
+					send(packet, target);
+					retransmitted.increment();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 接收方，一个接收线程
+	 */
+	public static class Receiver implements Closeable {
+		private final DatagramChannel multicast;
+		private final DatagramChannel unicast;
+		private final MembershipKey membership;
+		private final Selector selector;
+		private final Listener listener;
+		private final int window;
+		private final long nackIntervalNanos;
+		private final Thread thread;
+		private volatile boolean running = true;
+		private volatile double lossRate;
+
+		// 以下只由接收线程访问
+		private int session;
+		/** 期望的下一个序号，-1表示尚未收到任何消息 */
+		private long expected = -1;
+		/** 已知的最大序号 */
+		private long highest = -1;
+		/** 乱序到达、等待交付的消息；值为MISSING表示发送方已回复LOST的序号 */
+		private final TreeMap<Long, ByteBuffer> pending = new TreeMap<>();
+		private SocketAddress sender;
+		private long lastNack;
+		private final ByteBuffer nack = ByteBuffer.allocateDirect(HEADER + 4);
+
+		private final LongAdder delivered = new LongAdder();
+		private final LongAdder duplicates = new LongAdder();
+		private final LongAdder nacksSent = new LongAdder();
+		private final LongAdder repaired = new LongAdder();
+		private final LongAdder lost = new LongAdder();
+
+		/**
+		 * @param group				组播地址和端口
+		 * @param networkInterface	加入组播的网络接口
+		 * @param window			最多缓存的乱序消息数，应不小于发送方的重传窗口
+		 * @param nackInterval		缺口仍未补齐时再次NACK的间隔（毫秒）
+		 */
+		public Receiver(InetSocketAddress group, NetworkInterface networkInterface, int window, long nackInterval, Listener listener)
+				throws IOException {
+			if (window <= 0 || nackInterval <= 0) {
+				throw new IllegalArgumentException("window=" + window + "，nackInterval=" + nackInterval);
+			}
+			this.listener = listener;
+			this.window = window;
+			this.nackIntervalNanos = TimeUnit.MILLISECONDS.toNanos(nackInterval);
+			this.multicast = DatagramChannel.open(StandardProtocolFamily.INET);
+			this.unicast = DatagramChannel.open(StandardProtocolFamily.INET);
+			try {
+				multicast.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				multicast.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+				multicast.bind(new InetSocketAddress(group.getPort()));
+				this.membership = multicast.join(group.getAddress(), networkInterface);
+				unicast.setOption(StandardSocketOptions.SO_RCVBUF, 4 << 20);
+				unicast.bind(new InetSocketAddress(0));
+				this.selector = Selector.open();
+				multicast.configureBlocking(false);
+				unicast.configureBlocking(false);
+				multicast.register(selector, SelectionKey.OP_READ);
+				unicast.register(selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
+				multicast.close();
+				unicast.close();
+				throw e;
+			}
+			this.thread = new Thread(this::receiveLoop, "multicast-receiver");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * 模拟丢包：按比例丢弃收到的组播DATA（不影响单播修复），用于测试修复路径
+		 */
+		public void simulateLoss(double rate) {
+			this.lossRate = rate;
+		}
+
+		public long delivered() {
+			return delivered.sum();
+		}
+
+		public long duplicates() {
+			return duplicates.sum();
+		}
+
+		public long nacksSent() {
+			return nacksSent.sum();
+		}
+
+		/**
+		 * 经单播修复后交付的消息数
+		 */
+		public long repaired() {
+			return repaired.sum();
+		}
+
+		/**
+		 * 发送方回复LOST而跳过的消息数
+		 */
+		public long lost() {
+			return lost.sum();
+		}
+
+		@Override
+		public void close() throws IOException {
+			running = false;
+			selector.wakeup();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			membership.drop();
+			selector.close();
+			multicast.close();
+			unicast.close();
+		}
+
+		private void receiveLoop() {
+			ByteBuffer in = ByteBuffer.allocateDirect(HEADER + MAX_PAYLOAD + 64);
+			long timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nackIntervalNanos));
+			try {
+				while (running) {
+					selector.select(timeout);
+					selector.selectedKeys().clear();
+					for (DatagramChannel channel : new DatagramChannel[] {multicast, unicast}) {
+						SocketAddress source;
+						while ((source = channel.receive(in)) != null) {
+							in.flip();
+							if (in.remaining() >= HEADER) {
+								handle(in, source, channel == multicast);
+							}
+							in.clear();
+						}
+					}
+					nackGaps(false);
+				}
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void handle(ByteBuffer in, SocketAddress source, boolean fromGroup) throws IOException {
+			byte type = in.get();
+			int session = in.getInt();
+			long sequence = in.getLong();
+			if (expected < 0 || session != this.session) {
+				if (type != DATA || !fromGroup) {
+					return;
+				}
+				// 第一条消息或发送方重启，从此序号开始
+				this.session = session;
+				expected = sequence;
+				highest = sequence - 1;
+				pending.clear();
+			}
+			if (fromGroup) {
+				sender = source;
+			}
+			switch (type) {
+			case DATA:
+				if (fromGroup && lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+					return;
+				}
+				highest = Math.max(highest, sequence);
+				ByteBuffer held = pending.get(sequence);
+				if (sequence < expected || held != null && held != MISSING) {
+					duplicates.increment();
+					return;
+				}
+				if (!fromGroup) {
+					repaired.increment();
+				}
+				if (sequence == expected) {
+					deliver(sequence, in);
+					drain();
+				} else if (pending.size() < window) {
+					ByteBuffer copy = ByteBuffer.allocate(in.remaining());
+					copy.put(in).flip();
+					boolean newGap = pending.isEmpty() || sequence > pending.lastKey() + 1;
+					pending.put(sequence, copy);
+					if (newGap && fromGroup) {
+						nackGaps(true);
+					}
+				}
+				break;
+			case HEARTBEAT:
+				if (sequence > highest) {
+					highest = sequence;
+					nackGaps(true);
+				}
+				break;
+			case LOST:
+				// 范围之前可能还有等待重传的序号，不能直接推进expected：缺少的序号标记为MISSING，drain()按序交付时跳过
+				// 范围最多为一次NACK的个数（MAX_NACK），标记数有界
+				long end = sequence + in.getInt();
+				for (long s = Math.max(sequence, expected); s < end; s++) {
+					pending.putIfAbsent(s, MISSING);
+				}
+				drain();
+				break;
+			default:
+			}
+		}
+
+		private void deliver(long sequence, ByteBuffer payload) {
+			listener.onMessage(sequence, payload);
+			delivered.increment();
+			expected = sequence + 1;
+		}
+
+		/**
+		 * 交付缓存中从expected开始连续的消息，MISSING计入丢失并跳过
+		 */
+		private void drain() {
+			Iterator<Map.Entry<Long, ByteBuffer>> iterator = pending.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Long, ByteBuffer> entry = iterator.next();
+				if (entry.getKey() > expected) {
+					break;
+				}
+				iterator.remove();
+				if (entry.getKey() == expected) {
+					if (entry.getValue() == MISSING) {
+						lost.increment();
+						expected++;
+					} else {
+						deliver(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+		}
+
+		/**
+		 * NACK [expected, highest]中缺少的序号，每个连续区间一个NACK，共最多MAX_NACK条；force为false时每nackInterval最多一次
+		 */
+		private void nackGaps(boolean force) throws IOException {
+			if (expected < 0 || highest < expected || sender == null) {
+				return;
+			}
+			long now = System.nanoTime();
+			if (!force && now - lastNack < nackIntervalNanos) {
+				return;
+			}
+			lastNack = now;
+			long from = expected, budget = MAX_NACK;
+			for (Long received : pending.keySet()) {
+				if (budget <= 0) {
+					return;
+				}
+				if (received > from) {
+					budget -= sendNack(from, Math.min(received - from, budget));
+				}
+				from = received + 1;
+			}
+			if (highest >= from && budget > 0) {
+				sendNack(from, Math.min(highest - from + 1, budget));
+			}
+		}
+
+		private long sendNack(long from, long count) throws IOException {
+			nack.clear();
+			nack.put(NACK).putInt(session).putLong(from).putInt((int) count).flip();
+			unicast.send(nack, sender);
+			nacksSent.increment();
+			return count;
+		}
+	}
+}
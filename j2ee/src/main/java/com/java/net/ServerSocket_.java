@@ -1,12 +1,18 @@
 package com.java.net;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -111,4 +117,47 @@ public class ServerSocket_ {
 		server.close();	// 在accept()中所有阻塞的线程都会抛出SocketException，如果有关联通道，则关闭通道
 		System.out.println("是否已关闭：" + server.isClosed());
 	}
+	
+	/**
+	 * BlockingServer各执行器的对比：connections个连接同时在线，每个连接做rounds次64字节的回显往返后关闭
+	 * 		客户端用一个Selector驱动全部连接（非阻塞），避免客户端自身需要上万个线程
+	 * 		服务端处理器为阻塞的回显，每个连接占用一个任务
+	 * 		BOUNDED只有threads个线程，其余连接排队，耗时随连接数线性增长
+	 * 		UNBOUNDED每个连接一个平台线程，峰值线程数约等于连接数
+	 * 		VIRTUAL需在JDK 21+上运行，平台线程数只有载体线程（约CPU核数）
+	 * 	连接数通过-Dbench.connections指定，默认10000；客户端和服务端在同一进程，需要两倍的文件描述符（ulimit -n）
+	 */
+	@Test
+	public void blockingServerModes() throws Exception {
+		int connections = Integer.getInteger("bench.connections", 10000), rounds = 10, threads = 200;
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		for (BlockingServer.Mode mode : BlockingServer.Mode.values()) {
+			if (mode == BlockingServer.Mode.VIRTUAL && !BlockingServer.isVirtualThreadsSupported()) {
+				System.out.println(mode + "：当前JDK " + System.getProperty("java.version") + " 不支持虚拟线程，跳过");
+				continue;
+			}
+			try (BlockingServer server = new BlockingServer(new InetSocketAddress("127.0.0.1", 0), mode, threads, socket -> {
+				byte[] data = new byte[64];
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				while (true) {
+					try {
+						in.readFully(data);
+					} catch (EOFException e) {
+						return;
+					}
+					out.write(data);
+				}
+			})) {
+				threadBean.resetPeakThreadCount();
+				long begin = System.nanoTime();
+				long[] latency = EchoLoad.run(server.getLocalAddress(), connections, rounds);
+				long cost = System.nanoTime() - begin;
+				Arrays.sort(latency);
+				System.out.printf("%-10s%d个连接，%dms，连接耗时p50=%dms，p99=%dms，最多同时处理%d个连接，JVM峰值线程数%d%n", mode, connections,
+						cost / 1000000, latency[connections / 2] / 1000000, latency[connections * 99 / 100] / 1000000,
+						server.peakConnections(), threadBean.getPeakThreadCount());
+			}
+		}
+	}
 }
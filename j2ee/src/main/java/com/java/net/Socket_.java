@@ -13,10 +13,15 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import org.junit.Test;
 
+import com.java.util.LatencyHistogram;
 import com.my.entity.User;
 
 /**
@@ -516,4 +521,40 @@ public class Socket_ {
 		System.out.println(System.currentTimeMillis() - begin);
 		socket.close();
 	}
+
+	/**
+	 * 回环基准：扫描TCP_NODELAY、SO_SNDBUF/SO_RCVBUF、flush方式和消息大小的全部组合，见LoopbackBenchmark
+	 * 		每组输出吞吐和往返延迟p50/p99/p999/max（微秒）；-Dbench.verbose=true时再输出每组的完整分位数分布（HdrHistogram格式）
+	 * 		-Dbench.sizes=64,1024,16384 消息大小；-Dbench.rounds=5000 往返次数；-Dbench.size=字节数 吞吐阶段的发送量，默认32M
+	 * 	预期：noDelay=false且UNBUFFERED时write-write-read触发Nagle + 延迟ACK，p50接近40ms（Linux）；
+	 * 		其余组合的往返延迟由系统调用次数决定；小缓冲区限制大消息的吞吐
+	 */
+	@Test
+	public void test10_3() throws IOException {
+		int rounds = Integer.getInteger("bench.rounds", 5000);
+		long streamBytes = Long.getLong("bench.size", 32L << 20), maxNanos = TimeUnit.SECONDS.toNanos(2);
+		boolean verbose = Boolean.getBoolean("bench.verbose");
+		List<LoopbackBenchmark> cases = new ArrayList<>();
+		for (String size : System.getProperty("bench.sizes", "64,1024,16384").split(",")) {
+			for (boolean noDelay : new boolean[] {false, true}) {
+				for (int bufferSize : new int[] {0, 8 << 10, 256 << 10}) {
+					for (LoopbackBenchmark.FlushPolicy flush : LoopbackBenchmark.FlushPolicy.values()) {
+						cases.add(new LoopbackBenchmark(noDelay, bufferSize, flush, Integer.parseInt(size.trim())));
+					}
+				}
+			}
+		}
+		System.out.printf("%-58s %10s %12s %9s %9s %9s %9s %7s%n", "选项", "MB/s", "消息/s", "p50(us)", "p99(us)", "p999(us)",
+				"max(us)", "样本");
+		for (LoopbackBenchmark benchmark : cases) {
+			LoopbackBenchmark.Result result = benchmark.run(rounds, streamBytes, maxNanos);
+			LatencyHistogram latency = result.latency;
+			System.out.printf("%-58s %10.1f %12.0f %9.1f %9.1f %9.1f %9.1f %7d%n", benchmark, result.megabytesPerSecond(),
+					result.messagesPerSecond(), latency.valueAtPercentile(50) / 1000.0, latency.valueAtPercentile(99) / 1000.0,
+					latency.valueAtPercentile(99.9) / 1000.0, latency.max() / 1000.0, latency.count());
+			if (verbose) {
+				latency.outputPercentileDistribution(System.out, 1000.0);
+			}
+		}
+	}
 }
@@ -0,0 +1,249 @@
+package com.java.net;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+/**
+ * UtfFrameCodec：DataOutputStream.writeUTF()/DataInputStream.readUTF()帧格式在ByteBuffer上的增量编解码
+ *
+ * 	帧格式：2字节无符号长度（大端）+ modified UTF-8
+ * 		modified UTF-8与标准UTF-8的区别：'\u0000'编码为2字节0xC0 0x80；补充字符按两个代理字符各自编码为3字节
+ * 		因此不能直接用StandardCharsets.UTF_8解码，此处手工编解码
+ *
+ * 	解码：decode(in)
+ * 		in中有完整帧时，frame()/payload()直接是in的视图，不复制；视图对象按来源缓存复用，稳定后解码不分配内存
+ * 		帧跨多次读取时，已到达的部分复制到内部的scratch（按需扩容后复用），调用方可以立即compact()/clear()自己的缓冲区
+ * 		text()把当前帧解码到复用的CharBuffer，返回CharSequence，不创建String
+ * 		frame()/payload()/text()只在下一次decode()之前有效；in的视图在调用方修改in之前有效
+ *
+ * 	编码：encode(s, out)
+ * 		out空间不足时写入能容纳的部分并返回false，记录进度；调用方写出out后用同一个s再次调用，从中断处继续
+ * 		不经过byte[]/String，直接写入out
+ *
+ * 	编码与解码的状态相互独立；非线程安全，一个连接一个实例
+ *
+ * @author nerv
+ *
+ */
+public class UtfFrameCodec {
+
+	/** 帧头长度 */
+	public static final int HEADER = 2;
+	/** 最大内容长度 */
+	public static final int MAX_LENGTH = 0xFFFF;
+
+	// 解码状态
+	/** 当前帧内容长度，-1表示帧头未读完 */
+	private int length = -1;
+	/** 帧跨多次读取时的累积缓冲区 */
+	private ByteBuffer scratch = ByteBuffer.allocate(HEADER);
+	private ByteBuffer frame;
+	private ByteBuffer payload;
+	/** 视图对象按来源缓存，同一个来源（如连接复用的读缓冲区）只创建一次视图，之后只修改position/limit */
+	private ByteBuffer inSource, inFrame, inPayload;
+	private ByteBuffer scratchFrame, scratchPayload;
+	private CharBuffer chars = CharBuffer.allocate(256);
+	private CharBuffer text;
+
+	// 编码状态
+	private CharSequence encoding;
+	private int encoded;
+
+	/**
+	 * 从in读取，解码出一个完整帧则返回true，in的position移到该帧之后；否则消费in的全部剩余字节并返回false
+	 */
+	public boolean decode(ByteBuffer in) {
+		frame = payload = null;
+		text = null;
+		if (length < 0 && scratch.position() == 0 && in.remaining() >= HEADER) {
+			// 快速路径：in中有完整帧，直接返回视图
+			int n = in.getShort(in.position()) & 0xFFFF;
+			if (in.remaining() >= HEADER + n) {
+				if (in != inSource) {
+					inSource = in;
+					inFrame = in.asReadOnlyBuffer();
+					inPayload = in.asReadOnlyBuffer();
+				}
+				frame = view(inFrame, in.position(), HEADER + n);
+				payload = view(inPayload, in.position() + HEADER, n);
+				in.position(in.position() + HEADER + n);
+				return true;
+			}
+		}
+		// 慢速路径：累积到scratch
+		if (length < 0) {
+			while (scratch.position() < HEADER && in.hasRemaining()) {
+				scratch.put(in.get());
+			}
+			if (scratch.position() < HEADER) {
+				return false;
+			}
+			length = scratch.getShort(0) & 0xFFFF;
+			if (scratch.capacity() < HEADER + length) {
+				ByteBuffer bigger = ByteBuffer.allocate(HEADER + length);
+				scratch.flip();
+				bigger.put(scratch);
+				scratch = bigger;
+				scratchFrame = scratchPayload = null;
+			}
+			scratch.limit(HEADER + length);
+		}
+		int n = Math.min(scratch.remaining(), in.remaining());
+		int limit = in.limit();
+		in.limit(in.position() + n);
+		scratch.put(in);
+		in.limit(limit);
+		if (scratch.hasRemaining()) {
+			return false;
+		}
+		if (scratchFrame == null) {
+			scratchFrame = scratch.asReadOnlyBuffer();
+			scratchPayload = scratch.asReadOnlyBuffer();
+		}
+		frame = view(scratchFrame, 0, HEADER + length);
+		payload = view(scratchPayload, HEADER, length);
+		// 重置为读帧头状态；scratch的内容在下一次decode()前不会被覆盖
+		length = -1;
+		scratch.clear();
+		return true;
+	}
+
+	/**
+	 * 丢弃未完成的帧
+	 */
+	public void reset() {
+		length = -1;
+		scratch.clear();
+		frame = payload = null;
+		text = null;
+		encoding = null;
+	}
+
+	/**
+	 * 当前帧（含帧头）的只读视图，可原样转发
+	 */
+	public ByteBuffer frame() {
+		return frame;
+	}
+
+	/**
+	 * 当前帧内容（不含帧头）的只读视图
+	 */
+	public ByteBuffer payload() {
+		return payload;
+	}
+
+	/**
+	 * 当前帧内容解码为字符，结果复用内部CharBuffer
+	 * @throws UTFDataFormatException	与readUTF()相同，字节序列不是合法的modified UTF-8
+	 */
+	public CharSequence text() throws UTFDataFormatException {
+		if (text != null) {
+			return text;
+		}
+		if (chars.capacity() < payload.remaining()) {
+			// 字符数不超过字节数，按字节数扩容后不再分配
+			chars = CharBuffer.allocate(payload.remaining());
+		}
+		CharBuffer out = chars;
+		out.clear();
+		int i = payload.position(), end = payload.limit();
+		while (i < end) {
+			int b = payload.get(i) & 0xFF;
+			if (b < 0x80) {
+				out.put((char) b);
+				i++;
+			} else if ((b & 0xE0) == 0xC0) {
+				if (i + 1 >= end) {
+					throw new UTFDataFormatException("帧末尾的字符不完整");
+				}
+				int b2 = payload.get(i + 1);
+				if ((b2 & 0xC0) != 0x80) {
+					throw new UTFDataFormatException("第" + (i + 1 - payload.position()) + "字节格式错误");
+				}
+				out.put((char) (((b & 0x1F) << 6) | (b2 & 0x3F)));
+				i += 2;
+			} else if ((b & 0xF0) == 0xE0) {
+				if (i + 2 >= end) {
+					throw new UTFDataFormatException("帧末尾的字符不完整");
+				}
+				int b2 = payload.get(i + 1), b3 = payload.get(i + 2);
+				if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) {
+					throw new UTFDataFormatException("第" + (i + 1 - payload.position()) + "字节格式错误");
+				}
+				out.put((char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F)));
+				i += 3;
+			} else {
+				throw new UTFDataFormatException("第" + (i - payload.position()) + "字节格式错误");
+			}
+		}
+		out.flip();
+		text = out;
+		return text;
+	}
+
+	/**
+	 * s的modified UTF-8字节数，超过MAX_LENGTH则抛出UTFDataFormatException，与writeUTF()相同
+	 */
+	public static int utfLength(CharSequence s) throws UTFDataFormatException {
+		int length = 0;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			length += utfLength(s.charAt(i));
+		}
+		if (length > MAX_LENGTH) {
+			throw new UTFDataFormatException("编码后长度超过65535字节：" + length);
+		}
+		return length;
+	}
+
+	/**
+	 * 把s编码为一个帧写入out
+	 * @return true表示帧已全部写入；false表示out已满，写出out后用同一个s再次调用以继续
+	 */
+	public boolean encode(CharSequence s, ByteBuffer out) throws UTFDataFormatException {
+		if (encoding != s) {
+			// 新的帧：帧头必须一次写入，避免只写了1字节的长度
+			int length = utfLength(s);
+			if (out.remaining() < HEADER) {
+				return false;
+			}
+			out.putShort((short) length);
+			encoding = s;
+			encoded = 0;
+		}
+		for (int n = s.length(); encoded < n; encoded++) {
+			char c = s.charAt(encoded);
+			int size = utfLength(c);
+			if (out.remaining() < size) {
+				return false;
+			}
+			if (size == 1) {
+				out.put((byte) c);
+			} else if (size == 2) {
+				out.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+			} else {
+				out.put((byte) (0xE0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3F))).put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+		encoding = null;
+		return true;
+	}
+
+	private static int utfLength(char c) {
+		if (c >= 0x0001 && c <= 0x007F) {
+			return 1;
+		}
+		return c <= 0x07FF ? 2 : 3;
+	}
+
+	/**
+	 * 把视图设置为[offset, offset + length)
+	 */
+	private static ByteBuffer view(ByteBuffer view, int offset, int length) {
+		view.clear();
+		view.limit(offset + length);
+		view.position(offset);
+		return view;
+	}
+}
@@ -1,11 +1,19 @@
 package com.java.net;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.Scanner;
 
 import org.junit.Test;
@@ -64,5 +72,77 @@ public class 聊天_单聊_同步读写 {
 		}
 	}
 	
+	/**
+	 * UtfFrameCodec与DataInputStream.readUTF()/DataOutputStream.writeUTF()的兼容性和分配量
+	 * 		1. writeUTF()写出frames条消息（含'\0'、汉字、补充字符），作为字节流
+	 * 		2. 字节流按随机大小（1~8192字节）切块模拟非阻塞读取，用UtfFrameCodec解码，内容与readUTF()逐条比较
+	 * 		3. UtfFrameCodec编码到1000字节的小缓冲区，满了就写出再继续，结果与writeUTF()的字节完全相同
+	 * 	分配量用com.sun.management.ThreadMXBean统计当前线程
+	 */
+	@Test
+	public void utfFrameCodec() throws IOException {
+		int frames = 200000;
+		String[] samples = {"hello", "李智大帝万岁万万岁！", "a\u0000b", "emoji\uD83D\uDE00", "消息内容：" + new String(new char[200]).replace('\0', 'x')};
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bytes);
+		List<String> expected = new ArrayList<>(frames);
+		for (int i = 0; i < frames; i++) {
+			String message = samples[i % samples.length] + i;
+			expected.add(message);
+			dos.writeUTF(message);
+		}
+		byte[] stream = bytes.toByteArray();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		
+		for (int round = 0; round < 2; round++) {
+			long allocated = threads.getThreadAllocatedBytes(thread), begin = System.nanoTime(), chars = 0;
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(stream));
+			for (int i = 0; i < frames; i++) {
+				chars += dis.readUTF().length();
+			}
+			System.out.printf("readUTF()：%d个字符，分配%dK，%dms%n", chars,
+					(threads.getThreadAllocatedBytes(thread) - allocated) >> 10, (System.nanoTime() - begin) / 1000000);
+			
+			UtfFrameCodec codec = new UtfFrameCodec();
+			ByteBuffer in = ByteBuffer.allocate(8192);
+			Random random = new Random(round);
+			allocated = threads.getThreadAllocatedBytes(thread);
+			begin = System.nanoTime();
+			chars = 0;
+			int decoded = 0;
+			for (int offset = 0; offset < stream.length; ) {
+				in.clear();
+				int n = Math.min(1 + random.nextInt(in.capacity()), stream.length - offset);
+				in.put(stream, offset, n);
+				offset += n;
+				in.flip();
+				while (codec.decode(in)) {
+					CharSequence text = codec.text();
+					if (!expected.get(decoded++).contentEquals(text)) {
+						throw new IllegalStateException("第" + decoded + "帧内容不一致");
+					}
+					chars += text.length();
+				}
+			}
+			System.out.printf("UtfFrameCodec.decode()：%d帧，%d个字符，分配%dK，%dms%n", decoded, chars,
+					(threads.getThreadAllocatedBytes(thread) - allocated) >> 10, (System.nanoTime() - begin) / 1000000);
+			
+			ByteBuffer out = ByteBuffer.allocate(1000), encoded = ByteBuffer.allocate(stream.length);
+			allocated = threads.getThreadAllocatedBytes(thread);
+			begin = System.nanoTime();
+			for (String message : expected) {
+				while (!codec.encode(message, out)) {
+					out.flip();
+					encoded.put(out);
+					out.clear();
+				}
+			}
+			out.flip();
+			encoded.put(out);
+			System.out.printf("UtfFrameCodec.encode()：与writeUTF()%s，分配%dK，%dms%n", Arrays.equals(encoded.array(), stream) ? "一致" : "不一致",
+					(threads.getThreadAllocatedBytes(thread) - allocated) >> 10, (System.nanoTime() - begin) / 1000000);
+		}
+	}
+	
 }
-
@@ -1,17 +1,29 @@
 package com.java.net;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
+import com.java.util.HashedTimingWheel;
+
 /**
  * 群聊
  * 		服务端管理连接的客户端列表，将某一客户端消息向其它客户端转发
@@ -114,4 +126,214 @@ public class 聊天_群聊_多线程 {
 		}
 	}
 	
+	/**
+	 * 非阻塞服务端：ChatServer，1个接收线程 + 每个CPU一个工作线程，与client()兼容
+	 */
+	@Test
+	public void nioServer() throws IOException, InterruptedException {
+		ChatServer server = new ChatServer(new InetSocketAddress(12306)).start();
+		try {
+			Thread.currentThread().join();
+		} finally {
+			server.close();
+		}
+	}
+	
+	/**
+	 * ChatServer压力测试：clients个客户端（与client()相同的writeUTF()/readUTF()），每个客户端发送messages条消息
+	 * 		每个客户端应收到其它客户端的全部消息，即(clients - 1) * messages条
+	 * 		客户端为阻塞Socket，每个客户端一个读线程；服务端线程数固定为1 + 工作线程数，不随连接数增长
+	 * 		使用BLOCK策略，读得慢的客户端使发送方暂停而不是丢消息
+	 */
+	@Test
+	public void nioServerLoad() throws Exception {
+		int clients = 200, messages = 50;
+		try (ChatServer server = new ChatServer(new InetSocketAddress("127.0.0.1", 0), Runtime.getRuntime().availableProcessors(),
+				1024, ChatServer.SlowConsumerPolicy.BLOCK).start()) {
+			List<Socket> sockets = new ArrayList<>();
+			for (int i = 0; i < clients; i++) {
+				sockets.add(new Socket("127.0.0.1", server.getLocalAddress().getPort()));
+			}
+			while (server.sessions() < clients) {
+				Thread.sleep(10);
+			}
+			long expected = (long) (clients - 1) * messages;
+			CountDownLatch done = new CountDownLatch(clients);
+			AtomicLong received = new AtomicLong();
+			for (Socket socket : sockets) {
+				new Thread(() -> {
+					try {
+						DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+						for (long n = 0; n < expected; n++) {
+							dis.readUTF();
+							received.incrementAndGet();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					done.countDown();
+				}).start();
+			}
+			long begin = System.nanoTime();
+			for (int m = 0; m < messages; m++) {
+				for (int i = 0; i < clients; i++) {
+					// 与client()相同，每条消息一次writeUTF()
+					new DataOutputStream(sockets.get(i).getOutputStream()).writeUTF("【用户" + i + "】：消息" + m);
+				}
+			}
+			boolean finished = done.await(60, TimeUnit.SECONDS);
+			long cost = (System.nanoTime() - begin) / 1000000;
+			System.out.printf("%d个客户端，转发%d条消息%s，%dms%n", clients, received.get(), finished ? "" : "（超时）", cost);
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+	
+	/**
+	 * 广播延迟与房间大小：房间内有一个从不读取的客户端（慢消费者），其余客户端持续读取
+	 * 		服务端broadcast()messages条消息，每条带发送时的System.nanoTime()，由一个探测客户端统计到达延迟
+	 * 		DROP策略：慢消费者的队列满后其消息被丢弃，其它客户端的延迟不受影响，也不随房间大小明显增长
+	 * 		读取线程2秒内收不到消息即结束（被丢弃的消息不会到达）；客户端与服务端在同一台机器上，CPU核数少时延迟主要受读取线程数影响
+	 * 		慢消费者的消息先填满其socket的内核发送/接收缓冲区（回环上可达数M），之后才进入发送队列并开始丢弃
+	 */
+	@Test
+	public void broadcastLatency() throws Exception {
+		int messages = 200;
+		for (int room : new int[] {10, 50, 200}) {
+			try (ChatServer server = new ChatServer(new InetSocketAddress("127.0.0.1", 0), Runtime.getRuntime().availableProcessors(),
+					256, ChatServer.SlowConsumerPolicy.DROP).start()) {
+				List<Socket> sockets = new ArrayList<>();
+				for (int i = 0; i < room; i++) {
+					Socket socket = new Socket();
+					if (i == 0) {
+						socket.setReceiveBufferSize(4096);
+					}
+					socket.connect(server.getLocalAddress());
+					socket.setSoTimeout(2000);
+					sockets.add(socket);
+				}
+				while (server.sessions() < room) {
+					Thread.sleep(10);
+				}
+				long[] latency = new long[messages];
+				AtomicInteger probed = new AtomicInteger();
+				List<Thread> readers = new ArrayList<>();
+				// sockets[0]从不读取；sockets[1]为探测客户端；其余只读取
+				for (int i = 1; i < room; i++) {
+					Socket socket = sockets.get(i);
+					boolean probe = i == 1;
+					Thread reader = new Thread(() -> {
+						try {
+							DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+							for (int m = 0; m < messages; m++) {
+								String message = dis.readUTF();
+								if (probe) {
+									latency[probed.getAndIncrement()] = System.nanoTime() - Long.parseLong(message.substring(0, message.indexOf(' ')));
+								}
+							}
+						} catch (SocketTimeoutException e) {
+							// 部分消息被丢弃
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					});
+					reader.start();
+					readers.add(reader);
+				}
+				char[] padding = new char[1000];
+				Arrays.fill(padding, 'x');
+				long enqueue = 0;
+				for (int m = 0; m < messages; m++) {
+					long begin = System.nanoTime();
+					server.broadcast(begin + " " + new String(padding));
+					enqueue += System.nanoTime() - begin;
+					Thread.sleep(1);
+				}
+				for (Thread reader : readers) {
+					reader.join();
+				}
+				int n = probed.get();
+				Arrays.sort(latency, 0, n);
+				System.out.printf("房间%d人：broadcast()平均%dus，探测客户端收到%d条，延迟p50=%dus，p99=%dus，丢弃%d条%n", room,
+						enqueue / messages / 1000, n, latency[n / 2] / 1000, latency[n * 99 / 100] / 1000, server.dropped());
+				for (Socket socket : sockets) {
+					socket.close();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 空闲连接回收：connections个客户端连接后从不发送，另有一个客户端每200ms发送一条消息
+	 * 		ChatServer的空闲超时为1秒（CLOSE），空闲的连接应在1~1.2秒后全部被关闭（精度为一个刻度），活跃的客户端保留
+	 * 		之前先对比时间轮与ScheduledThreadPoolExecutor（堆）：每个连接调度一个超时，每次“读取”取消并重新调度
+	 * 		-Dbench.connections默认4000，每个连接占用客户端和服务端两个文件描述符
+	 */
+	@Test
+	public void idleTimeout() throws Exception {
+		int connections = Integer.getInteger("bench.connections", 4000), timers = 100000, reads = 10;
+		HashedTimingWheel wheel = new HashedTimingWheel(100, TimeUnit.MILLISECONDS, 512);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+		executor.setRemoveOnCancelPolicy(true);
+		Runnable noop = () -> {};
+		for (int round = 0; round < 3; round++) {
+			long begin = System.nanoTime();
+			HashedTimingWheel.Timeout[] timeouts = new HashedTimingWheel.Timeout[timers];
+			for (int r = 0; r < reads; r++) {
+				for (int i = 0; i < timers; i++) {
+					if (timeouts[i] != null) {
+						timeouts[i].cancel();
+					}
+					timeouts[i] = wheel.schedule(noop, 30 + i % 30, TimeUnit.SECONDS);
+				}
+			}
+			long wheelCost = System.nanoTime() - begin;
+			for (HashedTimingWheel.Timeout timeout : timeouts) {
+				timeout.cancel();
+			}
+			begin = System.nanoTime();
+			ScheduledFuture<?>[] futures = new ScheduledFuture<?>[timers];
+			for (int r = 0; r < reads; r++) {
+				for (int i = 0; i < timers; i++) {
+					if (futures[i] != null) {
+						futures[i].cancel(false);
+					}
+					futures[i] = executor.schedule(noop, 30 + i % 30, TimeUnit.SECONDS);
+				}
+			}
+			long heapCost = System.nanoTime() - begin;
+			for (ScheduledFuture<?> future : futures) {
+				future.cancel(false);
+			}
+			System.out.printf("%d个超时×%d次取消并重新调度：时间轮%dms，ScheduledThreadPoolExecutor %dms%n", timers, reads,
+					wheelCost / 1000000, heapCost / 1000000);
+		}
+		executor.shutdown();
+		
+		try (ChatServer server = new ChatServer(new InetSocketAddress("127.0.0.1", 0)).timeouts(1, 0, TimeUnit.SECONDS,
+				ChatServer.IdleAction.CLOSE).start()) {
+			List<Socket> sockets = new ArrayList<>();
+			for (int i = 0; i < connections; i++) {
+				sockets.add(new Socket("127.0.0.1", server.getLocalAddress().getPort()));
+			}
+			Socket active = new Socket("127.0.0.1", server.getLocalAddress().getPort());
+			while (server.sessions() < connections + 1) {
+				Thread.sleep(10);
+			}
+			long begin = System.nanoTime();
+			DataOutputStream dos = new DataOutputStream(active.getOutputStream());
+			while (server.sessions() > 1 && System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5)) {
+				dos.writeUTF("心跳");
+				Thread.sleep(200);
+			}
+			System.out.printf("%d个空闲连接，%dms后剩余%d个会话，超时关闭%d个%n", connections, (System.nanoTime() - begin) / 1000000,
+					server.sessions(), server.timedOut());
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+			active.close();
+		}
+	}
+	
 }
@@ -0,0 +1,213 @@
+package com.java.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HashedTimingWheel：哈希时间轮，大量连接的空闲/读/写超时，schedule()和cancel()都是O(1)
+ *
+ * 	Socket.setSoTimeout()/ServerSocket.setSoTimeout()只对阻塞读有效，每个连接占用一个阻塞的线程；非阻塞通道没有对应的选项
+ * 	Timer、ScheduledThreadPoolExecutor、DelayQueue基于堆，调度和取消为O(log n)，10万个连接每次读写都重新调度时开销明显
+ * 	结构
+ * 		wheelSize个槽（取2的幂），每个槽是一个双向链表；时间按tickDuration划分为刻度，到期刻度为t的任务放在槽t % wheelSize
+ * 		调度：计算到期刻度，插入对应槽的链表头，O(1)；取消：从链表中摘除，O(1)
+ * 		推进：每经过一个刻度检查对应的一个槽，到期刻度不晚于当前刻度的任务移出并执行，未到期的（下一圈或更远）留在槽中
+ * 		精度为一个刻度：任务在到期后的第一个刻度执行，不会提前；超时检测通常不需要更高的精度
+ * 	线程
+ * 		没有自己的线程，也不加锁：由Reactor线程驱动，只能在该线程中调度、取消和推进，任务也在该线程中执行
+ * 		Reactor循环：select(timeoutMillis())等待IO或下一个刻度，之后调用advance()
+ * 		任务中可以再调度（到期刻度至少为下一个刻度，不会在同一次advance()的当前刻度中重复执行）
+ * 	Reactor长时间阻塞时，advance()一次补上经过的全部刻度，最多检查每个槽一次
+ *
+ * @author nerv
+ *
+ */
+public class HashedTimingWheel {
+
+	/**
+	 * 已调度的任务，可取消
+	 */
+	public final class Timeout {
+		private final Runnable task;
+		/** 到期刻度 */
+		private final long deadline;
+		private Timeout prev, next;
+		/** 所在的槽；EXPIRED表示已到期、即将在本次advance()中执行；DONE表示已执行或已取消 */
+		private int bucket = DONE;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return false表示已执行或已取消
+		 */
+		public boolean cancel() {
+			if (bucket == DONE) {
+				return false;
+			}
+			if (bucket == EXPIRED) {
+				// 同一刻度中先执行的任务取消了它
+				bucket = DONE;
+			} else {
+				unlink(this);
+			}
+			return true;
+		}
+
+		/**
+		 * 尚未执行也未取消
+		 */
+		public boolean isPending() {
+			return bucket != DONE;
+		}
+	}
+
+	private static final int DONE = -1, EXPIRED = -2;
+
+	private final long tickNanos;
+	private final Timeout[] wheel;
+	private final int mask;
+	private final long startTime = System.nanoTime();
+	/** 已处理到的刻度 */
+	private long tick;
+	private int size;
+
+	/**
+	 * @param tickDuration	刻度长度，即超时的精度
+	 * @param wheelSize		槽数，向上取2的幂；一圈为tickDuration * wheelSize，超时通常在一圈之内时每个槽的链表最短
+	 */
+	public HashedTimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+		if (tickDuration <= 0 || wheelSize <= 0 || wheelSize > 1 << 30) {
+			throw new IllegalArgumentException("tickDuration=" + tickDuration + "，wheelSize=" + wheelSize);
+		}
+		this.tickNanos = unit.toNanos(tickDuration);
+		int n = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+		this.wheel = new Timeout[n];
+		this.mask = n - 1;
+	}
+
+	/**
+	 * delay之后执行task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		long elapsed = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+		// 向上取整：不早于指定时间执行
+		Timeout timeout = new Timeout(task, Math.max(tick + 1, (elapsed + tickNanos - 1) / tickNanos));
+		int bucket = (int) (timeout.deadline & mask);
+		timeout.bucket = bucket;
+		timeout.next = wheel[bucket];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		wheel[bucket] = timeout;
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * 待执行的任务数
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * 到下一个刻度的毫秒数（至少1），用于Selector.select(long)；没有任务时返回0，即select()无限等待
+	 */
+	public long timeoutMillis() {
+		if (size == 0) {
+			return 0;
+		}
+		long remaining = (tick + 1) * tickNanos - (System.nanoTime() - startTime);
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999));
+	}
+
+	/**
+	 * 推进到当前时间，执行到期的任务；任务抛出的异常会传给调用方，其余到期任务在下一次advance()中执行
+	 * @return 执行的任务数
+	 */
+	public int advance() {
+		long now = (System.nanoTime() - startTime) / tickNanos;
+		if (now <= tick) {
+			return 0;
+		}
+		// 经过的刻度超过一圈时每个槽只需检查一次
+		long from = Math.max(tick + 1, now - mask);
+		int fired = 0;
+		for (long t = from; t <= now; t++) {
+			tick = t;
+			Timeout timeout = wheel[(int) (t & mask)];
+			Timeout expired = null;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.deadline <= now) {
+					unlink(timeout);
+					timeout.bucket = EXPIRED;
+					timeout.next = expired;
+					expired = timeout;
+				}
+				timeout = next;
+			}
+			// 先全部移出再执行，任务中的调度和取消不影响遍历
+			while (expired != null) {
+				Timeout next = expired.next;
+				expired.next = null;
+				if (expired.bucket == EXPIRED) {
+					expired.bucket = DONE;
+					fired++;
+					try {
+						expired.task.run();
+					} catch (RuntimeException | Error e) {
+						// 本刻度中其余到期的任务放回，下一次advance()再执行
+						relink(next);
+						throw e;
+					}
+				}
+				expired = next;
+			}
+		}
+		return fired;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			wheel[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = timeout.next = null;
+		timeout.bucket = DONE;
+		size--;
+	}
+
+	/**
+	 * 放回到期但未执行的任务（以next相连），放在下一个刻度的槽中
+	 */
+	private void relink(Timeout expired) {
+		int bucket = (int) ((tick + 1) & mask);
+		while (expired != null) {
+			Timeout timeout = expired;
+			expired = expired.next;
+			if (timeout.bucket != EXPIRED) {
+				timeout.next = null;
+				continue;
+			}
+			timeout.prev = null;
+			timeout.bucket = bucket;
+			timeout.next = wheel[bucket];
+			if (timeout.next != null) {
+				timeout.next.prev = timeout;
+			}
+			wheel[bucket] = timeout;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package com.java.util;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram：对数-线性分桶的延迟直方图，输出格式与HdrHistogram的outputPercentileDistribution()相同
+ *
+ * 	分桶：[0, 128)每个值一个桶；之后每个2的幂区间[2^k, 2^(k+1))再等分为64个桶
+ * 		相对误差不超过1/64（约1.6%），覆盖全部非负long，共3712个桶，内存固定约29K，与记录次数无关
+ * 		分位数返回所在桶的上界（与HdrHistogram的highestEquivalentValue相同），不会低估
+ * 	记录：record()只做一次AtomicLongArray自增和LongAdder累加，不加锁，可多线程并发记录
+ * 		读取（分位数、输出）与记录并发时结果是近似的快照；reset()与记录并发时可能丢失少量记录
+ * 	单位由调用方决定（通常是纳秒），输出时用scale换算，如scale=1000.0输出微秒
+ *
+ * @author nerv
+ *
+ */
+public class LatencyHistogram {
+
+	/** 线性部分的桶数 */
+	private static final int LINEAR = 128;
+	/** 每个2的幂区间的桶数 */
+	private static final int SUB_BUCKETS = 64;
+	private static final int SUB_BITS = 6;
+	private static final int BUCKETS = LINEAR + (62 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * 记录一个值，负数按0记录
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		count.increment();
+		max.accumulate(value);
+	}
+
+	public long count() {
+		return count.sum();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * 平均值，按各桶的中间值估算
+	 */
+	public double mean() {
+		long total = 0;
+		double sum = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = counts.get(i);
+			if (n != 0) {
+				total += n;
+				sum += n * middle(i);
+			}
+		}
+		return total == 0 ? 0 : sum / total;
+	}
+
+	/**
+	 * 标准差，按各桶的中间值估算
+	 */
+	public double stdDeviation() {
+		double mean = mean();
+		long total = 0;
+		double squares = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = counts.get(i);
+			if (n != 0) {
+				double d = middle(i) - mean;
+				total += n;
+				squares += n * d * d;
+			}
+		}
+		return total == 0 ? 0 : Math.sqrt(squares / total);
+	}
+
+	/**
+	 * 分位数对应的值
+	 * @param percentile	0~100，如99.9
+	 * @return 所在桶的上界，不超过max()；没有记录时为0
+	 */
+	public long valueAtPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highest(i), max());
+			}
+		}
+		return max();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		max.reset();
+	}
+
+	/**
+	 * 输出分位数分布，格式与HdrHistogram相同，可直接用HdrHistogram的绘图工具查看
+	 * 		分位数从0开始，每次把到100%的剩余距离减半时步长也减半（每半程5个刻度），直到超出记录次数能分辨的精度
+	 * @param scale	输出值 = 记录值 / scale
+	 */
+	public void outputPercentileDistribution(PrintStream out, double scale) {
+		long total = count();
+		out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+		if (total == 0) {
+			return;
+		}
+		double percentile = 0;
+		while (true) {
+			long value = valueAtPercentile(percentile);
+			if (percentile >= 100 || 100 / (100 - percentile) > total) {
+				out.printf("%12.3f %2.12f %10d%n", max() / scale, 1.0, total);
+				break;
+			}
+			out.printf("%12.3f %2.12f %10d %14.2f%n", value / scale, percentile / 100, countAtOrBelow(value),
+					100 / (100 - percentile));
+			int halvings = (int) (Math.log(100 / (100 - percentile)) / Math.log(2)) + 1;
+			percentile += 100 / (5 * Math.pow(2, halvings));
+		}
+		out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean() / scale, stdDeviation() / scale);
+		out.printf("#[Max     = %12.3f, Total count    = %12d]%n", max() / scale, total);
+		out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", BUCKETS, SUB_BUCKETS);
+	}
+
+	private long countAtOrBelow(long value) {
+		long seen = 0;
+		for (int i = 0, last = index(value); i <= last; i++) {
+			seen += counts.get(i);
+		}
+		return seen;
+	}
+
+	/**
+	 * value所在的桶
+	 * 		value >= 128时，shift使value >> shift落在[64, 128)，即最高的7位
+	 */
+	static int index(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * 桶的下界
+	 */
+	static long lowest(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		return (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+	}
+
+	/**
+	 * 桶的上界
+	 */
+	static long highest(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		return lowest(index) + (1L << shift) - 1;
+	}
+
+	private static double middle(int index) {
+		return lowest(index) / 2.0 + highest(index) / 2.0;
+	}
+}
@@ -1,6 +1,8 @@
 package com.nio;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -12,6 +14,7 @@ import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
 import org.junit.Test;
@@ -351,4 +354,109 @@ public class Buffer_ {
 		buffer.position(2);
 		System.out.println(buffer.charAt(0));
 	}
+	
+	/**
+	 * ByteBufferPool与allocateDirect()比较：多个线程反复获取、写入、归还64K直接缓冲区
+	 * 		allocateDirect()每次分配并清零内存，直接内存只有GC后才释放，-XX:MaxDirectMemorySize较小时会频繁触发System.gc()
+	 * 		池化后只在启动时向操作系统申请内存，之后的获取/归还大多命中线程缓存
+	 */
+	@Test
+	public void test15() throws InterruptedException {
+		int threads = 4, rounds = 100000, size = 64 << 10;
+		ByteBufferPool pool = new ByteBufferPool();
+		for (int type = 0; type < 2; type++) {
+			boolean pooled = type == 1;
+			Thread[] workers = new Thread[threads];
+			long start = System.currentTimeMillis();
+			for (int t = 0; t < threads; t++) {
+				workers[t] = new Thread(() -> {
+					for (int i = 0; i < rounds; i++) {
+						ByteBuffer buffer = pooled ? pool.acquire(size) : ByteBuffer.allocateDirect(size);
+						buffer.putLong(0, i);
+						if (pooled) {
+							pool.release(buffer);
+						}
+					}
+				});
+				workers[t].start();
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			System.out.println((pooled ? "ByteBufferPool" : "allocateDirect") + "：" + (System.currentTimeMillis() - start) + "ms");
+		}
+		System.out.println("池化直接内存：" + pool.chunkBytes() / 1024 + "K");
+	}
+	
+	/**
+	 * ByteBufferPool泄漏检测：获取缓冲区后不release()，缓冲区被GC回收后，下一次acquire()打印分配位置并回收内存区域
+	 * 		原理同Reference_.reference2，弱引用被放入引用队列
+	 */
+	@Test
+	public void test16() throws InterruptedException {
+		ByteBufferPool pool = new ByteBufferPool(true);
+		pool.acquire(1000).put((byte) 1);	// 泄漏
+		pool.release(pool.acquire(1000));	// 正常归还
+		System.out.println("未归还：" + pool.outstanding());
+		while (pool.leaks() == 0) {
+			System.gc();
+			TimeUnit.MILLISECONDS.sleep(100);
+			pool.reclaimLeaks();
+		}
+		System.out.println("检测到泄漏：" + pool.leaks() + "，未归还：" + pool.outstanding());
+	}
+	
+	/**
+	 * StreamingDecoder与new String(array, 0, n, charset)的分配量比较
+	 * 		模拟每次读取8191字节（奇数，使汉字经常被拆到两次读取中），逐字符累加防止解码被优化掉
+	 * 		分配量用com.sun.management.ThreadMXBean.getThreadAllocatedBytes()统计当前线程
+	 * 		new String()在拆开的汉字两侧各产生一个替换字符'\uFFFD'，StreamingDecoder为0
+	 */
+	@Test
+	public void test17() throws UnsupportedEncodingException {
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 16 << 20) {
+			text.append("李智大帝万岁万万岁！nio buffer decode 12345\n");
+		}
+		byte[] data = text.toString().getBytes("utf-8");
+		Charset utf8 = Charset.forName("utf-8");
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		StreamingDecoder decoder = new StreamingDecoder(utf8);
+		ByteBuffer buffer = ByteBuffer.allocate(8191);
+		for (int round = 0; round < 2; round++) {
+			for (int type = 0; type < 2; type++) {
+				long allocated = threads.getThreadAllocatedBytes(thread), gc = gcCount(), begin = System.nanoTime();
+				long chars = 0, replaced = 0;
+				for (int offset = 0; offset < data.length; ) {
+					buffer.clear();
+					int n = Math.min(buffer.remaining(), data.length - offset);
+					buffer.put(data, offset, n);
+					offset += n;
+					buffer.flip();
+					CharSequence decoded = type == 0 ? new String(buffer.array(), 0, buffer.limit(), utf8) : decoder.decode(buffer);
+					for (int i = 0, length = decoded.length(); i < length; i++) {
+						if (decoded.charAt(i) == '\uFFFD') {
+							replaced++;
+						}
+					}
+					chars += decoded.length();
+				}
+				if (type == 1) {
+					chars += decoder.finish().length();
+				}
+				System.out.printf("%-20s字符%d，替换字符%d，分配%dK，GC %d次，%dms%n", type == 0 ? "new String()" : "StreamingDecoder",
+						chars, replaced, (threads.getThreadAllocatedBytes(thread) - allocated) >> 10, gcCount() - gc,
+						(System.nanoTime() - begin) / 1000000);
+			}
+		}
+	}
+	
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
 }
@@ -0,0 +1,331 @@
+package com.nio;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ByteBufferPool：直接缓冲区池，按2的幂分级复用ByteBuffer.allocateDirect()分配的内存
+ *
+ * 	allocateDirect()每次都要Unsafe分配并清零内存（见Buffer_.test7），且只有GC执行Cleaner才释放
+ *
+ * 	结构
+ * 		大小级别	minSize、2*minSize ... maxSize，acquire(size)取不小于size的最小级别
+ * 		共享区	每个级别一个无锁队列；队列为空时一次分配chunkSize的直接内存，slice()切成多个缓冲区放入队列
+ * 		线程缓存	每个线程每个级别缓存少量缓冲区，acquire/release优先走线程缓存，不与其它线程竞争
+ * 		超过maxSize	不池化，直接allocateDirect()，release()时由DirectBuffers.free()立即释放
+ *
+ * 	泄漏检测（leakDetection=true）
+ * 		acquire()时为缓冲区创建弱引用Leak，记录调用栈（分配位置），并关联到引用队列（原理见Reference_）
+ * 		release()时清除Leak；若缓冲区未release()就变为不可达，Leak会被GC放入引用队列
+ * 		之后的acquire()从队列取出Leak，打印分配位置，并按记录的chunk和偏移量重新切出该内存区域放回池中
+ * 		记录调用栈开销较大，生产环境按需开启
+ *
+ * 	release()后不得再使用该缓冲区，也不得重复release()，否则同一内存会被两处同时使用
+ *
+ * @author nerv
+ *
+ */
+public class ByteBufferPool {
+
+	/** 默认最小级别 512B */
+	public static final int DEFAULT_MIN_SIZE = 512;
+	/** 默认最大级别 1M */
+	public static final int DEFAULT_MAX_SIZE = 1 << 20;
+	/** 默认每次向操作系统申请的内存块 4M */
+	public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+	/** 每个线程每个级别缓存的字节数上限 */
+	private static final int THREAD_CACHE_BYTES = 256 << 10;
+	/** 每个线程每个级别缓存的缓冲区个数上限 */
+	private static final int THREAD_CACHE_COUNT = 64;
+
+	private final int minShift;
+	private final int chunkSize;
+	private final SizeClass[] classes;
+	private final ThreadLocal<ArrayDeque<ByteBuffer>[]> threadCache;
+	private final boolean leakDetection;
+	/** 已分配出去且正在跟踪的缓冲区：identityHashCode -> Leak列表（ByteBuffer的hashCode与内容相关，不能直接作为key） */
+	private final Map<Integer, List<Leak>> tracked = new ConcurrentHashMap<>();
+	private final ReferenceQueue<ByteBuffer> leakQueue = new ReferenceQueue<>();
+
+	private final AtomicLong chunkBytes = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+
+	public ByteBufferPool() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_CHUNK_SIZE, false);
+	}
+
+	public ByteBufferPool(boolean leakDetection) {
+		this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE, DEFAULT_CHUNK_SIZE, leakDetection);
+	}
+
+	/**
+	 * @param minSize		最小级别，向上取2的幂
+	 * @param maxSize		最大级别，向上取2的幂，超过则不池化
+	 * @param chunkSize		每次分配的内存块大小，小于某级别时该级别每次只分配一个缓冲区
+	 * @param leakDetection	是否开启泄漏检测
+	 */
+	public ByteBufferPool(int minSize, int maxSize, int chunkSize, boolean leakDetection) {
+		if (minSize <= 0 || maxSize < minSize || chunkSize <= 0) {
+			throw new IllegalArgumentException("minSize=" + minSize + "，maxSize=" + maxSize + "，chunkSize=" + chunkSize);
+		}
+		this.minShift = 32 - Integer.numberOfLeadingZeros(minSize - 1);
+		int maxShift = 32 - Integer.numberOfLeadingZeros(maxSize - 1);
+		this.chunkSize = chunkSize;
+		this.leakDetection = leakDetection;
+		this.classes = new SizeClass[maxShift - minShift + 1];
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new SizeClass(1 << (minShift + i));
+		}
+		this.threadCache = ThreadLocal.withInitial(() -> newThreadCache(classes.length));
+	}
+
+	/**
+	 * 线程缓存：每个级别一个队列。不能创建泛型数组，由ArrayDeque<?>[]转换
+	 */
+	@SuppressWarnings("unchecked")
+	private static ArrayDeque<ByteBuffer>[] newThreadCache(int length) {
+		ArrayDeque<ByteBuffer>[] cache = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[length];
+		for (int i = 0; i < cache.length; i++) {
+			cache[i] = new ArrayDeque<>();
+		}
+		return cache;
+	}
+
+	/**
+	 * 获取一个直接缓冲区，position=0，limit=size，capacity为size所在级别的大小
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("size=" + size);
+		}
+		if (leakDetection) {
+			reclaimLeaks();
+		}
+		int index = classIndex(size);
+		ByteBuffer buffer;
+		if (index >= classes.length) {
+			buffer = ByteBuffer.allocateDirect(size);
+		} else {
+			buffer = threadCache.get()[index].pollLast();
+			if (buffer == null) {
+				buffer = classes[index].poll();
+			}
+			buffer.limit(size);
+		}
+		if (leakDetection) {
+			track(buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * 归还缓冲区。超过maxSize的缓冲区立即释放直接内存
+	 */
+	public void release(ByteBuffer buffer) {
+		if (leakDetection) {
+			untrack(buffer);
+		}
+		int index = classIndex(buffer.capacity());
+		if (index >= classes.length) {
+			DirectBuffers.free(buffer);
+			return;
+		}
+		SizeClass sizeClass = classes[index];
+		if (!buffer.isDirect() || buffer.capacity() != sizeClass.size) {
+			throw new IllegalArgumentException("不是本池分配的缓冲区：" + buffer);
+		}
+		buffer.clear();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		ArrayDeque<ByteBuffer> cache = threadCache.get()[index];
+		if (cache.size() < sizeClass.cacheLimit) {
+			cache.addLast(buffer);
+		} else {
+			sizeClass.free.offer(buffer);
+		}
+	}
+
+	/**
+	 * 已向操作系统申请的池化直接内存字节数
+	 */
+	public long chunkBytes() {
+		return chunkBytes.get();
+	}
+
+	/**
+	 * 已检测到的泄漏次数
+	 */
+	public long leaks() {
+		return leaks.get();
+	}
+
+	/**
+	 * 未归还且仍在跟踪的缓冲区数量，仅leakDetection=true时有效
+	 */
+	public int outstanding() {
+		int count = 0;
+		for (List<Leak> list : tracked.values()) {
+			count += list.size();
+		}
+		return count;
+	}
+
+	/**
+	 * 处理已被GC回收但未release()的缓冲区：打印分配位置，并把对应的内存区域放回池中
+	 * @return 本次检测到的泄漏数
+	 */
+	public int reclaimLeaks() {
+		int count = 0;
+		Leak leak;
+		while ((leak = (Leak) leakQueue.poll()) != null) {
+			if (!remove(leak)) {
+				continue;	// 已release()
+			}
+			count++;
+			leaks.incrementAndGet();
+			System.err.println("ByteBuffer泄漏：capacity=" + leak.capacity + "，未调用release()即被回收，分配位置：");
+			leak.site.printStackTrace();
+			if (leak.chunk != null) {
+				ByteBuffer region = leak.chunk.duplicate();
+				region.limit(leak.offset + leak.capacity).position(leak.offset);
+				classes[classIndex(leak.capacity)].free.offer(region.slice());
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * size所在的级别，>= classes.length表示超过maxSize
+	 */
+	private int classIndex(int size) {
+		int shift = size <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(size - 1);
+		return Math.max(shift, minShift) - minShift;
+	}
+
+	private void track(ByteBuffer buffer) {
+		SizeClass sizeClass = buffer.capacity() <= classes[classes.length - 1].size
+				? classes[classIndex(buffer.capacity())] : null;
+		Leak leak = new Leak(buffer, leakQueue, sizeClass == null ? null : sizeClass.chunkOf(buffer));
+		tracked.compute(leak.key, (k, list) -> {
+			if (list == null) {
+				list = new ArrayList<>(1);
+			}
+			list.add(leak);
+			return list;
+		});
+	}
+
+	private void untrack(ByteBuffer buffer) {
+		Leak[] found = new Leak[1];
+		tracked.computeIfPresent(System.identityHashCode(buffer), (k, list) -> {
+			for (Iterator<Leak> iterator = list.iterator(); iterator.hasNext();) {
+				Leak leak = iterator.next();
+				if (leak.get() == buffer) {
+					iterator.remove();
+					found[0] = leak;
+					break;
+				}
+			}
+			return list.isEmpty() ? null : list;
+		});
+		if (found[0] == null) {
+			throw new IllegalStateException("缓冲区未从本池获取或已重复release()：" + buffer);
+		}
+		found[0].clear();
+	}
+
+	/**
+	 * 从跟踪表中移除，返回false表示已被release()
+	 */
+	private boolean remove(Leak leak) {
+		boolean[] removed = new boolean[1];
+		tracked.computeIfPresent(leak.key, (k, list) -> {
+			removed[0] = list.remove(leak);
+			return list.isEmpty() ? null : list;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * 一个大小级别
+	 * 		free	共享区的空闲缓冲区
+	 * 		chunks	泄漏检测时，用于查找缓冲区所属的内存块和偏移量
+	 */
+	private final class SizeClass {
+		final int size;
+		final int cacheLimit;
+		final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+		final Map<Long, ByteBuffer> chunks = new ConcurrentHashMap<>();
+
+		SizeClass(int size) {
+			this.size = size;
+			this.cacheLimit = Math.max(1, Math.min(THREAD_CACHE_COUNT, THREAD_CACHE_BYTES / size));
+		}
+
+		ByteBuffer poll() {
+			ByteBuffer buffer = free.poll();
+			if (buffer != null) {
+				return buffer;
+			}
+			// 共享区为空，申请一个内存块并切分，第一个直接返回，其余放入共享区
+			int count = Math.max(1, chunkSize / size);
+			ByteBuffer chunk = ByteBuffer.allocateDirect(count * size);
+			chunkBytes.addAndGet(chunk.capacity());
+			if (leakDetection) {
+				chunks.put(DirectBuffers.address(chunk), chunk);
+			}
+			for (int i = 0; i < count; i++) {
+				chunk.limit((i + 1) * size).position(i * size);
+				ByteBuffer slice = chunk.slice();
+				if (buffer == null) {
+					buffer = slice;
+				} else {
+					free.offer(slice);
+				}
+			}
+			return buffer;
+		}
+
+		/**
+		 * 根据缓冲区地址查找所属内存块
+		 */
+		ByteBuffer chunkOf(ByteBuffer buffer) {
+			long address = DirectBuffers.address(buffer);
+			for (Map.Entry<Long, ByteBuffer> entry : chunks.entrySet()) {
+				long start = entry.getKey();
+				if (address >= start && address < start + entry.getValue().capacity()) {
+					return entry.getValue();
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * 泄漏跟踪：弱引用缓冲区本身，强引用其所属内存块，缓冲区被回收后仍可找回内存区域
+	 */
+	private static final class Leak extends WeakReference<ByteBuffer> {
+		final Throwable site = new Throwable("分配位置");
+		final int key;
+		final int capacity;
+		final ByteBuffer chunk;
+		final int offset;
+
+		Leak(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, ByteBuffer chunk) {
+			super(buffer, queue);
+			this.key = System.identityHashCode(buffer);
+			this.capacity = buffer.capacity();
+			this.chunk = chunk;
+			this.offset = chunk == null ? 0 : (int) (DirectBuffers.address(buffer) - DirectBuffers.address(chunk));
+		}
+	}
+}
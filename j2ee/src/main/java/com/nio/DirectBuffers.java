@@ -0,0 +1,116 @@
+package com.nio;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * DirectBuffers：立即释放直接缓冲区/映射缓冲区的内存，读取直接缓冲区的地址；本项目中只有这里使用JDK内部API
+ *
+ * 	直接内存和文件映射只在GC回收缓冲区对象、执行其Cleaner时才释放（见Buffer_.test7），逐窗口映射大文件时等不到GC
+ * 	释放
+ * 		JDK 9+	sun.misc.Unsafe.invokeCleaner()，位于jdk.unsupported模块，不需要--add-exports
+ * 		JDK 8	sun.nio.ch.DirectBuffer.cleaner().clean()
+ * 		都不可用时free()不做任何事，内存仍由GC释放
+ * 	地址：Unsafe按Buffer.address字段的偏移量读取
+ * 	内部类都在运行时通过反射查找，源码不引用，编译时没有专有API警告，在JDK 9+上也能编译
+ * 	释放后不得再访问该缓冲区，否则会读到其它数据或使JVM崩溃
+ *
+ * @author nerv
+ *
+ */
+public class DirectBuffers {
+
+	private static final Object UNSAFE = findUnsafe();
+	/** (ByteBuffer)void，释放失败时抛出异常或为null */
+	private static final MethodHandle FREE = findFree();
+	/** (Buffer)long */
+	private static final MethodHandle ADDRESS = findAddress();
+
+	/**
+	 * 立即释放buffer的直接内存或映射
+	 * @return false表示没有释放：堆缓冲区、slice()/duplicate()得到的视图（内存属于原缓冲区）、当前JDK不支持
+	 */
+	public static boolean free(ByteBuffer buffer) {
+		if (FREE == null || !buffer.isDirect()) {
+			return false;
+		}
+		try {
+			FREE.invokeExact(buffer);
+			return true;
+		} catch (IllegalArgumentException | NullPointerException e) {
+			// 视图没有Cleaner：JDK 9+抛出IllegalArgumentException，JDK 8的cleaner()返回null
+			return false;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 直接缓冲区的内存地址
+	 * @throws UnsupportedOperationException 当前JDK无法读取
+	 */
+	public static long address(ByteBuffer buffer) {
+		if (ADDRESS == null || !buffer.isDirect()) {
+			throw new UnsupportedOperationException("无法读取缓冲区地址：" + buffer);
+		}
+		try {
+			return (long) ADDRESS.invokeExact((Buffer) buffer);
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Object findUnsafe() {
+		try {
+			Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return field.get(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static MethodHandle findFree() {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		MethodType type = MethodType.methodType(void.class, ByteBuffer.class);
+		if (UNSAFE != null) {
+			try {
+				return lookup.findVirtual(UNSAFE.getClass(), "invokeCleaner", type).bindTo(UNSAFE);
+			} catch (ReflectiveOperationException e) {
+				// JDK 8没有invokeCleaner()
+			}
+		}
+		try {
+			Class<?> directBuffer = Class.forName("sun.nio.ch.DirectBuffer");
+			Class<?> cleaner = Class.forName("sun.misc.Cleaner");
+			// buffer -> ((DirectBuffer) buffer).cleaner().clean()
+			MethodHandle getCleaner = lookup.findVirtual(directBuffer, "cleaner", MethodType.methodType(cleaner));
+			MethodHandle clean = lookup.findVirtual(cleaner, "clean", MethodType.methodType(void.class));
+			return MethodHandles.filterReturnValue(getCleaner, clean).asType(type);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static MethodHandle findAddress() {
+		if (UNSAFE == null) {
+			return null;
+		}
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> unsafeClass = UNSAFE.getClass();
+			long offset = (long) lookup.findVirtual(unsafeClass, "objectFieldOffset", MethodType.methodType(long.class, Field.class))
+					.invoke(UNSAFE, Buffer.class.getDeclaredField("address"));
+			MethodHandle getLong = lookup.findVirtual(unsafeClass, "getLong", MethodType.methodType(long.class, Object.class, long.class));
+			// buffer -> unsafe.getLong(buffer, offset)
+			return MethodHandles.insertArguments(getLong, 2, offset).bindTo(UNSAFE)
+					.asType(MethodType.methodType(long.class, Buffer.class));
+		} catch (Throwable e) {
+			return null;
+		}
+	}
+}
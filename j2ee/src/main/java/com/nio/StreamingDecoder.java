@@ -0,0 +1,137 @@
+package com.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * StreamingDecoder：把分多次读到的字节流解码为字符，复用CharBuffer，不为每次读取创建String
+ *
+ * 	new String(buffer.array(), 0, n, charset)的问题
+ * 		每次读取都分配一个char[]（以及String本身），大量读取时GC压力大
+ * 		一个多字节字符（如UTF-8汉字3字节）被拆到两次读取时，两边都被解码成替换字符'�'
+ * 	实现
+ * 		CharsetDecoder.decode(in, out, false)解码到复用的CharBuffer，末尾不完整的字节序列留在in中
+ * 		把这些字节（最多MAX_PENDING个）复制到内部的carry缓冲区，下次decode()时先与新读取的字节拼成完整字符
+ * 		因此调用方可以在decode()返回后立即clear()/compact()自己的ByteBuffer
+ * 	返回值
+ * 		decode()返回内部CharBuffer本身（CharBuffer实现了CharSequence），position=0，limit=解码出的字符数
+ * 		只在下一次调用decode()/finish()之前有效，需要保留时自行toString()或复制
+ * 		CharBuffer容量不足时翻倍扩容，稳定后不再分配内存
+ *
+ * 	非线程安全，一个流一个实例
+ *
+ * @author nerv
+ *
+ */
+public class StreamingDecoder {
+
+	/** 默认初始字符容量 */
+	public static final int DEFAULT_CAPACITY = 8192;
+	/** 不完整字符的最大字节数，UTF-8最多4字节，GB18030最多4字节，留出余量 */
+	private static final int MAX_PENDING = 16;
+
+	private final CharsetDecoder decoder;
+	private final ByteBuffer carry;
+	private CharBuffer out;
+
+	public StreamingDecoder(Charset charset) {
+		this(charset, DEFAULT_CAPACITY, CodingErrorAction.REPLACE);
+	}
+
+	/**
+	 * @param charset	字符集
+	 * @param capacity	初始字符容量
+	 * @param onError	非法或无法映射的字节序列的处理方式，REPORT时decode()抛出IllegalStateException
+	 */
+	public StreamingDecoder(Charset charset, int capacity, CodingErrorAction onError) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity=" + capacity);
+		}
+		this.decoder = charset.newDecoder().onMalformedInput(onError).onUnmappableCharacter(onError);
+		this.carry = ByteBuffer.allocate(MAX_PENDING);
+		this.out = CharBuffer.allocate(capacity);
+	}
+
+	/**
+	 * 解码in的全部剩余字节，in的position移到limit
+	 * @return 本次解码出的字符，下一次调用前有效
+	 */
+	public CharSequence decode(ByteBuffer in) {
+		out.clear();
+		// 1. 先补全上次留下的不完整字符：逐字节追加到carry，直到解码出字符或carry被消费
+		while (carry.position() > 0 && in.hasRemaining()) {
+			carry.put(in.get());
+			carry.flip();
+			decode(carry, false);
+			carry.compact();
+		}
+		// 2. 解码其余字节，末尾不完整的字符存入carry
+		decode(in, false);
+		carry.put(in);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * 流结束：处理carry中残留的不完整字节（按onError替换或报错），并重置解码器
+	 * @return 残留字节解码出的字符，通常为空
+	 */
+	public CharSequence finish() {
+		out.clear();
+		carry.flip();
+		decode(carry, true);
+		carry.clear();
+		CoderResult result;
+		while ((result = decoder.flush(out)).isOverflow()) {
+			grow();
+		}
+		check(result);
+		decoder.reset();
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * 丢弃残留字节，重新开始一个流
+	 */
+	public void reset() {
+		carry.clear();
+		decoder.reset();
+		out.clear().limit(0);
+	}
+
+	/**
+	 * 残留的不完整字节数
+	 */
+	public int pending() {
+		return carry.position();
+	}
+
+	private void decode(ByteBuffer in, boolean endOfInput) {
+		CoderResult result;
+		while ((result = decoder.decode(in, out, endOfInput)).isOverflow()) {
+			grow();
+		}
+		check(result);
+	}
+
+	private static void check(CoderResult result) {
+		if (result.isError()) {
+			throw new IllegalStateException("无法解码的字节序列：" + result);
+		}
+	}
+
+	/**
+	 * 容量翻倍，保留已解码的字符
+	 */
+	private void grow() {
+		CharBuffer bigger = CharBuffer.allocate(out.capacity() * 2);
+		out.flip();
+		bigger.put(out);
+		out = bigger;
+	}
+}
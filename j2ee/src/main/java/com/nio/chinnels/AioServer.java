@@ -0,0 +1,375 @@
+package com.nio.chinnels;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.nio.ByteBufferPool;
+
+/**
+ * AioServer：基于AsynchronousServerSocketChannel的服务端引擎，协议由Handler实现
+ *
+ * 	AsynchronousChannel_.test7_1/test81只accept()一次。此处
+ * 		接收：accept()完成时先再次accept()（重新挂起），再处理新连接，接收不会中断
+ * 		读：每个连接一个池化的读缓冲区，read()完成 -> Handler.read() -> compact() -> 再次read()，链式进行
+ * 		写：同一连接同时只能有一个未完成的write()（否则WritePendingException），待写数据放入队列
+ * 			write()完成后继续写队列中的数据，一次最多聚集MAX_GATHER个缓冲区
+ * 			读和写各自链式进行，互不等待
+ * 		线程：全部回调在AsynchronousChannelGroup的固定线程池中执行，线程数可配置，Handler中不应阻塞
+ * 	优雅关闭shutdown(timeout)：关闭监听通道不再接收，等待全部连接的写队列写完（或超时），再关闭连接和通道组
+ *
+ * @author nerv
+ *
+ */
+public class AioServer implements Closeable {
+
+	/**
+	 * 协议处理器，回调在通道组的线程中执行
+	 */
+	public interface Handler {
+		default void opened(Connection connection) {
+		}
+
+		/**
+		 * 处理读到的数据，未消费的字节（如不完整的帧）保留到下次read()
+		 * @param data	连接的读缓冲区，只在回调期间有效
+		 */
+		void read(Connection connection, ByteBuffer data);
+
+		default void closed(Connection connection) {
+		}
+	}
+
+	/** 一次聚集写最多的缓冲区数 */
+	static final int MAX_GATHER = 16;
+
+	private final AsynchronousChannelGroup group;
+	private final AsynchronousServerSocketChannel server;
+	private final Handler handler;
+	private final int bufferSize;
+	private final ByteBufferPool pool = new ByteBufferPool();
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param threads		通道组的线程数
+	 * @param bufferSize	每个连接的读缓冲区大小
+	 */
+	public AioServer(InetSocketAddress address, int threads, int bufferSize, Handler handler) throws IOException {
+		if (threads <= 0 || bufferSize <= 0) {
+			throw new IllegalArgumentException("threads=" + threads + "，bufferSize=" + bufferSize);
+		}
+		AtomicInteger count = new AtomicInteger();
+		this.group = AsynchronousChannelGroup.withFixedThreadPool(threads, r -> new Thread(r, "aio-" + count.incrementAndGet()));
+		this.server = AsynchronousServerSocketChannel.open(group);
+		server.bind(address, 4096);
+		this.handler = handler;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * 开始接收连接
+	 */
+	public AioServer start() {
+		server.accept(null, accept);
+		return this;
+	}
+
+	public InetSocketAddress getLocalAddress() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	/**
+	 * 当前连接，可用于广播
+	 */
+	public Set<Connection> connections() {
+		return connections;
+	}
+
+	/**
+	 * 优雅关闭：停止接收，等待已入队的数据写完，最多等待timeout
+	 * @return 是否在超时前全部写完
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		server.close();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		boolean flushed;
+		while (!(flushed = connections.stream().allMatch(Connection::isFlushed)) && System.nanoTime() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		for (Connection connection : connections) {
+			connection.close();
+		}
+		group.shutdownNow();
+		group.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		return flushed;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			shutdown(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private final CompletionHandler<AsynchronousSocketChannel, Void> accept = new CompletionHandler<AsynchronousSocketChannel, Void>() {
+
+		@Override
+		public void completed(AsynchronousSocketChannel channel, Void attachment) {
+			// 先重新挂起accept()，再处理本连接
+			server.accept(null, this);
+			try {
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			Connection connection = new Connection(channel);
+			connections.add(connection);
+			handler.opened(connection);
+			connection.read();
+		}
+
+		@Override
+		public void failed(Throwable exc, Void attachment) {
+			if (server.isOpen()) {
+				// 如文件描述符耗尽等暂时性错误，继续接收
+				exc.printStackTrace();
+				server.accept(null, this);
+			}
+		}
+	};
+
+	/**
+	 * 一个连接
+	 * 		in		池化的读缓冲区，读循环结束（对方关闭或出错）时归还
+	 * 		writes	待写数据，任意线程入队；writing表示有未完成的write()
+	 */
+	public final class Connection {
+		private final AsynchronousSocketChannel channel;
+		private final ByteBuffer in;
+		private final Queue<Outbound> writes = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean writing = new AtomicBoolean();
+		private final AtomicBoolean closed = new AtomicBoolean();
+		/** 当前write()的缓冲区，只由持有writing的线程访问 */
+		private final Outbound[] batch = new Outbound[MAX_GATHER];
+		private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+		private int batchSize;
+		private volatile Object attachment;
+
+		Connection(AsynchronousSocketChannel channel) {
+			this.channel = channel;
+			this.in = pool.acquire(bufferSize);
+		}
+
+		public AioServer server() {
+			return AioServer.this;
+		}
+
+		public Object attachment() {
+			return attachment;
+		}
+
+		public void attach(Object attachment) {
+			this.attachment = attachment;
+		}
+
+		/**
+		 * 发送buffer的剩余字节，写完前不能修改；可以是多个连接共享的只读副本
+		 */
+		public void write(ByteBuffer buffer) {
+			enqueue(new Outbound(buffer, false));
+		}
+
+		/**
+		 * 把data的剩余字节复制到池化缓冲区后发送，写完后归还缓冲区；data可立即复用
+		 */
+		public void send(ByteBuffer data) {
+			if (!data.hasRemaining()) {
+				return;
+			}
+			ByteBuffer copy = pool.acquire(data.remaining());
+			copy.put(data).flip();
+			enqueue(new Outbound(copy, true));
+		}
+
+		public void close() {
+			if (!closed.compareAndSet(false, true)) {
+				return;
+			}
+			connections.remove(this);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			discard();
+			handler.closed(this);
+		}
+
+		boolean isFlushed() {
+			return closed.get() || (writes.isEmpty() && !writing.get());
+		}
+
+		void read() {
+			channel.read(in, this, READ);
+		}
+
+		private void enqueue(Outbound outbound) {
+			if (closed.get()) {
+				outbound.release();
+				return;
+			}
+			writes.add(outbound);
+			if (closed.get()) {
+				// 与close()并发，close()可能已清空队列
+				discard();
+				return;
+			}
+			if (writing.compareAndSet(false, true)) {
+				writeBatch();
+			}
+		}
+
+		/**
+		 * 取出一批待写数据并write()，调用方持有writing
+		 */
+		private void writeBatch() {
+			Outbound outbound;
+			batchSize = 0;
+			while (batchSize < MAX_GATHER && (outbound = writes.poll()) != null) {
+				batch[batchSize] = outbound;
+				gather[batchSize] = outbound.buffer;
+				batchSize++;
+			}
+			if (batchSize == 0) {
+				writing.set(false);
+				// 释放writing之前入队的数据可能没有线程负责写，重新检查
+				if (!writes.isEmpty() && writing.compareAndSet(false, true)) {
+					writeBatch();
+				}
+				return;
+			}
+			write();
+		}
+
+		/**
+		 * 写出当前批次的剩余部分，全部写完后取下一批
+		 */
+		private void write() {
+			int first = 0;
+			while (first < batchSize && !gather[first].hasRemaining()) {
+				first++;
+			}
+			if (first == batchSize) {
+				releaseBatch();
+				writeBatch();
+				return;
+			}
+			try {
+				channel.write(gather, first, batchSize - first, 0, TimeUnit.MILLISECONDS, this, WRITE);
+			} catch (RuntimeException e) {
+				// 通道已关闭等
+				releaseBatch();
+				close();
+			}
+		}
+
+		private void discard() {
+			Outbound outbound;
+			while ((outbound = writes.poll()) != null) {
+				outbound.release();
+			}
+		}
+
+		private void releaseBatch() {
+			for (int i = 0; i < batchSize; i++) {
+				batch[i].release();
+				batch[i] = null;
+				gather[i] = null;
+			}
+			batchSize = 0;
+		}
+	}
+
+	private final CompletionHandler<Integer, Connection> READ = new CompletionHandler<Integer, Connection>() {
+
+		@Override
+		public void completed(Integer n, Connection connection) {
+			if (n == -1) {
+				finish(connection);
+				return;
+			}
+			ByteBuffer in = connection.in;
+			in.flip();
+			handler.read(connection, in);
+			in.compact();
+			if (!in.hasRemaining()) {
+				// 读缓冲区已满而处理器无法消费，数据不可能被处理
+				finish(connection);
+				return;
+			}
+			connection.read();
+		}
+
+		@Override
+		public void failed(Throwable exc, Connection connection) {
+			finish(connection);
+		}
+
+		/**
+		 * 读循环结束，之后不再有read()使用读缓冲区，可以归还
+		 */
+		private void finish(Connection connection) {
+			connection.close();
+			pool.release(connection.in);
+		}
+	};
+
+	private final CompletionHandler<Long, Connection> WRITE = new CompletionHandler<Long, Connection>() {
+
+		@Override
+		public void completed(Long n, Connection connection) {
+			// 可能只写出一部分，write()跳过已写完的缓冲区继续
+			connection.write();
+		}
+
+		@Override
+		public void failed(Throwable exc, Connection connection) {
+			connection.releaseBatch();
+			connection.close();
+		}
+	};
+
+	/**
+	 * 待写数据，pooled表示写完后归还到池中
+	 */
+	private final class Outbound {
+		final ByteBuffer buffer;
+		final boolean pooled;
+
+		Outbound(ByteBuffer buffer, boolean pooled) {
+			this.buffer = buffer;
+			this.pooled = pooled;
+		}
+
+		void release() {
+			if (pooled) {
+				pool.release(buffer);
+			}
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package com.nio.chinnels;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.nio.ByteBufferPool;
+
+/**
+ * AsyncFileReader：用AsynchronousFileChannel流式读取大文件，有界的并发读取数 + 缓冲区环 + 按顺序交付
+ *
+ * 	AsynchronousChannel_.test5/test6只发起一次read()，此处用CompletionHandler链式地读完整个文件
+ * 		文件按bufferSize切块，第k块使用环中第k % ringSize个缓冲区，同时最多ringSize个读取在进行
+ * 		读取完成的顺序不确定，交付给consumer时按文件顺序，未轮到的块在环中等待
+ * 		块交付完毕（consumer返回）后缓冲区才空闲，才发起第k + ringSize块的读取
+ * 		consumer处理慢时缓冲区全部被占用，不再发起新的读取，即自动背压，内存占用固定为ringSize * bufferSize
+ * 		缓冲区取自ByteBufferPool，读完后归还；异常结束时可能仍有读取在进行，不归还，交由GC回收
+ *
+ * 	线程池
+ * 		AsynchronousFileChannel没有AsynchronousChannelGroup，其"组"就是open()时传入的ExecutorService
+ * 		多个文件共用一个固定大小的线程池（newExecutor()），用少量线程即可让多个文件同时读满磁盘带宽，而不是每个文件一个线程
+ * 		consumer在线程池的线程中执行，同一时刻只有一个线程在交付同一文件的块
+ *
+ * @author nerv
+ *
+ */
+public class AsyncFileReader {
+
+	/**
+	 * 块处理回调，chunk只在回调期间有效，回调返回后缓冲区被复用
+	 */
+	public interface ChunkConsumer {
+		void accept(long position, ByteBuffer chunk) throws Exception;
+	}
+
+	private static final ByteBufferPool POOL = new ByteBufferPool();
+
+	private final ExecutorService executor;
+	private final int bufferSize;
+	private final int ringSize;
+
+	/**
+	 * @param executor		AsynchronousFileChannel使用的线程池，可被多个文件共用
+	 * @param bufferSize	每块大小
+	 * @param ringSize		缓冲区个数，即同时进行的读取数上限
+	 */
+	public AsyncFileReader(ExecutorService executor, int bufferSize, int ringSize) {
+		if (bufferSize <= 0 || ringSize <= 0) {
+			throw new IllegalArgumentException("bufferSize=" + bufferSize + "，ringSize=" + ringSize);
+		}
+		this.executor = executor;
+		this.bufferSize = bufferSize;
+		this.ringSize = ringSize;
+	}
+
+	/**
+	 * 创建固定大小的守护线程池，供多个AsyncFileReader共用
+	 */
+	public static ExecutorService newExecutor(int threads) {
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "async-file-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * 异步读取整个文件，按顺序交付给consumer
+	 * @return 读完并交付全部块后完成，值为读取的总字节数；读取或consumer异常则异常完成
+	 */
+	public CompletableFuture<Long> read(Path path, ChunkConsumer consumer) throws IOException {
+		AsynchronousFileChannel channel = AsynchronousFileChannel.open(path,
+				Collections.singleton(StandardOpenOption.READ), executor);
+		Pipeline pipeline;
+		try {
+			pipeline = new Pipeline(channel, consumer);
+		} catch (IOException | RuntimeException | Error e) {
+			// 如size()失败、直接内存不足：Pipeline未建立，由这里关闭通道
+			try {
+				channel.close();
+			} catch (IOException closeError) {
+				e.addSuppressed(closeError);
+			}
+			throw e;
+		}
+		pipeline.start();
+		return pipeline.result;
+	}
+
+	/**
+	 * 一次文件读取的状态
+	 */
+	private final class Pipeline {
+		final AsynchronousFileChannel channel;
+		final ChunkConsumer consumer;
+		final CompletableFuture<Long> result = new CompletableFuture<>();
+		final Slot[] ring = new Slot[ringSize];
+		final long chunks;
+		/** 交付的排他标记：0空闲，>0表示有线程在交付，其它线程只增加计数让其再检查一轮 */
+		final AtomicInteger wip = new AtomicInteger();
+		/** 下一个要交付的块，只由交付线程修改 */
+		long next;
+		long bytes;
+
+		Pipeline(AsynchronousFileChannel channel, ChunkConsumer consumer) throws IOException {
+			this.channel = channel;
+			this.consumer = consumer;
+			long size = channel.size();
+			this.chunks = (size + bufferSize - 1) / bufferSize;
+			try {
+				for (int i = 0; i < ringSize; i++) {
+					ring[i] = new Slot(POOL.acquire(bufferSize));
+				}
+			} catch (RuntimeException | Error e) {
+				// 归还已取得的缓冲区
+				for (Slot slot : ring) {
+					if (slot != null) {
+						POOL.release(slot.buffer);
+					}
+				}
+				throw e;
+			}
+		}
+
+		void start() {
+			if (chunks == 0) {
+				finish(null);
+				return;
+			}
+			for (long k = 0; k < Math.min(ringSize, chunks); k++) {
+				issue(k);
+			}
+		}
+
+		/**
+		 * 发起第k块的读取
+		 */
+		void issue(long k) {
+			Slot slot = ring[(int) (k % ringSize)];
+			slot.chunk = k;
+			slot.ready = false;
+			// 池中缓冲区的capacity可能大于bufferSize
+			slot.buffer.clear().limit(bufferSize);
+			channel.read(slot.buffer, k * bufferSize, slot, handler);
+		}
+
+		final CompletionHandler<Integer, Slot> handler = new CompletionHandler<Integer, Slot>() {
+
+			@Override
+			public void completed(Integer n, Slot slot) {
+				// 一次read()可能未读满缓冲区，继续读取本块剩余部分，直到读满或到达文件末尾
+				if (n != -1 && slot.buffer.hasRemaining()) {
+					channel.read(slot.buffer, slot.chunk * bufferSize + slot.buffer.position(), slot, this);
+					return;
+				}
+				slot.buffer.flip();
+				slot.ready = true;
+				drain();
+			}
+
+			@Override
+			public void failed(Throwable exc, Slot slot) {
+				finish(exc);
+			}
+		};
+
+		/**
+		 * 按顺序交付已完成的块；交付后立即用空出的缓冲区发起下一次读取
+		 */
+		void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			do {
+				while (!result.isDone()) {
+					Slot slot = ring[(int) (next % ringSize)];
+					if (!slot.ready || slot.chunk != next) {
+						break;
+					}
+					try {
+						bytes += slot.buffer.remaining();
+						consumer.accept(next * bufferSize, slot.buffer);
+					} catch (Throwable e) {
+						finish(e);
+						return;
+					}
+					slot.ready = false;
+					next++;
+					if (next == chunks) {
+						finish(null);
+						return;
+					}
+					if (next + ringSize - 1 < chunks) {
+						issue(next + ringSize - 1);
+					}
+				}
+			} while (wip.decrementAndGet() != 0);
+		}
+
+		void finish(Throwable e) {
+			try {
+				channel.close();
+			} catch (IOException closeError) {
+				if (e == null) {
+					e = closeError;
+				}
+			}
+			if (e == null) {
+				for (Slot slot : ring) {
+					POOL.release(slot.buffer);
+				}
+				result.complete(bytes);
+			} else {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * 环中的缓冲区
+	 * 		chunk	当前存放的块号
+	 * 		ready	读取已完成，等待交付
+	 */
+	private static final class Slot {
+		final ByteBuffer buffer;
+		volatile long chunk;
+		volatile boolean ready;
+
+		Slot(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+}
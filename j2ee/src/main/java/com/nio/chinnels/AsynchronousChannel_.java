@@ -1,24 +1,49 @@
 package com.nio.chinnels;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
 
 import org.junit.Test;
 
+import com.java.net.ChatServer;
+import com.java.net.EchoLoad;
+import com.java.net.UtfFrameCodec;
+
 
 /**
  * AsynchronousChannel 异步通道，AIO。
@@ -297,4 +322,298 @@ public class AsynchronousChannel_ {
 	
 	
 	
+	/**
+	 * AsyncFileReader：files个文件共用一个threads线程的线程池并发读取，与单线程逐个FileChannel.read()比较
+	 * 		每个文件最多ring个读取同时进行，交付顺序必须与文件顺序一致（检查position连续）
+	 * 		最后用一个慢consumer读取，读取进度被consumer限制，内存占用仍为ring * bufferSize
+	 * 	文件大小通过-Dbench.size=字节数指定，默认每个128M
+	 */
+	@Test
+	public void test9() throws Exception {
+		long fileSize = Long.getLong("bench.size", 128L << 20);
+		int files = 4, threads = 2, bufferSize = 1 << 20, ring = 8;
+		List<Path> paths = new ArrayList<>();
+		try {
+			byte[] block = new byte[bufferSize];
+			new Random(1).nextBytes(block);
+			for (int i = 0; i < files; i++) {
+				Path path = Files.createTempFile("async", ".dat");
+				paths.add(path);
+				try (OutputStream out = Files.newOutputStream(path)) {
+					for (long n = 0; n < fileSize; n += block.length) {
+						out.write(block);
+					}
+				}
+			}
+			long total = files * Files.size(paths.get(0));
+			ExecutorService executor = AsyncFileReader.newExecutor(threads);
+			AsyncFileReader reader = new AsyncFileReader(executor, bufferSize, ring);
+			for (int round = 0; round < 2; round++) {
+				long begin = System.nanoTime(), sum = 0;
+				ByteBuffer dst = ByteBuffer.allocateDirect(bufferSize);
+				for (Path path : paths) {
+					try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+						while (channel.read(dst) != -1) {
+							dst.flip();
+							while (dst.hasRemaining()) {
+								sum += dst.get();
+							}
+							dst.clear();
+						}
+					}
+				}
+				long cost = System.nanoTime() - begin;
+				System.out.printf("单线程FileChannel：%dM，%dms，%.1fMB/s，sum=%d%n", total >> 20, cost / 1000000, total * 1000.0 / cost, sum);
+				
+				begin = System.nanoTime();
+				LongAdder asyncSum = new LongAdder();
+				List<CompletableFuture<Long>> futures = new ArrayList<>();
+				for (Path path : paths) {
+					long[] expected = {0};
+					futures.add(reader.read(path, (position, chunk) -> {
+						if (position != expected[0]) {
+							throw new IllegalStateException("期望" + expected[0] + "，实际" + position);
+						}
+						expected[0] += chunk.remaining();
+						long s = 0;
+						while (chunk.hasRemaining()) {
+							s += chunk.get();
+						}
+						asyncSum.add(s);
+					}));
+				}
+				CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+				cost = System.nanoTime() - begin;
+				System.out.printf("AsyncFileReader（%d个线程，每文件%d个缓冲区）：%dM，%dms，%.1fMB/s，sum=%d%n",
+						threads, ring, total >> 20, cost / 1000000, total * 1000.0 / cost, asyncSum.sum());
+			}
+			
+			// 慢consumer：每块sleep 10ms，读取速度随之下降，不会把整个文件读入内存
+			long begin = System.nanoTime();
+			long bytes = reader.read(paths.get(0), (position, chunk) -> Thread.sleep(10)).get();
+			long cost = System.nanoTime() - begin;
+			System.out.printf("慢consumer：%dM，%dms，%.1fMB/s%n", bytes >> 20, cost / 1000000, bytes * 1000.0 / cost);
+			executor.shutdown();
+		} finally {
+			for (Path path : paths) {
+				Files.delete(path);
+			}
+		}
+	}
+	
+
+	/**
+	 * AioServer与Selector实现的对比，同一机器、相同线程数、相同负载
+	 * 	回显：connections个连接，每个连接往返rounds次64字节（-Dbench.connections，默认1000）
+	 * 		AIO：AioServer，回调中send()复制到池化缓冲区后写回
+	 * 		Selector：SelectorEchoServer，threads个Selector共同注册同一个ServerSocketChannel，哪个先accept()到就由哪个处理
+	 * 	群聊：clients个客户端各发送messages条writeUTF()消息，每条转发给其余客户端
+	 * 		AIO：Handler用UtfFrameCodec拆帧，帧复制一次后以只读副本写给其余连接，写队列无上限
+	 * 		Selector：ChatServer（多Reactor，BLOCK策略）
+	 * 	AIO每次读写完成都要经过通道组线程池的任务分派，Selector在同一线程内连续处理就绪的连接；
+	 * 	连接多、每次数据少时Selector通常更快，AIO的优势在于编程模型（不必自己管理interestOps）
+	 */
+	@Test
+	public void test10() throws Exception {
+		int connections = Integer.getInteger("bench.connections", 1000), rounds = 100;
+		int threads = Runtime.getRuntime().availableProcessors();
+		InetSocketAddress any = new InetSocketAddress("127.0.0.1", 0);
+		for (int round = 0; round < 2; round++) {
+			try (AioServer server = new AioServer(any, threads, 4096, (connection, data) -> connection.send(data)).start()) {
+				long begin = System.nanoTime();
+				EchoLoad.run(server.getLocalAddress(), connections, rounds);
+				long cost = System.nanoTime() - begin;
+				System.out.printf("回显 AIO：%d个连接 x %d次，%dms，%.0f次/秒%n", connections, rounds, cost / 1000000,
+						(double) connections * rounds * 1e9 / cost);
+			}
+			try (SelectorEchoServer server = new SelectorEchoServer(any, threads)) {
+				long begin = System.nanoTime();
+				EchoLoad.run(server.getLocalAddress(), connections, rounds);
+				long cost = System.nanoTime() - begin;
+				System.out.printf("回显 Selector：%d个连接 x %d次，%dms，%.0f次/秒%n", connections, rounds, cost / 1000000,
+						(double) connections * rounds * 1e9 / cost);
+			}
+		}
+		
+		int clients = 100, messages = 50;
+		AioServer.Handler chat = new AioServer.Handler() {
+			
+			@Override
+			public void opened(AioServer.Connection connection) {
+				connection.attach(new UtfFrameCodec());
+			}
+			
+			@Override
+			public void read(AioServer.Connection connection, ByteBuffer data) {
+				UtfFrameCodec codec = (UtfFrameCodec) connection.attachment();
+				while (codec.decode(data)) {
+					ByteBuffer frame = ByteBuffer.allocate(codec.frame().remaining());
+					frame.put(codec.frame()).flip();
+					ByteBuffer shared = frame.asReadOnlyBuffer();
+					for (AioServer.Connection other : connection.server().connections()) {
+						if (other != connection) {
+							other.write(shared.duplicate());
+						}
+					}
+				}
+			}
+		};
+		for (int round = 0; round < 2; round++) {
+			try (AioServer server = new AioServer(any, threads, 4096, chat).start()) {
+				long cost = chat(server.getLocalAddress(), () -> server.connections().size(), clients, messages);
+				System.out.printf("群聊 AIO：%d个客户端，转发%d条消息，%dms%n", clients, (long) clients * (clients - 1) * messages, cost);
+			}
+			try (ChatServer server = new ChatServer(any, threads, 1024, ChatServer.SlowConsumerPolicy.BLOCK).start()) {
+				long cost = chat(server.getLocalAddress(), server::sessions, clients, messages);
+				System.out.printf("群聊 Selector：%d个客户端，转发%d条消息，%dms%n", clients, (long) clients * (clients - 1) * messages, cost);
+			}
+		}
+	}
+	
+	/**
+	 * 群聊负载：与聊天_群聊_多线程.nioServerLoad()相同，每个客户端一个读取线程
+	 * @param sessions	服务端已建立的连接数，全部连上后才开始发送
+	 * @return 从开始发送到全部客户端收齐的毫秒数
+	 */
+	private static long chat(InetSocketAddress address, IntSupplier sessions, int clients, int messages) throws Exception {
+		List<Socket> sockets = new ArrayList<>();
+		try {
+			for (int i = 0; i < clients; i++) {
+				Socket socket = new Socket(address.getAddress(), address.getPort());
+				socket.setTcpNoDelay(true);
+				sockets.add(socket);
+			}
+			while (sessions.getAsInt() < clients) {
+				Thread.sleep(10);
+			}
+			long expected = (long) (clients - 1) * messages;
+			CountDownLatch done = new CountDownLatch(clients);
+			for (Socket socket : sockets) {
+				new Thread(() -> {
+					try {
+						DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+						for (long n = 0; n < expected; n++) {
+							dis.readUTF();
+						}
+						done.countDown();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}).start();
+			}
+			long begin = System.nanoTime();
+			for (int m = 0; m < messages; m++) {
+				for (int i = 0; i < clients; i++) {
+					new DataOutputStream(sockets.get(i).getOutputStream()).writeUTF("【用户" + i + "】：消息" + m);
+				}
+			}
+			if (!done.await(60, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("60秒内未收齐消息");
+			}
+			return (System.nanoTime() - begin) / 1000000;
+		} finally {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+	
+	/**
+	 * 对比用的Selector回显服务端：threads个Reactor线程，各自的Selector都注册同一个ServerSocketChannel
+	 * 		就绪的accept()只有一个线程能拿到连接，其余返回null；连接此后一直由该线程处理
+	 * 		每个连接一个4K缓冲区，写不完时停止读取并关注OP_WRITE
+	 */
+	private static class SelectorEchoServer implements Closeable {
+		
+		private final ServerSocketChannel server;
+		private final List<Selector> selectors = new ArrayList<>();
+		private final List<Thread> reactors = new ArrayList<>();
+		private volatile boolean running = true;
+		
+		SelectorEchoServer(InetSocketAddress address, int threads) throws IOException {
+			server = ServerSocketChannel.open();
+			server.bind(address, 4096);
+			server.configureBlocking(false);
+			for (int i = 0; i < threads; i++) {
+				Selector selector = Selector.open();
+				server.register(selector, SelectionKey.OP_ACCEPT);
+				selectors.add(selector);
+				Thread reactor = new Thread(() -> react(selector), "selector-echo-" + i);
+				reactors.add(reactor);
+				reactor.start();
+			}
+		}
+		
+		InetSocketAddress getLocalAddress() throws IOException {
+			return (InetSocketAddress) server.getLocalAddress();
+		}
+		
+		private void react(Selector selector) {
+			try {
+				while (running) {
+					selector.select();
+					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+					while (iterator.hasNext()) {
+						SelectionKey key = iterator.next();
+						iterator.remove();
+						try {
+							if (key.isAcceptable()) {
+								SocketChannel channel = server.accept();
+								if (channel != null) {
+									channel.configureBlocking(false);
+									channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+									channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(4096));
+								}
+								continue;
+							}
+							SocketChannel channel = (SocketChannel) key.channel();
+							ByteBuffer buffer = (ByteBuffer) key.attachment();
+							if (key.isReadable() && channel.read(buffer) == -1) {
+								channel.close();
+								continue;
+							}
+							buffer.flip();
+							channel.write(buffer);
+							buffer.compact();
+							key.interestOps(buffer.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+						} catch (IOException e) {
+							key.channel().close();
+						}
+					}
+				}
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			running = false;
+			for (Selector selector : selectors) {
+				selector.wakeup();
+			}
+			try {
+				for (Thread reactor : reactors) {
+					reactor.join();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (Selector selector : selectors) {
+				selector.close();
+			}
+			server.close();
+		}
+	}
+	
 }
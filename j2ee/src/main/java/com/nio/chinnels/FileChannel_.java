@@ -10,9 +10,13 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.junit.Test;
 
@@ -482,5 +486,152 @@ public class FileChannel_ {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * MappedFileRegion与read(ByteBuffer, position)顺序扫描大文件的对比
+	 * 		MappedFileRegion：滑动窗口映射，每个窗口64M，预读下一窗口
+	 * 		read(ByteBuffer, position)：每次从内核缓存复制64K到直接缓冲区
+	 * 	两者都把全部字节累加一遍，防止读取被优化掉；先各跑一轮预热，文件已在操作系统缓存中
+	 * 	文件大小通过-Dbench.size=字节数指定，默认512M
+	 */
+	@Test
+	public void test12() throws IOException {
+		long fileSize = Long.getLong("bench.size", 512L << 20);
+		Path path = Files.createTempFile("mapped", ".dat");
+		try {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				ByteBuffer block = ByteBuffer.allocateDirect(1 << 20);
+				while (block.hasRemaining()) {
+					block.put((byte) block.position());
+				}
+				for (long pos = 0; pos < fileSize; pos += block.capacity()) {
+					block.clear();
+					channel.write(block, pos);
+				}
+			}
+			fileSize = Files.size(path);
+			for (int round = 0; round < 2; round++) {
+				long begin = System.nanoTime();
+				long sum = 0;
+				try (MappedFileRegion region = new MappedFileRegion(path)) {
+					byte[] dst = new byte[64 << 10];
+					int n;
+					for (long pos = 0; (n = region.get(pos, dst, 0, dst.length)) != -1; pos += n) {
+						for (int i = 0; i < n; i++) {
+							sum += dst[i];
+						}
+					}
+				}
+				report("MappedFileRegion", fileSize, System.nanoTime() - begin, sum);
+				
+				begin = System.nanoTime();
+				sum = 0;
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+					ByteBuffer dst = ByteBuffer.allocateDirect(64 << 10);
+					int n;
+					for (long pos = 0; (n = channel.read(dst, pos)) != -1; pos += n) {
+						dst.flip();
+						while (dst.hasRemaining()) {
+							sum += dst.get();
+						}
+						dst.clear();
+					}
+				}
+				report("read(ByteBuffer, position)", fileSize, System.nanoTime() - begin, sum);
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+	
+	/**
+	 * GroupCommitJournal组提交与逐条force()比较：threads个线程各追加records条100字节的记录
+	 * 		逐条force()：每个线程write()后立即force(false)，fsync次数=记录数
+	 * 		组提交：写线程把并发到达的记录合并为一次聚集写和一次force(false)
+	 * 	最后重新打开日志，模拟崩溃时写了半条记录，验证恢复时被截断
+	 */
+	@Test
+	public void test13() throws Exception {
+		int threads = 16, records = 500;
+		byte[] payload = new byte[100];
+		Path dir = Files.createTempDirectory("journal");
+		try {
+			// 1. 逐条force()
+			Path file = dir.resolve("fsync.dat");
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				long begin = System.currentTimeMillis();
+				runThreads(threads, () -> {
+					for (int i = 0; i < records; i++) {
+						try {
+							synchronized (channel) {
+								channel.write(ByteBuffer.wrap(payload));
+								channel.force(false);
+							}
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				});
+				long time = Math.max(1, System.currentTimeMillis() - begin);
+				System.out.println("逐条force()：" + time + "ms，" + threads * records * 1000L / time + "条/s");
+			}
+			Files.delete(file);
+			
+			// 2. 组提交
+			Path journalDir = dir.resolve("journal");
+			try (GroupCommitJournal journal = new GroupCommitJournal(journalDir, 64 << 10, 1024)) {
+				long begin = System.currentTimeMillis();
+				runThreads(threads, () -> {
+					for (int i = 0; i < records; i++) {
+						// 同步等待落盘，与逐条force()语义相同
+						journal.append(payload).join();
+					}
+				});
+				long time = Math.max(1, System.currentTimeMillis() - begin);
+				System.out.println("组提交：" + time + "ms，" + threads * records * 1000L / time + "条/s，平均每批"
+						+ journal.records() / journal.batches() + "条");
+			}
+			
+			// 3. 模拟崩溃：在最后一个分段末尾写入半条记录，重新打开后被截断
+			Path last;
+			try (Stream<Path> stream = Files.list(journalDir)) {
+				last = stream.sorted().reduce((a, b) -> b).get();
+			}
+			try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+				// 记录头声明100字节，实际只写入20字节
+				ByteBuffer torn = ByteBuffer.allocate(28);
+				torn.putInt(0, 100);
+				channel.write(torn);
+			}
+			try (GroupCommitJournal journal = new GroupCommitJournal(journalDir)) {
+				long[] count = new long[1];
+				journal.replay(0, (sequence, buffer) -> count[0]++);
+				System.out.println("恢复后记录数：" + count[0] + "，下一条序号：" + journal.append(payload).get());
+			}
+		} finally {
+			try (Stream<Path> stream = Files.walk(dir)) {
+				stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+	
+	/**
+	 * 启动多个线程执行同一任务，等待全部结束
+	 */
+	private static void runThreads(int threads, Runnable task) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(task);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+	
+	private static void report(String name, long bytes, long nanos, long checksum) {
+		System.out.printf("%-28s %6d ms  %8.1f MB/s  (checksum=%d)%n", name, nanos / 1000000,
+				bytes / 1048576.0 / (nanos / 1e9), checksum);
+	}
 
 }
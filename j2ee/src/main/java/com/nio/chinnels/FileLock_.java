@@ -1,9 +1,13 @@
 package com.nio.chinnels;
 
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 import org.junit.Test;
 
@@ -54,4 +58,53 @@ public class FileLock_ {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * RangeLockManager：多个线程对同一文件的重叠区域加锁，不会OverlappingFileLockException，而是等待
+	 * 		每个线程向自己的块写入blocks次，每次写入时锁定该块；同时每次也锁定一个与相邻线程重叠的区间
+	 * 		对比：所有线程锁定全部块（相当于锁定整个文件），写入完全串行
+	 */
+	@Test
+	public void lock7() throws Exception {
+		int threads = 8, blocks = 200, blockSize = 64 << 10;
+		Path path = Files.createTempFile("range", ".dat");
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				RangeLockManager manager = new RangeLockManager(channel, blockSize, 16)) {
+			for (int type = 0; type < 2; type++) {
+				boolean wholeFile = type == 1;
+				Thread[] workers = new Thread[threads];
+				long begin = System.currentTimeMillis();
+				for (int t = 0; t < threads; t++) {
+					long position = (long) t * blockSize;
+					workers[t] = new Thread(() -> {
+						ByteBuffer buffer = ByteBuffer.allocateDirect(blockSize);
+						try {
+							for (int i = 0; i < blocks; i++) {
+								// 区间跨越当前块和下一个线程的块的前半部分，与相邻线程重叠
+								long size = wholeFile ? (threads + 1L) * blockSize : blockSize + blockSize / 2;
+								long from = wholeFile ? 0 : position;
+								RangeLockManager.RangeLock lock = manager.lock(from, size, false);
+								try {
+									buffer.clear();
+									channel.write(buffer, position);
+									channel.force(false);
+								} finally {
+									lock.release();
+								}
+							}
+						} catch (IOException | InterruptedException e) {
+							e.printStackTrace();
+						}
+					});
+					workers[t].start();
+				}
+				for (Thread worker : workers) {
+					worker.join();
+				}
+				System.out.println((wholeFile ? "锁定整个文件：" : "按区间加锁：") + (System.currentTimeMillis() - begin) + "ms");
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
 }
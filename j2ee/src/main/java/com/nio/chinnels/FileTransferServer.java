@@ -0,0 +1,249 @@
+package com.nio.chinnels;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+/**
+ * FileTransferServer：单线程Selector文件下载服务，用FileChannel.transferTo()零拷贝发送文件
+ *
+ * 	协议
+ * 		请求：文件名（相对于根目录，UTF-8）+ '\n'
+ * 		响应：8字节文件长度（文件不存在则-1）+ 文件内容；一个连接可连续请求多个文件
+ *
+ * 	与Selector_.test4的区别
+ * 		test4为每个可写的键分配50M直接缓冲区，并在非阻塞通道上while(hasRemaining())空转直到写完
+ * 		此处transferTo()由操作系统直接把文件页缓存发往socket（Linux为sendfile），不经过用户态缓冲区
+ * 		非阻塞通道一次只能写出socket发送缓冲区剩余的容量，发送进度（position）存在SelectionKey的附件Transfer中
+ * 		写完一个文件即关闭OP_WRITE、打开OP_READ等待下一个请求；收到请求再打开OP_WRITE，不会因无数据可写而空转
+ * 		文件在发送过程中被截断时关闭该连接：响应头中的长度已发出，客户端据此判断响应不完整
+ *
+ * @author nerv
+ *
+ */
+public class FileTransferServer implements Runnable, Closeable {
+
+	/** 每次transferTo()最多发送的字节数，避免单个连接长时间占用选择线程 */
+	private static final long MAX_TRANSFER = 8 << 20;
+	/** 请求行最大长度 */
+	private static final int MAX_REQUEST = 1024;
+
+	private final Path root;
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private volatile boolean running = true;
+
+	public FileTransferServer(InetSocketAddress address, Path root) throws IOException {
+		this.root = root.toAbsolutePath().normalize();
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		server.bind(address, 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * 实际绑定的地址，端口为0时可用于获取系统分配的端口
+	 */
+	public InetSocketAddress getLocalAddress() throws IOException {
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();	// 避免重复消费
+					try {
+						if (key.isAcceptable()) {
+							accept();
+						} else if (key.isReadable()) {
+							read(key);
+						} else if (key.isWritable()) {
+							write(key);
+						}
+					} catch (IOException e) {
+						// 单个连接异常（如客户端中途断开）不影响其它连接
+						release(key);
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				release(key);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		// 一次处理全部排队的连接
+		while ((channel = server.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, new Transfer());
+		}
+	}
+
+	/**
+	 * 读取请求行，读完整行后打开对应文件，切换为OP_WRITE
+	 */
+	private void read(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Transfer transfer = (Transfer) key.attachment();
+		if (channel.read(transfer.request) == -1) {
+			release(key);
+			return;
+		}
+		parse(key);
+	}
+
+	/**
+	 * 解析已读到的请求行，不完整则继续等待OP_READ
+	 */
+	private void parse(SelectionKey key) throws IOException {
+		Transfer transfer = (Transfer) key.attachment();
+		ByteBuffer request = transfer.request;
+		int end = -1;
+		for (int i = 0; i < request.position(); i++) {
+			if (request.get(i) == '\n') {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			if (!request.hasRemaining()) {
+				release(key);	// 请求行过长
+			}
+			return;
+		}
+		String name = new String(request.array(), 0, end, StandardCharsets.UTF_8).trim();
+		// 保留请求行之后已读到的数据（客户端可能连续发送多个请求）
+		request.flip().position(end + 1);
+		request.compact();
+		transfer.open(resolve(name));
+		key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * 先发送长度头，再transferTo()发送文件内容；发送完毕关闭OP_WRITE，等待下一个请求
+	 */
+	private void write(SelectionKey key) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		Transfer transfer = (Transfer) key.attachment();
+		if (transfer.header.hasRemaining()) {
+			channel.write(transfer.header);
+			if (transfer.header.hasRemaining()) {
+				return;	// 发送缓冲区已满，等待下一次OP_WRITE
+			}
+		}
+		if (transfer.file != null && transfer.position < transfer.end) {
+			long count = Math.min(MAX_TRANSFER, transfer.end - transfer.position);
+			long sent = transfer.file.transferTo(transfer.position, count, channel);
+			if (sent == 0 && transfer.position >= transfer.file.size()) {
+				// 文件在发送过程中被截断：已发出的长度头无法兑现，transferTo()会一直返回0，关闭该连接而不是保持OP_WRITE空转
+				throw new IOException("文件已被截断");
+			}
+			transfer.position += sent;
+			if (transfer.position < transfer.end) {
+				return;
+			}
+		}
+		transfer.close();
+		key.interestOps(SelectionKey.OP_READ);
+		if (transfer.request.position() > 0) {
+			parse(key);	// 已缓存了下一个请求（流水线请求），此时通道可能没有新数据可读，需主动处理
+		}
+	}
+
+	/**
+	 * 将请求的文件名解析为根目录下的路径，不允许通过../访问根目录以外的文件
+	 */
+	private Path resolve(String name) {
+		Path path = root.resolve(name).normalize();
+		return path.startsWith(root) && Files.isRegularFile(path) ? path : null;
+	}
+
+	private void release(SelectionKey key) {
+		Object attachment = key.attachment();
+		if (attachment instanceof Transfer) {
+			((Transfer) attachment).close();
+		}
+		try {
+			key.channel().close();	// 同时取消SelectionKey
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * 停止服务，关闭全部连接
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * 附加在SelectionKey上的连接状态
+	 * 		request		请求行缓冲区
+	 * 		header		响应头：8字节文件长度
+	 * 		file		正在发送的文件，position为已发送到的位置，end为文件长度
+	 */
+	private static final class Transfer {
+		final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST);
+		final ByteBuffer header = ByteBuffer.allocate(8);
+		FileChannel file;
+		long position;
+		long end;
+
+		Transfer() {
+			header.limit(0);
+		}
+
+		void open(Path path) throws IOException {
+			header.clear();
+			if (path == null) {
+				header.putLong(-1).flip();
+				return;
+			}
+			file = FileChannel.open(path, StandardOpenOption.READ);
+			position = 0;
+			end = file.size();
+			header.putLong(end).flip();
+		}
+
+		void close() {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				file = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package com.nio.chinnels;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * GroupCommitJournal：只追加的持久化日志，多个生产者线程并发追加，单个写线程批量写入并组提交
+ *
+ * 	FileChannel_.test3/test5说明同一通道上的write()/write(ByteBuffer[])是原子的，但每条记录都force()的话，吞吐量受限于fsync次数
+ * 	组提交
+ * 		生产者append()只把记录放入队列，返回CompletableFuture
+ * 		写线程一次取出队列中全部记录（最多maxBatch条），用一次聚集写write(ByteBuffer[])写入，再调用一次force(false)
+ * 		force()返回后才完成这一批的全部future，future完成即表示记录已落盘
+ * 		并发越高每批越大，fsync次数不随记录数增长
+ *
+ * 	文件格式
+ * 		目录下的多个分段文件，文件名为该段第一条记录的序号（20位，补0）+ ".log"
+ * 		记录：4字节payload长度 + 4字节payload的CRC32 + payload
+ * 		当前分段超过segmentSize后，下一批写入新分段（滚动），新建分段后fsync目录
+ *
+ * 	恢复：打开时按顺序校验全部分段
+ * 		最后一个分段末尾的不完整记录或CRC不符的记录（写入过程中崩溃）被截断
+ * 		非最后分段出现损坏则抛出IOException，需人工处理
+ *
+ * @author nerv
+ *
+ */
+public class GroupCommitJournal implements Closeable {
+
+	/** 默认分段大小 64M */
+	public static final long DEFAULT_SEGMENT_SIZE = 64 << 20;
+	/** 默认每批最多记录数 */
+	public static final int DEFAULT_MAX_BATCH = 1024;
+	private static final int HEADER = 8;
+	private static final String SUFFIX = ".log";
+	/** 关闭标记，写线程取到后写完同批记录即退出 */
+	private static final Entry CLOSE = new Entry(new byte[0]);
+
+	private final Path dir;
+	private final long segmentSize;
+	private final int maxBatch;
+	private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private volatile boolean closed;
+	/** 写线程已退出循环、开始清理残留记录，之后入队的记录由append()自己处理 */
+	private volatile boolean drained;
+
+	/** 写入失败的异常，之后的记录全部失败，避免在不完整的记录之后继续追加 */
+	private IOException failure;
+	/** 当前分段，仅写线程访问 */
+	private FileChannel segment;
+	/** 下一条记录的序号，仅写线程修改 */
+	private long nextSequence;
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong records = new AtomicLong();
+
+	public GroupCommitJournal(Path dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_BATCH);
+	}
+
+	/**
+	 * 打开（或创建）日志目录，恢复后启动写线程
+	 * @param dir			日志目录
+	 * @param segmentSize	分段大小，超过则滚动到新分段
+	 * @param maxBatch		每批最多记录数
+	 */
+	public GroupCommitJournal(Path dir, long segmentSize, int maxBatch) throws IOException {
+		if (segmentSize <= 0 || maxBatch <= 0) {
+			throw new IllegalArgumentException("segmentSize=" + segmentSize + "，maxBatch=" + maxBatch);
+		}
+		this.dir = Files.createDirectories(dir);
+		this.segmentSize = segmentSize;
+		this.maxBatch = maxBatch;
+		recover();
+		this.writer = new Thread(this::writeLoop, "journal-writer");
+		writer.start();
+	}
+
+	/**
+	 * 追加一条记录
+	 * @return 记录落盘后完成，值为记录序号；写入失败或日志已关闭则异常完成
+	 */
+	public CompletableFuture<Long> append(byte[] payload) {
+		Entry entry = new Entry(payload);
+		if (closed) {
+			entry.future.completeExceptionally(new IOException("日志已关闭"));
+			return entry.future;
+		}
+		queue.add(entry);
+		// close()可能在检查closed之后、入队之前完成：写线程先置drained再清理队列，这里先入队再检查drained，
+		// 两者至少有一方看到对方，由remove()/poll()成功的一方使其失败
+		if (drained && queue.remove(entry)) {
+			entry.future.completeExceptionally(new IOException("日志已关闭"));
+		}
+		return entry.future;
+	}
+
+	/**
+	 * 按顺序读取序号>=from的已提交记录，payload为只读缓冲区
+	 */
+	public void replay(long from, BiConsumer<Long, ByteBuffer> consumer) throws IOException {
+		for (Path path : segments()) {
+			long sequence = baseSequence(path), remaining = Files.size(path);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+				byte[] payload;
+				while ((payload = readRecord(in, remaining)) != null) {
+					remaining -= HEADER + payload.length;
+					if (sequence >= from) {
+						consumer.accept(sequence, ByteBuffer.wrap(payload).asReadOnlyBuffer());
+					}
+					sequence++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * 已写入的批次数和记录数，records/batches即平均每次fsync提交的记录数
+	 */
+	public long batches() {
+		return batches.get();
+	}
+
+	public long records() {
+		return records.get();
+	}
+
+	/**
+	 * 写完队列中已有的记录后关闭
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		// 不能interrupt()写线程：FileChannel是可中断通道，写入时被中断会关闭通道
+		queue.add(CLOSE);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 写线程：阻塞取第一条，再一次取出队列中的其余记录，组成一批
+	 */
+	private void writeLoop() {
+		List<Entry> batch = new ArrayList<>(maxBatch);
+		boolean running = true;
+		try {
+			while (running) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					break;
+				}
+				queue.drainTo(batch, maxBatch - 1);
+				if (batch.remove(CLOSE)) {
+					running = false;
+				}
+				if (!batch.isEmpty()) {
+					commit(batch);
+				}
+				batch.clear();
+			}
+		} finally {
+			drained = true;
+			Entry entry;
+			while ((entry = queue.poll()) != null) {
+				entry.future.completeExceptionally(new IOException("日志已关闭"));
+			}
+			try {
+				if (segment != null) {
+					segment.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * 聚集写一批记录，force()后完成future
+	 */
+	private void commit(List<Entry> batch) {
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+			if (segment.size() >= segmentSize) {
+				roll();
+			}
+			ByteBuffer headers = ByteBuffer.allocate(HEADER * batch.size());
+			ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+			CRC32 crc = new CRC32();
+			long bytes = 0;
+			for (int i = 0; i < batch.size(); i++) {
+				byte[] payload = batch.get(i).payload;
+				crc.reset();
+				crc.update(payload, 0, payload.length);
+				headers.putInt(payload.length).putInt((int) crc.getValue());
+				ByteBuffer header = headers.duplicate();
+				header.limit(headers.position()).position(headers.position() - HEADER);
+				buffers[i * 2] = header;
+				buffers[i * 2 + 1] = ByteBuffer.wrap(payload);
+				bytes += HEADER + payload.length;
+			}
+			// 一次write()写出的字节数可能少于全部剩余（受IOV_MAX等限制），需循环
+			for (long written = 0; written < bytes; ) {
+				written += segment.write(buffers);
+			}
+			segment.force(false);
+			batches.incrementAndGet();
+			records.addAndGet(batch.size());
+			for (Entry entry : batch) {
+				entry.future.complete(nextSequence++);
+			}
+		} catch (IOException e) {
+			failure = e;
+			for (Entry entry : batch) {
+				entry.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * 滚动：关闭当前分段，以下一条记录的序号创建新分段
+	 */
+	private void roll() throws IOException {
+		segment.close();
+		segment = open(dir.resolve(segmentName(nextSequence)));
+		syncDirectory();
+	}
+
+	/**
+	 * 新建分段后fsync目录：force()只保证文件内容，目录项未落盘时崩溃会丢失整个新分段
+	 * 		Linux上可以只读打开目录并force()；Windows不能打开目录（AccessDeniedException），由文件系统自身保证
+	 */
+	private void syncDirectory() throws IOException {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (AccessDeniedException e) {
+			// Windows
+		}
+	}
+
+	/**
+	 * 校验全部分段，截断最后分段末尾的损坏记录，打开最后分段用于追加
+	 */
+	private void recover() throws IOException {
+		List<Path> paths = segments();
+		if (paths.isEmpty()) {
+			nextSequence = 0;
+			segment = open(dir.resolve(segmentName(0)));
+			syncDirectory();
+			return;
+		}
+		long sequence = 0;
+		for (int i = 0; i < paths.size(); i++) {
+			Path path = paths.get(i);
+			sequence = baseSequence(path);
+			long valid = 0, size = Files.size(path);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+				byte[] payload;
+				while ((payload = readRecord(in, size - valid)) != null) {
+					valid += HEADER + payload.length;
+					sequence++;
+				}
+			}
+			if (valid < size) {
+				if (i < paths.size() - 1) {
+					throw new IOException("分段" + path + "在" + valid + "字节处损坏");
+				}
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+					channel.truncate(valid);
+					channel.force(true);
+				}
+			}
+		}
+		nextSequence = sequence;
+		segment = open(paths.get(paths.size() - 1));
+	}
+
+	/**
+	 * 读取一条记录，流结束、记录不完整或CRC不符则返回null
+	 * @param remaining	文件剩余字节数，长度字段损坏时避免按错误的长度分配数组
+	 */
+	private static byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length < 0 || HEADER + (long) length > remaining) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, length);
+			return (int) crc.getValue() == checksum ? payload : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path path : stream) {
+				paths.add(path);
+			}
+		}
+		// 文件名定长补0，按名称排序即按序号排序
+		Collections.sort(paths);
+		return paths;
+	}
+
+	private static FileChannel open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+		return channel;
+	}
+
+	private static String segmentName(long sequence) {
+		return String.format("%020d", sequence) + SUFFIX;
+	}
+
+	private static long baseSequence(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+	}
+
+	private static final class Entry {
+		final byte[] payload;
+		final CompletableFuture<Long> future = new CompletableFuture<>();
+
+		Entry(byte[] payload) {
+			this.payload = payload;
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.nio.chinnels;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.nio.DirectBuffers;
+
+/**
+ * MappedFileRegion：将整个文件呈现为以long寻址的只读字节源
+ *
+ * 	单个MappedByteBuffer最多映射Integer.MAX_VALUE字节，大文件只能分段映射
+ * 		文件按windowSize切分为多个窗口，访问到哪个窗口才映射哪个窗口
+ * 		最多同时保留maxWindows个窗口，超出则按LRU淘汰并显式解除映射（不等GC回收MappedByteBuffer）
+ * 		prefetch=true时，切换到某窗口后在后台线程映射并load()下一窗口，顺序扫描时可提前把页面读入内存
+ *
+ * 	非线程安全，一个实例只供一个线程顺序/随机读取；后台预读与解除映射之间由窗口自身的锁互斥
+ *
+ * @author nerv
+ *
+ */
+public class MappedFileRegion implements Closeable {
+
+	/** 默认窗口大小 64M */
+	public static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+	/** 默认最多保留的窗口数 */
+	public static final int DEFAULT_MAX_WINDOWS = 4;
+
+	private final FileChannel channel;
+	private final long size;
+	private final int windowSize;
+	private final int maxWindows;
+	private final ExecutorService prefetcher;
+
+	/** 窗口索引 -> 窗口，访问顺序排序，最久未访问的在队首 */
+	private final LinkedHashMap<Long, Window> windows;
+	/** 最近一次访问的窗口，顺序读取时省去查表 */
+	private Window current;
+
+	public MappedFileRegion(Path path) throws IOException {
+		this(path, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS, true);
+	}
+
+	/**
+	 * @param path			文件路径
+	 * @param windowSize	每个映射窗口的字节数
+	 * @param maxWindows	最多同时映射的窗口数，至少为2（当前窗口+预读窗口）
+	 * @param prefetch		是否后台预读下一窗口
+	 * @throws IOException
+	 */
+	public MappedFileRegion(Path path, int windowSize, int maxWindows, boolean prefetch) throws IOException {
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("windowSize必须大于0：" + windowSize);
+		}
+		if (maxWindows < 2) {
+			throw new IllegalArgumentException("maxWindows不能小于2：" + maxWindows);
+		}
+		this.channel = FileChannel.open(path, StandardOpenOption.READ);
+		this.size = channel.size();
+		this.windowSize = windowSize;
+		this.maxWindows = maxWindows;
+		this.windows = new LinkedHashMap<>(maxWindows * 2, 0.75f, true);
+		this.prefetcher = prefetch ? Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "mapped-region-prefetch");
+			t.setDaemon(true);
+			return t;
+		}) : null;
+	}
+
+	/**
+	 * 文件大小（打开时的大小，之后文件增长的部分不可见）
+	 */
+	public long size() {
+		return size;
+	}
+
+	public int windowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * 读取指定位置的一个字节
+	 */
+	public byte get(long position) throws IOException {
+		checkPosition(position);
+		Window w = window(position / windowSize);
+		return w.buffer.get((int) (position - w.start));
+	}
+
+	/**
+	 * 从position开始读取最多len个字节放入dst，可跨越多个窗口
+	 * @return 实际读取的字节数，position位于文件末尾则返回-1
+	 */
+	public int get(long position, byte[] dst, int off, int len) throws IOException {
+		if (position >= size) {
+			return -1;
+		}
+		checkPosition(position);
+		len = (int) Math.min(len, size - position);
+		int read = 0;
+		while (read < len) {
+			Window w = window(position / windowSize);
+			int index = (int) (position - w.start);
+			int n = Math.min(len - read, w.buffer.limit() - index);
+			w.view.clear().position(index);
+			w.view.get(dst, off + read, n);
+			read += n;
+			position += n;
+		}
+		return read;
+	}
+
+	/**
+	 * 从position开始读取字节放入dst.remaining，可跨越多个窗口
+	 * @return 实际读取的字节数，position位于文件末尾则返回-1
+	 */
+	public int get(long position, ByteBuffer dst) throws IOException {
+		if (position >= size) {
+			return -1;
+		}
+		checkPosition(position);
+		int len = (int) Math.min(dst.remaining(), size - position);
+		int read = 0;
+		while (read < len) {
+			Window w = window(position / windowSize);
+			int index = (int) (position - w.start);
+			int n = Math.min(len - read, w.buffer.limit() - index);
+			w.view.clear().position(index).limit(index + n);
+			dst.put(w.view);
+			read += n;
+			position += n;
+		}
+		return read;
+	}
+
+	/**
+	 * 解除指定位置所在窗口的映射，下次访问时重新映射
+	 */
+	public void unmap(long position) {
+		Window w = windows.remove(position / windowSize);
+		if (w != null) {
+			if (w == current) {
+				current = null;
+			}
+			w.unmap();
+		}
+	}
+
+	/**
+	 * 解除全部窗口的映射
+	 */
+	public void unmapAll() {
+		for (Window w : windows.values()) {
+			w.unmap();
+		}
+		windows.clear();
+		current = null;
+	}
+
+	/**
+	 * 关闭：停止预读线程，解除全部映射，关闭通道
+	 */
+	@Override
+	public void close() throws IOException {
+		if (prefetcher != null) {
+			prefetcher.shutdownNow();
+		}
+		unmapAll();
+		channel.close();
+	}
+
+	private void checkPosition(long position) {
+		if (position < 0 || position >= size) {
+			throw new IndexOutOfBoundsException("position=" + position + "，size=" + size);
+		}
+	}
+
+	/**
+	 * 获取窗口，不存在则映射；当前窗口切换时触发下一窗口的预读
+	 * 		已预读的窗口被访问时同样预读其下一窗口，顺序扫描时每个窗口都提前读入，而不是隔一个
+	 */
+	private Window window(long index) throws IOException {
+		if (current != null && current.index == index) {
+			return current;
+		}
+		Window w = windows.get(index);
+		if (w == null) {
+			w = map(index);
+		}
+		// 先设为当前窗口，避免映射预读窗口时被淘汰
+		current = w;
+		prefetch(index + 1);
+		return w;
+	}
+
+	private Window map(long index) throws IOException {
+		long start = index * windowSize;
+		long length = Math.min(windowSize, size - start);
+		Window w = new Window(index, start, channel.map(MapMode.READ_ONLY, start, length));
+		windows.put(index, w);
+		evict();
+		return w;
+	}
+
+	/**
+	 * 映射下一窗口，并在后台线程load()，将文件内容读入物理内存
+	 */
+	private void prefetch(long index) throws IOException {
+		if (prefetcher == null || index * windowSize >= size || windows.containsKey(index)) {
+			return;
+		}
+		Window next = map(index);
+		prefetcher.execute(next::load);
+	}
+
+	/**
+	 * 超出maxWindows则解除最久未访问的窗口
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Long, Window>> iterator = windows.entrySet().iterator();
+		while (windows.size() > maxWindows && iterator.hasNext()) {
+			Window w = iterator.next().getValue();
+			if (w == current) {
+				continue;
+			}
+			iterator.remove();
+			w.unmap();
+		}
+	}
+
+	/**
+	 * 映射窗口
+	 * 		buffer	映射的缓冲区，只用绝对位置get
+	 * 		view	buffer的副本，批量读时修改其position/limit，不影响buffer
+	 */
+	private static final class Window {
+		final long index;
+		final long start;
+		final MappedByteBuffer buffer;
+		final ByteBuffer view;
+		private boolean unmapped;
+
+		Window(long index, long start, MappedByteBuffer buffer) {
+			this.index = index;
+			this.start = start;
+			this.buffer = buffer;
+			this.view = buffer.duplicate();
+		}
+
+		synchronized void load() {
+			if (!unmapped) {
+				buffer.load();
+			}
+		}
+
+		/**
+		 * 显式释放映射，释放后再访问buffer会导致JVM崩溃，所以必须先从windows中移除
+		 */
+		synchronized void unmap() {
+			if (!unmapped) {
+				unmapped = true;
+				DirectBuffers.free(buffer);
+			}
+		}
+	}
+}
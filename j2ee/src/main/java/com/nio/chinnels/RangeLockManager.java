@@ -0,0 +1,330 @@
+package com.nio.chinnels;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RangeLockManager：同一进程内多个线程对同一文件的字节区间加锁，并代表本进程持有操作系统FileLock
+ *
+ * 	FileLock的问题（见FileLock_、FileChannel_.lock6）
+ * 		FileLock是进程级的锁，同一进程的线程锁定重叠区域会OverlappingFileLockException，而不是等待
+ * 		只锁整个文件又会使所有写线程串行
+ *
+ * 	实现
+ * 		文件按regionSize划分为多个区域，区域按索引分配到stripes个分段（条带），每个分段一把ReentrantLock
+ * 		进程内：每个区域记录已加锁的区间，新区间与已有区间重叠（且至少一个是独占锁）则在分段的Condition上等待
+ * 				不重叠的区间直接通过，不同分段的区域互不竞争
+ * 		进程间：区域第一次被本进程使用时获取该区域的操作系统独占FileLock，区域内最后一个区间释放时释放FileLock
+ * 				同一区域在本进程内只获取一次FileLock，不会出现OverlappingFileLockException
+ * 		跨多个区域的区间按区域索引升序逐个加锁，所有线程加锁顺序一致，不会死锁
+ *
+ * 	中断
+ * 		FileChannel.lock()可被中断：被中断的线程会关闭通道（ClosedByInterruptException），所有线程共享的通道随之失效
+ * 		因此操作系统锁由内部的locker线程获取，调用线程不可中断地等待其完成，期间的中断在返回后恢复
+ * 		在进程内等待冲突区间时仍可被中断，抛出InterruptedException，不影响通道
+ *
+ * @author nerv
+ *
+ */
+public class RangeLockManager implements Closeable {
+
+	/** 默认区域大小 1M */
+	public static final long DEFAULT_REGION_SIZE = 1 << 20;
+	/** 默认分段数 */
+	public static final int DEFAULT_STRIPES = 64;
+
+	private final FileChannel channel;
+	private final long regionSize;
+	private final Stripe[] stripes;
+	/** 获取操作系统锁的线程，不会被调用方中断 */
+	private final ExecutorService locker = Executors.newCachedThreadPool(task -> {
+		Thread thread = new Thread(task, "RangeLockManager-locker");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public RangeLockManager(FileChannel channel) {
+		this(channel, DEFAULT_REGION_SIZE, DEFAULT_STRIPES);
+	}
+
+	/**
+	 * @param channel		要加锁的文件通道，需可写（操作系统独占锁要求）
+	 * @param regionSize	区域大小，即操作系统FileLock的粒度
+	 * @param stripes		分段数
+	 */
+	public RangeLockManager(FileChannel channel, long regionSize, int stripes) {
+		if (regionSize <= 0 || stripes <= 0) {
+			throw new IllegalArgumentException("regionSize=" + regionSize + "，stripes=" + stripes);
+		}
+		this.channel = channel;
+		this.regionSize = regionSize;
+		this.stripes = new Stripe[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * 锁定[position, position + size)，阻塞直到与其它线程的区间不冲突且已持有对应区域的操作系统锁
+	 * @param shared	true共享锁（与其它共享锁可重叠），false独占锁
+	 */
+	public RangeLock lock(long position, long size, boolean shared) throws IOException, InterruptedException {
+		if (position < 0 || size <= 0 || position + size < 0) {
+			throw new IllegalArgumentException("position=" + position + "，size=" + size);
+		}
+		RangeLock lock = new RangeLock(position, size, shared);
+		long first = position / regionSize, last = (position + size - 1) / regionSize;
+		try {
+			for (long index = first; index <= last; index++) {
+				long start = Math.max(position, index * regionSize);
+				long end = Math.min(position + size, (index + 1) * regionSize);
+				Range range = new Range(index, start, end, shared);
+				acquire(range);
+				lock.ranges.add(range);
+			}
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			lock.release();
+			throw e;
+		}
+		return lock;
+	}
+
+	/**
+	 * 释放全部操作系统锁。此后不应再使用本对象
+	 */
+	@Override
+	public void close() throws IOException {
+		locker.shutdown();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				for (Region region : stripe.regions.values()) {
+					if (region.fileLock != null && region.fileLock.isValid()) {
+						region.fileLock.release();
+					}
+				}
+				stripe.regions.clear();
+				stripe.changed.signalAll();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	private Stripe stripe(long index) {
+		return stripes[(int) (index % stripes.length)];
+	}
+
+	/**
+	 * 锁定单个区域内的区间
+	 */
+	private void acquire(Range range) throws IOException, InterruptedException {
+		Stripe stripe = stripe(range.region);
+		Region region;
+		boolean owner;
+		stripe.lock.lockInterruptibly();
+		try {
+			while (true) {
+				region = stripe.regions.get(range.region);
+				if (region == null || !region.conflicts(range)) {
+					break;
+				}
+				stripe.changed.await();
+			}
+			if (region == null) {
+				region = new Region();
+				stripe.regions.put(range.region, region);
+			}
+			region.ranges.add(range);
+			// 第一个使用该区域的线程负责获取操作系统锁，其它线程等待其完成
+			owner = region.fileLock == null && !region.locking;
+			if (owner) {
+				region.locking = true;
+			} else {
+				try {
+					while (region.locking) {
+						stripe.changed.await();
+					}
+				} catch (InterruptedException e) {
+					release(stripe, range);
+					throw e;
+				}
+				if (region.fileLock == null) {
+					release(stripe, range);
+					throw new IOException("获取区域" + range.region + "的文件锁失败");
+				}
+				return;
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+		// 阻塞等待其它进程释放锁，不能持有分段锁，否则同分段的其它区域无法加锁
+		FileLock fileLock = null;
+		try {
+			fileLock = lockRegion(range.region);
+		} finally {
+			stripe.lock.lock();
+			try {
+				region.fileLock = fileLock;
+				region.locking = false;
+				if (fileLock == null) {
+					release(stripe, range);
+				}
+				stripe.changed.signalAll();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 在locker线程中获取区域的操作系统独占锁，不可中断地等待
+	 */
+	private FileLock lockRegion(long index) throws IOException {
+		Future<FileLock> future = locker.submit(() -> channel.lock(index * regionSize, regionSize, false));
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * 释放区间，区域内没有区间时释放操作系统锁。调用方已持有分段锁
+	 */
+	private void release(Stripe stripe, Range range) {
+		Region region = stripe.regions.get(range.region);
+		if (region == null || !region.ranges.remove(range)) {
+			return;
+		}
+		if (region.ranges.isEmpty() && !region.locking) {
+			stripe.regions.remove(range.region);
+			if (region.fileLock != null && region.fileLock.isValid()) {
+				try {
+					region.fileLock.release();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		stripe.changed.signalAll();
+	}
+
+	/**
+	 * 已获取的区间锁，可能跨越多个区域
+	 */
+	public final class RangeLock implements AutoCloseable {
+		private final long position;
+		private final long size;
+		private final boolean shared;
+		private final List<Range> ranges = new ArrayList<>(1);
+
+		private RangeLock(long position, long size, boolean shared) {
+			this.position = position;
+			this.size = size;
+			this.shared = shared;
+		}
+
+		public long position() {
+			return position;
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public boolean isShared() {
+			return shared;
+		}
+
+		/**
+		 * 释放锁，可重复调用
+		 */
+		public void release() {
+			for (Range range : ranges) {
+				Stripe stripe = stripe(range.region);
+				stripe.lock.lock();
+				try {
+					RangeLockManager.this.release(stripe, range);
+				} finally {
+					stripe.lock.unlock();
+				}
+			}
+			ranges.clear();
+		}
+
+		@Override
+		public void close() {
+			release();
+		}
+	}
+
+	/**
+	 * 区域内的一段区间[start, end)
+	 */
+	private static final class Range {
+		final long region;
+		final long start;
+		final long end;
+		final boolean shared;
+
+		Range(long region, long start, long end, boolean shared) {
+			this.region = region;
+			this.start = start;
+			this.end = end;
+			this.shared = shared;
+		}
+
+		boolean conflicts(Range other) {
+			return start < other.end && other.start < end && !(shared && other.shared);
+		}
+	}
+
+	/**
+	 * 区域：已加锁的区间，以及本进程持有的操作系统锁
+	 * 		locking		正在获取操作系统锁
+	 */
+	private static final class Region {
+		final List<Range> ranges = new ArrayList<>(2);
+		FileLock fileLock;
+		boolean locking;
+
+		boolean conflicts(Range range) {
+			for (Range r : ranges) {
+				if (r.conflicts(range)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition changed = lock.newCondition();
+		final Map<Long, Region> regions = new HashMap<>();
+	}
+}
@@ -1,7 +1,9 @@
 package com.nio.chinnels;
 
 import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -9,9 +11,14 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -252,6 +259,76 @@ public class Selector_ {
 		start(server, client);
 	}
 	
+	/**
+	 * 传输文件：FileTransferServer用transferTo()零拷贝发送，对比test4
+	 * 		单个选择线程同时服务clients个下载连接，每个连接连续请求两次同一文件（流水线请求）
+	 * 		发送进度保存在SelectionKey附件中，socket发送缓冲区满时返回select()处理其它连接
+	 * @throws Exception
+	 */
+	@Test
+	public void test5() throws Exception {
+		int clients = 200;
+		long fileSize = 8 << 20;	// 8M
+		Path root = Files.createTempDirectory("transfer");
+		Path file = root.resolve("data.bin");
+		byte[] block = new byte[1 << 20];
+		try (OutputStream out = Files.newOutputStream(file)) {
+			for (long i = 0; i < fileSize; i += block.length) {
+				out.write(block);
+			}
+		}
+		try {
+			Thread reactor;
+			try (FileTransferServer transferServer = new FileTransferServer(new InetSocketAddress("localhost", 0), root)) {
+				reactor = new Thread(transferServer, "transfer-reactor");
+				reactor.start();
+				InetSocketAddress address = transferServer.getLocalAddress();
+				ExecutorService pool = Executors.newFixedThreadPool(clients);
+				List<Future<Long>> results = new ArrayList<>();
+				long begin = System.currentTimeMillis();
+				for (int i = 0; i < clients; i++) {
+					results.add(pool.submit(() -> {
+						try (SocketChannel channel = SocketChannel.open(address)) {
+							channel.write(ByteBuffer.wrap("data.bin\ndata.bin\n".getBytes()));
+							ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+							long total = 0;
+							for (int request = 0; request < 2; request++) {
+								ByteBuffer header = ByteBuffer.allocate(8);
+								while (header.hasRemaining() && channel.read(header) != -1) {
+								}
+								long length = ((ByteBuffer) header.flip()).getLong();
+								for (long received = 0; received < length; buffer.clear()) {
+									// 流水线请求：只读到本次响应的末尾，不读入下一个响应的长度头
+									buffer.limit((int) Math.min(buffer.capacity(), length - received));
+									int n = channel.read(buffer);
+									if (n == -1) {
+										throw new EOFException("服务端提前关闭连接");
+									}
+									received += n;
+								}
+								total += length;
+							}
+							return total;
+						}
+					}));
+				}
+				long bytes = 0;
+				for (Future<Long> result : results) {
+					bytes += result.get();
+				}
+				long time = System.currentTimeMillis() - begin;
+				System.out.println(clients + "个连接共下载" + (bytes >> 20) + "M，耗时" + time + "ms，"
+						+ (bytes >> 20) * 1000 / Math.max(time, 1) + "M/s");
+				pool.shutdown();
+			}
+			// try-with-resources关闭服务端后，选择线程退出
+			reactor.join();
+		} finally {
+			Files.delete(file);
+			Files.delete(root);
+		}
+	}
+	
 	/**
 	 * 主线程等待子线程执行完毕
 	 */
@@ -0,0 +1,241 @@
+package com.rmi;
+
+import java.io.Closeable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BatchingCompute：Remote_的异步客户端，把并发的小运算合并为批量调用Remote_.compute()
+ *
+ * 	RMIClient每次add()/subtract()都是一次远程调用：一次往返 + 参数和结果的序列化，运算本身的耗时可以忽略
+ * 	合并
+ * 		add()/subtract()立即返回CompletableFuture，运算进入当前批次
+ * 		批次达到maxBatch个运算时立即发送；否则在第一个运算进入后window时间发送，调用方最多多等待一个window
+ * 		发送线程（threads个）调用compute()，按顺序完成各运算的future；远程调用失败时该批全部异常完成
+ * 	背压：同时在途的批次最多maxInFlight个，已满时add()/subtract()的调用线程等待，避免批次无限堆积
+ * 	future在发送线程中完成，thenApply()等回调也在发送线程中执行，耗时的回调应使用*Async()
+ * 		完成future之前已释放该批的许可：回调（如thenCompose()）中再调用add()/subtract()，不会因回调所在的批次仍占用许可而死锁
+ * 		但回调不应等待在途批次有空位，发送线程被占满时其它批次无法完成，这样的回调应使用*Async()
+ * 	close()之后进入send()的批次（等待许可的add()、正在执行的计时任务）不再发送，全部future以IllegalStateException异常完成
+ *
+ * @author nerv
+ *
+ */
+public class BatchingCompute implements Closeable {
+
+	/**
+	 * 当前批次：运算和对应的future
+	 */
+	private static final class Pending {
+		final ComputeBatch batch;
+		final List<CompletableFuture<Double>> futures;
+
+		Pending(int capacity) {
+			batch = new ComputeBatch(capacity);
+			futures = new ArrayList<>(capacity);
+		}
+	}
+
+	private final Remote_ remote;
+	private final int maxBatch;
+	private final long windowNanos;
+	private final Semaphore inFlight;
+	private final ExecutorService senders;
+	private final ScheduledExecutorService timer;
+	/** 当前批次，由this锁保护 */
+	private Pending pending;
+	private boolean closed;
+
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder operations = new LongAdder();
+
+	public BatchingCompute(Remote_ remote) {
+		this(remote, 1024, 200, TimeUnit.MICROSECONDS, 4, 16);
+	}
+
+	/**
+	 * @param maxBatch		每批最多的运算数
+	 * @param window		第一个运算进入后最多等待多久发送
+	 * @param threads		发送线程数，即同时进行的远程调用数
+	 * @param maxInFlight	已提交但未完成的批次数上限
+	 */
+	public BatchingCompute(Remote_ remote, int maxBatch, long window, TimeUnit unit, int threads, int maxInFlight) {
+		if (maxBatch <= 0 || window < 0 || threads <= 0 || maxInFlight <= 0) {
+			throw new IllegalArgumentException(
+					"maxBatch=" + maxBatch + "，window=" + window + "，threads=" + threads + "，maxInFlight=" + maxInFlight);
+		}
+		this.remote = remote;
+		this.maxBatch = maxBatch;
+		this.windowNanos = unit.toNanos(window);
+		this.inFlight = new Semaphore(maxInFlight);
+		AtomicInteger ids = new AtomicInteger();
+		this.senders = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "rmi-batch-" + ids.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "rmi-batch-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public CompletableFuture<Double> add(double a, double b) {
+		return submit(ComputeBatch.ADD, a, b);
+	}
+
+	public CompletableFuture<Double> subtract(double a, double b) {
+		return submit(ComputeBatch.SUBTRACT, a, b);
+	}
+
+	/**
+	 * 立即发送当前批次
+	 */
+	public void flush() {
+		Pending full;
+		synchronized (this) {
+			full = pending;
+			pending = null;
+		}
+		send(full, true);
+	}
+
+	/**
+	 * 已发送的批次数
+	 */
+	public long batches() {
+		return batches.sum();
+	}
+
+	/**
+	 * 已发送的运算数
+	 */
+	public long operations() {
+		return operations.sum();
+	}
+
+	/**
+	 * 发送当前批次，等待在途的批次完成
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			closed = true;
+		}
+		flush();
+		timer.shutdownNow();
+		senders.shutdown();
+		try {
+			senders.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private CompletableFuture<Double> submit(byte operator, double a, double b) {
+		CompletableFuture<Double> future = new CompletableFuture<>();
+		Pending full = null;
+		synchronized (this) {
+			if (closed) {
+				future.completeExceptionally(new IllegalStateException("已关闭"));
+				return future;
+			}
+			if (pending == null) {
+				Pending batch = pending = new Pending(Math.min(maxBatch, 64));
+				// 到时只发送这一批，之前已因达到maxBatch发送的不受影响
+				timer.schedule(() -> expire(batch), windowNanos, TimeUnit.NANOSECONDS);
+			}
+			if (operator == ComputeBatch.ADD) {
+				pending.batch.add(a, b);
+			} else {
+				pending.batch.subtract(a, b);
+			}
+			pending.futures.add(future);
+			if (pending.batch.size() >= maxBatch) {
+				full = pending;
+				pending = null;
+			}
+		}
+		send(full, true);
+		return future;
+	}
+
+	private void expire(Pending batch) {
+		synchronized (this) {
+			if (pending != batch) {
+				return;
+			}
+			pending = null;
+		}
+		send(batch, false);
+	}
+
+	/**
+	 * @param block	在途批次已满时是否等待；计时线程不等待，超出上限也立即提交，避免阻塞其它批次的计时
+	 */
+	private void send(Pending batch, boolean block) {
+		if (batch == null) {
+			return;
+		}
+		boolean acquired;
+		if (block) {
+			inFlight.acquireUninterruptibly();
+			acquired = true;
+		} else {
+			acquired = inFlight.tryAcquire();
+		}
+		batches.increment();
+		operations.add(batch.futures.size());
+		try {
+			senders.execute(() -> {
+				double[] results = null;
+				Exception error = null;
+				try {
+					results = remote.compute(batch.batch);
+				} catch (RemoteException | RuntimeException e) {
+					error = e;
+				} finally {
+					// 先释放许可再完成future，回调中的add()/subtract()可以使用这个许可
+					if (acquired) {
+						inFlight.release();
+					}
+				}
+				complete(batch, results, error);
+			});
+		} catch (RejectedExecutionException e) {
+			// close()已关闭发送线程池
+			batches.decrement();
+			operations.add(-batch.futures.size());
+			if (acquired) {
+				inFlight.release();
+			}
+			complete(batch, null, new IllegalStateException("已关闭", e));
+		}
+	}
+
+	/**
+	 * 按顺序完成各运算的future，error不为null时全部异常完成
+	 */
+	private static void complete(Pending batch, double[] results, Exception error) {
+		if (error != null) {
+			for (CompletableFuture<Double> future : batch.futures) {
+				future.completeExceptionally(error);
+			}
+			return;
+		}
+		for (int i = 0; i < results.length; i++) {
+			batch.futures.get(i).complete(results[i]);
+		}
+	}
+}
@@ -0,0 +1,1050 @@
+package com.rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * BinaryRpc：在一个NIO连接上多路复用的二进制RPC，提供与RMI相同的远程接口（如Remote_），替代JRMP
+ *
+ * 	RMI（JRMP）的开销：参数和结果用Java序列化（类描述符、块数据头），每个并发调用占用一个连接，服务端每个连接一个线程
+ * 	帧（大端）：4字节长度 + 内容
+ * 		请求	关联号8字节 + 方法号4字节 + 参数
+ * 		响应	关联号8字节 + 状态1字节（OK/ERROR）+ 结果，ERROR时为Java序列化的异常
+ * 		方法号：接口名#方法名(参数类型)的hashCode()，两端各自计算，服务端导出时检查冲突
+ * 		关联号：客户端按调用分配，响应可以乱序返回；一个连接上可以同时有任意多个调用在途
+ * 	参数与结果：按方法声明的类型编码，不带类型信息
+ * 		基本类型为定长（double 8字节）；String为长度 + UTF-8；基本类型数组为长度 + 元素；null长度为-1
+ * 		其它类型退回Java序列化（长度 + 字节）
+ * 	服务端
+ * 		一个IO线程一个Selector；请求按方法号找到缓存的MethodHandle（unreflect + bindTo + asSpreader，导出时生成一次）
+ * 		数组、字符串的长度按帧中剩余的字节检查；参数解码失败时响应ERROR，帧短于关联号和方法号时关闭该连接
+ * 		executor为null时在IO线程中执行，一次读取中的多个请求的响应合并为一次写出；方法耗时较长时传入线程池，IO线程只解码
+ * 	客户端
+ * 		一个SocketChannel + 一个读线程；proxy()返回实现接口的动态代理，调用线程编码请求后等待响应
+ * 	写出（两端相同）：编码进filling缓冲区；没有线程在写时由当前线程写出，否则直接返回，由正在写的线程一并写出
+ * 		两个缓冲区交替：写出draining时其它线程继续编码进filling，多个线程的请求合并为一次write()
+ * 		发送缓冲区已满时打开OP_WRITE，由IO线程继续写出
+ * 		服务端：待写出超过MAX_PENDING时取消OP_READ，不再解码新的请求，全部写出后恢复；只发请求不读响应的客户端不会使服务端内存无限增长
+ *
+ * @author nerv
+ *
+ */
+public class BinaryRpc {
+
+	static final byte OK = 0, ERROR = 1;
+	/** 帧的最大长度，超过时关闭连接 */
+	static final int MAX_FRAME = 16 << 20;
+	/** 服务端连接待写出的字节数超过时暂停读取请求 */
+	static final int MAX_PENDING = 1 << 20;
+
+	/**
+	 * 一种类型的编解码
+	 */
+	interface Codec {
+		void write(Output out, Object value);
+
+		Object read(ByteBuffer in) throws IOException;
+	}
+
+	/**
+	 * 可扩容的输出缓冲区
+	 */
+	static final class Output {
+		ByteBuffer buffer;
+
+		Output(int capacity) {
+			buffer = ByteBuffer.allocate(capacity);
+		}
+
+		Output ensure(int n) {
+			if (buffer.remaining() < n) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() << 1, buffer.position() + n));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+			return this;
+		}
+
+		/**
+		 * 开始一帧，返回长度字段的位置
+		 */
+		int begin() {
+			ensure(4);
+			int start = buffer.position();
+			buffer.putInt(0);
+			return start;
+		}
+
+		void end(int start) {
+			buffer.putInt(start, buffer.position() - start - 4);
+		}
+
+		void putBytes(byte[] bytes) {
+			if (bytes == null) {
+				ensure(4).buffer.putInt(-1);
+			} else {
+				ensure(4 + bytes.length).buffer.putInt(bytes.length).put(bytes);
+			}
+		}
+	}
+
+	/**
+	 * 帧的写出，见类注释“写出”
+	 */
+	static final class Outbound {
+		private final SocketChannel channel;
+		/** 编码中的缓冲区，由this锁保护 */
+		private Output filling = new Output(8192);
+		/** 写出中的缓冲区（读模式），只由持有flushing的线程访问 */
+		private ByteBuffer draining = ByteBuffer.allocate(8192);
+		/** 有线程正在写出或已打开OP_WRITE，由this锁保护 */
+		private boolean flushing;
+		/** 待写出过多时是否暂停读取（服务端） */
+		private final boolean throttle;
+		/** 已因待写出过多取消OP_READ，由this锁保护 */
+		private boolean readPaused;
+		SelectionKey key;
+
+		Outbound(SocketChannel channel, boolean throttle) {
+			this.channel = channel;
+			this.throttle = throttle;
+			draining.flip();
+		}
+
+		/**
+		 * 加入一帧（encoder负责begin/end）
+		 * @return true表示调用方需要调用flush()
+		 */
+		boolean append(Consumer<Output> encoder) {
+			synchronized (this) {
+				int position = filling.buffer.position();
+				try {
+					encoder.accept(filling);
+				} catch (RuntimeException e) {
+					// 如结果无法序列化：丢弃写了一半的帧，不破坏连接上的其它帧
+					filling.buffer.position(position);
+					throw e;
+				}
+				if (throttle && !readPaused && filling.buffer.position() > MAX_PENDING) {
+					// 对端不读响应：不再读入请求，flush()全部写出后恢复
+					readPaused = true;
+					reading(false);
+				}
+				if (flushing) {
+					return false;
+				}
+				flushing = true;
+				return true;
+			}
+		}
+
+		/**
+		 * 写出全部已加入的帧；发送缓冲区已满时打开OP_WRITE，由IO线程在可写时再次调用
+		 */
+		void flush() throws IOException {
+			while (true) {
+				synchronized (this) {
+					if (!draining.hasRemaining()) {
+						if (filling.buffer.position() == 0) {
+							flushing = false;
+							if (readPaused) {
+								readPaused = false;
+								reading(true);
+							}
+							return;
+						}
+						ByteBuffer empty = draining;
+						empty.clear();
+						draining = filling.buffer;
+						draining.flip();
+						filling.buffer = empty;
+					}
+				}
+				channel.write(draining);
+				if (draining.hasRemaining()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					key.selector().wakeup();
+					return;
+				}
+			}
+		}
+
+		/**
+		 * 打开或取消OP_READ，可在任意线程中调用
+		 */
+		private void reading(boolean on) {
+			try {
+				key.interestOps(on ? key.interestOps() | SelectionKey.OP_READ : key.interestOps() & ~SelectionKey.OP_READ);
+				key.selector().wakeup();
+			} catch (CancelledKeyException e) {
+				// 连接已关闭
+			}
+		}
+
+		/**
+		 * OP_WRITE时在IO线程中调用
+		 */
+		void writable() throws IOException {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			flush();
+		}
+	}
+
+	/**
+	 * 从连接读出完整的帧：一次读取后依次取出全部完整的帧，最后compact()一次
+	 */
+	static final class Inbound {
+		ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+		/** 下一帧的起始位置 */
+		int start;
+
+		/**
+		 * @return -1表示连接已关闭
+		 */
+		int read(SocketChannel channel) throws IOException {
+			return channel.read(buffer);
+		}
+
+		/**
+		 * 下一个完整帧（position到limit，不含长度字段），没有时返回null
+		 */
+		ByteBuffer next() throws IOException {
+			if (buffer.position() - start < 4) {
+				return null;
+			}
+			int length = buffer.getInt(start);
+			if (length < 0 || length > MAX_FRAME) {
+				throw new IOException("帧长度" + length);
+			}
+			if (buffer.position() - start < 4 + length) {
+				// 不完整：缓冲区剩余空间放不下整帧时移到开头，仍放不下则扩容
+				if (buffer.capacity() - start < 4 + length) {
+					compact();
+					if (buffer.capacity() < 4 + length) {
+						ByteBuffer larger = ByteBuffer.allocate(4 + length);
+						buffer.flip();
+						larger.put(buffer);
+						buffer = larger;
+					}
+				}
+				return null;
+			}
+			ByteBuffer frame = buffer.duplicate();
+			frame.limit(start + 4 + length).position(start + 4);
+			start += 4 + length;
+			return frame;
+		}
+
+		/**
+		 * 丢弃已取出的帧，在处理完一次读取后调用
+		 */
+		void compact() {
+			if (start > 0) {
+				buffer.flip();
+				buffer.position(start);
+				buffer.compact();
+				start = 0;
+			}
+		}
+	}
+
+	/**
+	 * 方法号：接口名#方法名(参数类型)
+	 */
+	static int methodId(Class<?> type, Method method) {
+		StringBuilder signature = new StringBuilder(type.getName()).append('#').append(method.getName()).append('(');
+		for (Class<?> parameter : method.getParameterTypes()) {
+			signature.append(parameter.getName()).append(',');
+		}
+		return signature.append(')').toString().hashCode();
+	}
+
+	static Codec codec(Class<?> type) {
+		if (type == void.class) {
+			return VOID;
+		} else if (type == double.class) {
+			return DOUBLE;
+		} else if (type == int.class) {
+			return INT;
+		} else if (type == long.class) {
+			return LONG;
+		} else if (type == boolean.class) {
+			return BOOLEAN;
+		} else if (type == float.class) {
+			return FLOAT;
+		} else if (type == short.class) {
+			return SHORT;
+		} else if (type == byte.class) {
+			return BYTE;
+		} else if (type == char.class) {
+			return CHAR;
+		} else if (type == String.class) {
+			return STRING;
+		} else if (type == byte[].class) {
+			return BYTES;
+		} else if (type == double[].class) {
+			return DOUBLES;
+		} else if (type == int[].class) {
+			return INTS;
+		} else if (type == long[].class) {
+			return LONGS;
+		}
+		return SERIALIZED;
+	}
+
+	static final Codec VOID = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+		}
+
+		@Override
+		public Object read(ByteBuffer in) {
+			return null;
+		}
+	};
+	static final Codec DOUBLE = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.ensure(8).buffer.putDouble((Double) value);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) {
+			return in.getDouble();
+		}
+	};
+	static final Codec INT = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.ensure(4).buffer.putInt((Integer) value);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) {
+			return in.getInt();
+		}
+	};
+	static final Codec LONG = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.ensure(8).buffer.putLong((Long) value);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) {
+			return in.getLong();
+		}
+	};
+	static final Codec BOOLEAN = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.ensure(1).buffer.put((byte) ((Boolean) value ? 1 : 0));
+		}
+
+		@Override
+		public Object read(ByteBuffer in) {
+			return in.get() != 0;
+		}
+	};
+	static final Codec FLOAT = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.ensure(4).buffer.putFloat((Float) value);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) {
+			return in.getFloat();
+		}
+	};
+	static final Codec SHORT = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.ensure(2).buffer.putShort((Short) value);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) {
+			return in.getShort();
+		}
+	};
+	static final Codec BYTE = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.ensure(1).buffer.put((Byte) value);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) {
+			return in.get();
+		}
+	};
+	static final Codec CHAR = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.ensure(2).buffer.putChar((Character) value);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) {
+			return in.getChar();
+		}
+	};
+	static final Codec STRING = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.putBytes(value == null ? null : ((String) value).getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public Object read(ByteBuffer in) throws IOException {
+			byte[] bytes = readBytes(in);
+			return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+		}
+	};
+	static final Codec BYTES = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.putBytes((byte[]) value);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) throws IOException {
+			return readBytes(in);
+		}
+	};
+	static final Codec DOUBLES = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			double[] array = (double[]) value;
+			if (array == null) {
+				out.ensure(4).buffer.putInt(-1);
+				return;
+			}
+			out.ensure(4 + array.length * 8).buffer.putInt(array.length).asDoubleBuffer().put(array);
+			out.buffer.position(out.buffer.position() + array.length * 8);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) throws IOException {
+			int length = length(in, 8);
+			if (length < 0) {
+				return null;
+			}
+			double[] array = new double[length];
+			in.asDoubleBuffer().get(array);
+			in.position(in.position() + length * 8);
+			return array;
+		}
+	};
+	static final Codec INTS = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			int[] array = (int[]) value;
+			if (array == null) {
+				out.ensure(4).buffer.putInt(-1);
+				return;
+			}
+			out.ensure(4 + array.length * 4).buffer.putInt(array.length).asIntBuffer().put(array);
+			out.buffer.position(out.buffer.position() + array.length * 4);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) throws IOException {
+			int length = length(in, 4);
+			if (length < 0) {
+				return null;
+			}
+			int[] array = new int[length];
+			in.asIntBuffer().get(array);
+			in.position(in.position() + length * 4);
+			return array;
+		}
+	};
+	static final Codec LONGS = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			long[] array = (long[]) value;
+			if (array == null) {
+				out.ensure(4).buffer.putInt(-1);
+				return;
+			}
+			out.ensure(4 + array.length * 8).buffer.putInt(array.length).asLongBuffer().put(array);
+			out.buffer.position(out.buffer.position() + array.length * 8);
+		}
+
+		@Override
+		public Object read(ByteBuffer in) throws IOException {
+			int length = length(in, 8);
+			if (length < 0) {
+				return null;
+			}
+			long[] array = new long[length];
+			in.asLongBuffer().get(array);
+			in.position(in.position() + length * 8);
+			return array;
+		}
+	};
+	/** 其它类型：Java序列化 */
+	static final Codec SERIALIZED = new Codec() {
+		@Override
+		public void write(Output out, Object value) {
+			out.putBytes(value == null ? null : serialize(value));
+		}
+
+		@Override
+		public Object read(ByteBuffer in) throws IOException {
+			byte[] bytes = readBytes(in);
+			return bytes == null ? null : deserialize(bytes);
+		}
+	};
+
+	/**
+	 * 读出数组长度并检查帧中剩余的字节足够，避免按不可信的长度分配数组
+	 * @return -1表示null
+	 */
+	static int length(ByteBuffer in, int elementSize) throws IOException {
+		if (in.remaining() < 4) {
+			throw new IOException("帧不完整");
+		}
+		int length = in.getInt();
+		if (length < -1 || (long) length * elementSize > in.remaining()) {
+			throw new IOException("数组长度" + length + "超出帧的剩余" + in.remaining() + "字节");
+		}
+		return length;
+	}
+
+	static byte[] readBytes(ByteBuffer in) throws IOException {
+		int length = length(in, 1);
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return bytes;
+	}
+
+	static byte[] serialize(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(value);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("无法序列化" + value.getClass().getName(), e);
+		}
+		return bytes.toByteArray();
+	}
+
+	static Object deserialize(byte[] bytes) throws IOException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * 服务端
+	 */
+	public static class Server implements Closeable {
+
+		/**
+		 * 一个导出的方法：缓存的MethodHandle，类型为(Object[])Object
+		 */
+		static final class Handler {
+			final MethodHandle handle;
+			final Codec[] parameters;
+			final Codec result;
+
+			Handler(MethodHandle handle, Codec[] parameters, Codec result) {
+				this.handle = handle;
+				this.parameters = parameters;
+				this.result = result;
+			}
+		}
+
+		/**
+		 * 一个客户端连接
+		 */
+		final class Connection {
+			final SocketChannel channel;
+			final Inbound in = new Inbound();
+			final Outbound out;
+
+			Connection(SocketChannel channel) {
+				this.channel = channel;
+				this.out = new Outbound(channel, true);
+			}
+
+			void close() {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private final ServerSocketChannel server;
+		private final Selector selector;
+		private final Executor executor;
+		private final Map<Integer, Handler> handlers = new HashMap<>();
+		private final Thread thread;
+		private volatile boolean running = true;
+
+		/**
+		 * @param executor	执行方法的线程池，null表示在IO线程中执行
+		 */
+		public Server(InetSocketAddress address, Executor executor) throws IOException {
+			this.executor = executor;
+			this.server = ServerSocketChannel.open();
+			server.bind(address, 1024);
+			server.configureBlocking(false);
+			this.selector = Selector.open();
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			this.thread = new Thread(this::loop, "rpc-server");
+		}
+
+		/**
+		 * 导出type的全部方法，在start()之前调用
+		 */
+		public <T extends Remote> Server export(Class<T> type, T impl) {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			for (Method method : type.getMethods()) {
+				int id = methodId(type, method);
+				if (handlers.containsKey(id)) {
+					throw new IllegalStateException("方法号冲突：" + method);
+				}
+				Class<?>[] types = method.getParameterTypes();
+				Codec[] parameters = new Codec[types.length];
+				for (int i = 0; i < types.length; i++) {
+					parameters[i] = codec(types[i]);
+				}
+				try {
+					MethodHandle handle = lookup.unreflect(method).bindTo(impl).asSpreader(Object[].class, types.length)
+							.asType(MethodType.methodType(Object.class, Object[].class));
+					handlers.put(id, new Handler(handle, parameters, codec(method.getReturnType())));
+				} catch (IllegalAccessException e) {
+					throw new IllegalArgumentException(type + "不是公有接口", e);
+				}
+			}
+			return this;
+		}
+
+		public Server start() {
+			thread.start();
+			return this;
+		}
+
+		public InetSocketAddress getLocalAddress() throws IOException {
+			return (InetSocketAddress) server.getLocalAddress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			running = false;
+			selector.wakeup();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void loop() {
+			try {
+				while (running) {
+					selector.select();
+					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+					while (iterator.hasNext()) {
+						SelectionKey key = iterator.next();
+						iterator.remove();
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+							continue;
+						}
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								read(connection);
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.out.writable();
+							}
+						} catch (IOException e) {
+							connection.close();
+						} catch (RuntimeException e) {
+							// 如执行器拒绝任务：只关闭该连接，IO线程继续服务其它连接
+							e.printStackTrace();
+							connection.close();
+						}
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					if (key.attachment() instanceof Connection) {
+						((Connection) key.attachment()).close();
+					}
+				}
+				try {
+					server.close();
+					selector.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void accept() throws IOException {
+			SocketChannel channel;
+			while ((channel = server.accept()) != null) {
+				Connection connection = new Connection(channel);
+				try {
+					channel.configureBlocking(false);
+					channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					connection.out.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				} catch (IOException e) {
+					// 客户端已断开等，只关闭该连接
+					connection.close();
+				}
+			}
+		}
+
+		/**
+		 * 读出并处理全部完整的请求；在IO线程中执行时全部响应编码完后一次写出
+		 */
+		private void read(Connection connection) throws IOException {
+			Inbound in = connection.in;
+			if (in.read(connection.channel) == -1) {
+				connection.close();
+				return;
+			}
+			boolean flush = false;
+			ByteBuffer frame;
+			while ((frame = in.next()) != null) {
+				if (frame.remaining() < 12) {
+					throw new IOException("请求帧长度" + frame.remaining());
+				}
+				long id = frame.getLong();
+				Handler handler = handlers.get(frame.getInt());
+				Object[] args = null;
+				Throwable error = null;
+				if (handler == null) {
+					error = new RemoteException("未导出的方法");
+				} else {
+					args = new Object[handler.parameters.length];
+					try {
+						for (int i = 0; i < args.length; i++) {
+							args[i] = handler.parameters[i].read(frame);
+						}
+					} catch (IOException | RuntimeException e) {
+						// 长度不符、反序列化失败等：只有这个调用失败，帧已完整取出，连接上的后续请求不受影响
+						error = new RemoteException("参数解码失败", e);
+					}
+				}
+				if (error != null) {
+					Throwable e = error;
+					flush |= connection.out.append(out -> encodeError(out, id, e));
+				} else if (executor == null) {
+					flush |= invoke(connection, id, handler, args);
+				} else {
+					Object[] arguments = args;
+					executor.execute(() -> {
+						try {
+							if (invoke(connection, id, handler, arguments)) {
+								connection.out.flush();
+							}
+						} catch (IOException e) {
+							connection.close();
+						}
+					});
+				}
+			}
+			in.compact();
+			if (flush) {
+				connection.out.flush();
+			}
+		}
+
+		/**
+		 * 执行并编码响应
+		 * @return true表示调用方需要flush()
+		 */
+		private boolean invoke(Connection connection, long id, Handler handler, Object[] args) {
+			try {
+				Object result = (Object) handler.handle.invokeExact(args);
+				return connection.out.append(out -> {
+					int start = out.begin();
+					out.ensure(9).buffer.putLong(id).put(OK);
+					handler.result.write(out, result);
+					out.end(start);
+				});
+			} catch (Throwable e) {
+				return connection.out.append(out -> encodeError(out, id, e));
+			}
+		}
+
+		private static void encodeError(Output out, long id, Throwable error) {
+			byte[] bytes;
+			try {
+				bytes = serialize(error);
+			} catch (IllegalArgumentException e) {
+				bytes = serialize(new RemoteException(error.toString()));
+			}
+			int start = out.begin();
+			out.ensure(9).buffer.putLong(id).put(ERROR);
+			out.putBytes(bytes);
+			out.end(start);
+		}
+	}
+
+	/**
+	 * 客户端：一个连接，任意多个线程并发调用
+	 */
+	public static class Client implements Closeable {
+
+		/**
+		 * 客户端的一个方法
+		 */
+		static final class Stub {
+			final int id;
+			final Codec[] parameters;
+			final Codec result;
+			final Class<?>[] exceptions;
+
+			Stub(Class<?> type, Method method) {
+				this.id = methodId(type, method);
+				Class<?>[] types = method.getParameterTypes();
+				this.parameters = new Codec[types.length];
+				for (int i = 0; i < types.length; i++) {
+					parameters[i] = codec(types[i]);
+				}
+				this.result = codec(method.getReturnType());
+				this.exceptions = method.getExceptionTypes();
+			}
+		}
+
+		/**
+		 * 一个在途的调用
+		 */
+		static final class Call extends CompletableFuture<Object> {
+			final Stub stub;
+
+			Call(Stub stub) {
+				this.stub = stub;
+			}
+		}
+
+		private final SocketChannel channel;
+		private final Selector selector;
+		private final Outbound out;
+		private final Inbound in = new Inbound();
+		private final Map<Long, Call> calls = new ConcurrentHashMap<>();
+		private final AtomicLong ids = new AtomicLong();
+		private final Thread thread;
+		private volatile boolean running = true;
+
+		public Client(InetSocketAddress address) throws IOException {
+			this.channel = SocketChannel.open(address);
+			try {
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				channel.configureBlocking(false);
+				this.selector = Selector.open();
+				this.out = new Outbound(channel, false);
+				out.key = channel.register(selector, SelectionKey.OP_READ);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			this.thread = new Thread(this::loop, "rpc-client");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * 实现type的动态代理，可在多个线程中共享
+		 */
+		@SuppressWarnings("unchecked")
+		public <T extends Remote> T proxy(Class<T> type) {
+			Map<Method, Stub> stubs = new HashMap<>();
+			for (Method method : type.getMethods()) {
+				stubs.put(method, new Stub(type, method));
+			}
+			return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+				Stub stub = stubs.get(method);
+				if (stub == null) {
+					switch (method.getName()) {
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						return "BinaryRpc[" + type.getName() + "@" + channel.getRemoteAddress() + "]";
+					}
+				}
+				return invoke(stub, args == null ? new Object[0] : args);
+			});
+		}
+
+		/**
+		 * 在途的调用数
+		 */
+		public int inFlight() {
+			return calls.size();
+		}
+
+		@Override
+		public void close() throws IOException {
+			running = false;
+			selector.wakeup();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private Object invoke(Stub stub, Object[] args) throws Throwable {
+			if (!running) {
+				throw new RemoteException("连接已关闭");
+			}
+			long id = ids.incrementAndGet();
+			Call call = new Call(stub);
+			calls.put(id, call);
+			// 读线程退出时先置running = false再让calls中的调用失败：加入后再检查一次，避免加入晚于清理而永远等待
+			if (!running) {
+				calls.remove(id);
+				throw new RemoteException("连接已关闭");
+			}
+			try {
+				if (out.append(o -> {
+					int start = o.begin();
+					o.ensure(12).buffer.putLong(id).putInt(stub.id);
+					for (int i = 0; i < args.length; i++) {
+						stub.parameters[i].write(o, args[i]);
+					}
+					o.end(start);
+				})) {
+					out.flush();
+				}
+			} catch (IOException e) {
+				calls.remove(id);
+				throw new RemoteException("发送失败", e);
+			} catch (RuntimeException e) {
+				// 参数无法编码（如无法序列化）：append()已丢弃该帧，调用没有发出
+				calls.remove(id);
+				throw e;
+			}
+			try {
+				return call.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException || cause instanceof Error) {
+					throw cause;
+				}
+				for (Class<?> declared : stub.exceptions) {
+					if (declared.isInstance(cause)) {
+						throw cause;
+					}
+				}
+				throw new RemoteException("远程调用失败", cause);
+			}
+		}
+
+		private void loop() {
+			Throwable cause = null;
+			try {
+				while (running) {
+					selector.select();
+					for (SelectionKey key : selector.selectedKeys()) {
+						if (key.isValid() && key.isReadable()) {
+							read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							out.writable();
+						}
+					}
+					selector.selectedKeys().clear();
+				}
+			} catch (IOException | RuntimeException e) {
+				cause = e;
+			} finally {
+				running = false;
+				try {
+					channel.close();
+					selector.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				// 连接关闭时全部在途的调用失败
+				RemoteException closed = new RemoteException("连接已关闭", cause == null ? new ConnectException() : cause);
+				for (Call call : calls.values()) {
+					call.completeExceptionally(closed);
+				}
+				calls.clear();
+			}
+		}
+
+		private void read() throws IOException {
+			if (in.read(channel) == -1) {
+				throw new ConnectException("服务端关闭了连接");
+			}
+			ByteBuffer frame;
+			while ((frame = in.next()) != null) {
+				if (frame.remaining() < 9) {
+					throw new IOException("响应帧长度" + frame.remaining());
+				}
+				Call call = calls.remove(frame.getLong());
+				byte status = frame.get();
+				if (call != null) {
+					try {
+						if (status == OK) {
+							call.complete(call.stub.result.read(frame));
+						} else {
+							Object error = SERIALIZED.read(frame);
+							call.completeExceptionally(error instanceof Throwable ? (Throwable) error : new RemoteException(String.valueOf(error)));
+						}
+					} catch (IOException | RuntimeException e) {
+						call.completeExceptionally(new RemoteException("结果解码失败", e));
+					}
+				}
+			}
+			in.compact();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.rmi;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * 一批运算，Remote_.compute()的参数：一次远程调用完成多个运算
+ *
+ * 	按列保存：运算符、左操作数、右操作数各一个基本类型数组，序列化时每列是一个数组，不为每个运算创建和序列化对象
+ * 	不是线程安全的，由一个线程填充后传给compute()
+ *
+ * @author nerv
+ *
+ */
+public class ComputeBatch implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final byte ADD = 0, SUBTRACT = 1;
+
+	private byte[] operators;
+	private double[] left;
+	private double[] right;
+	private int size;
+
+	public ComputeBatch() {
+		this(16);
+	}
+
+	public ComputeBatch(int capacity) {
+		operators = new byte[Math.max(1, capacity)];
+		left = new double[operators.length];
+		right = new double[operators.length];
+	}
+
+	public ComputeBatch add(double a, double b) {
+		return append(ADD, a, b);
+	}
+
+	public ComputeBatch subtract(double a, double b) {
+		return append(SUBTRACT, a, b);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 按顺序计算全部运算，服务端调用
+	 */
+	public double[] compute() {
+		double[] results = new double[size];
+		for (int i = 0; i < size; i++) {
+			switch (operators[i]) {
+			case ADD:
+				results[i] = left[i] + right[i];
+				break;
+			case SUBTRACT:
+				results[i] = left[i] - right[i];
+				break;
+			default:
+				throw new IllegalArgumentException("未知的运算符" + operators[i]);
+			}
+		}
+		return results;
+	}
+
+	private ComputeBatch append(byte operator, double a, double b) {
+		if (size == operators.length) {
+			int capacity = size << 1;
+			operators = Arrays.copyOf(operators, capacity);
+			left = Arrays.copyOf(left, capacity);
+			right = Arrays.copyOf(right, capacity);
+		}
+		operators[size] = operator;
+		left[size] = a;
+		right[size] = b;
+		size++;
+		return this;
+	}
+
+	/**
+	 * 序列化前去掉未使用的容量
+	 */
+	private Object writeReplace() {
+		if (size == operators.length) {
+			return this;
+		}
+		ComputeBatch trimmed = new ComputeBatch(0);
+		trimmed.operators = Arrays.copyOf(operators, size);
+		trimmed.left = Arrays.copyOf(left, size);
+		trimmed.right = Arrays.copyOf(right, size);
+		trimmed.size = size;
+		return trimmed;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (size < 0 || operators == null || left == null || right == null || operators.length < size || left.length < size
+				|| right.length < size) {
+			throw new InvalidObjectException("size=" + size);
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package com.rmi;
+
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.java.util.LatencyHistogram;
+
+/**
+ * InstrumentedRemote：远程对象的统计包装，按方法记录调用次数、延迟分布、正在执行的调用数和异常次数，通过JMX查看
+ *
+ * 	RemoteImpl原来在每次调用中numberOfComputations++（多个RMI线程并发调用时计数不准）并打印，打印本身成为瓶颈
+ * 	包装：动态代理实现目标对象的全部远程接口，导出代理而不是目标对象，目标对象不需要修改
+ * 		目标对象是UnicastRemoteObject的子类时已在构造时导出，可以unexportObject()后只通过代理访问
+ * 		Object的方法（equals/hashCode/toString）不统计，按代理自身处理
+ * 	统计：每个远程方法一组计数，在创建时建好，调用时只查一次不可变的HashMap，不加锁
+ * 		calls/errors/inFlight为LongAdder，latency为LatencyHistogram（纳秒），并发调用时没有共享的竞争点
+ * 		每次调用的额外开销为两次System.nanoTime()和几次LongAdder/AtomicLongArray自增，远小于一次RMI往返，可以在生产环境中常开
+ * 	JMX：register()注册为MXBean，com.rmi:type=InstrumentedRemote,name=名称；getMethods()每次读取时生成快照
+ *
+ * @author nerv
+ *
+ */
+public class InstrumentedRemote implements InvocationHandler, InstrumentedRemoteMXBean {
+
+	/**
+	 * 一个方法的统计快照，延迟单位为微秒
+	 */
+	public static final class MethodMetrics {
+		private final long calls;
+		private final long errors;
+		private final long inFlight;
+		private final double mean;
+		private final double p50;
+		private final double p99;
+		private final double p999;
+		private final double max;
+
+		@ConstructorProperties({"calls", "errors", "inFlight", "mean", "p50", "p99", "p999", "max"})
+		public MethodMetrics(long calls, long errors, long inFlight, double mean, double p50, double p99, double p999, double max) {
+			this.calls = calls;
+			this.errors = errors;
+			this.inFlight = inFlight;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.max = max;
+		}
+
+		public long getCalls() {
+			return calls;
+		}
+
+		public long getErrors() {
+			return errors;
+		}
+
+		public long getInFlight() {
+			return inFlight;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getP50() {
+			return p50;
+		}
+
+		public double getP99() {
+			return p99;
+		}
+
+		public double getP999() {
+			return p999;
+		}
+
+		public double getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("调用%d次，异常%d次，执行中%d，延迟(us) 平均%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f", calls, errors,
+					inFlight, mean, p50, p99, p999, max);
+		}
+	}
+
+	/**
+	 * 一个方法的计数
+	 */
+	static final class Counters {
+		final String signature;
+		final LongAdder calls = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder inFlight = new LongAdder();
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		Counters(String signature) {
+			this.signature = signature;
+		}
+
+		MethodMetrics snapshot() {
+			return new MethodMetrics(calls.sum(), errors.sum(), inFlight.sum(), latency.mean() / 1000,
+					latency.valueAtPercentile(50) / 1000.0, latency.valueAtPercentile(99) / 1000.0,
+					latency.valueAtPercentile(99.9) / 1000.0, latency.max() / 1000.0);
+		}
+	}
+
+	private final Remote target;
+	private final Remote proxy;
+	/** 创建后不再修改 */
+	private final Map<Method, Counters> counters;
+	private ObjectName name;
+
+	private InstrumentedRemote(Remote target) {
+		Set<Class<?>> interfaces = new LinkedHashSet<>();
+		for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+			for (Class<?> i : type.getInterfaces()) {
+				if (Remote.class.isAssignableFrom(i)) {
+					interfaces.add(i);
+				}
+			}
+		}
+		Map<Method, Counters> map = new HashMap<>();
+		for (Class<?> i : interfaces) {
+			for (Method method : i.getMethods()) {
+				if (method.getDeclaringClass() != Object.class) {
+					map.put(method, new Counters(method.getName() + Arrays.stream(method.getParameterTypes())
+							.map(Class::getSimpleName).collect(Collectors.joining(",", "(", ")"))));
+				}
+			}
+		}
+		this.target = target;
+		this.counters = map;
+		this.proxy = (Remote) Proxy.newProxyInstance(target.getClass().getClassLoader(), interfaces.toArray(new Class<?>[0]), this);
+	}
+
+	/**
+	 * 包装target，尚未导出
+	 */
+	public static InstrumentedRemote wrap(Remote target) {
+		return new InstrumentedRemote(target);
+	}
+
+	/**
+	 * 实现target全部远程接口的代理，调用都经过统计
+	 */
+	public Remote proxy() {
+		return proxy;
+	}
+
+	/**
+	 * 导出代理
+	 * @param port	0表示匿名端口
+	 * @return 存根，绑定到Registry或传给客户端
+	 */
+	public Remote export(int port) throws RemoteException {
+		return UnicastRemoteObject.exportObject(proxy, port);
+	}
+
+	/**
+	 * 用指定的套接字工厂导出代理，如TunedSocketFactory
+	 */
+	public Remote export(int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException {
+		return UnicastRemoteObject.exportObject(proxy, port, csf, ssf);
+	}
+
+	/**
+	 * 取消导出代理并注销MBean
+	 */
+	public void unexport() throws NoSuchObjectException {
+		try {
+			if (name != null) {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+				name = null;
+			}
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		UnicastRemoteObject.unexportObject(proxy, true);
+	}
+
+	/**
+	 * 注册到平台MBeanServer
+	 */
+	public ObjectName register(String name) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		this.name = new ObjectName("com.rmi:type=InstrumentedRemote,name=" + ObjectName.quote(name));
+		server.registerMBean(this, this.name);
+		return this.name;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		Counters c = counters.get(method);
+		if (c == null) {
+			return invokeObjectMethod(proxy, method, args);
+		}
+		c.inFlight.increment();
+		long begin = System.nanoTime();
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			c.errors.increment();
+			throw e.getCause();
+		} finally {
+			c.latency.record(System.nanoTime() - begin);
+			c.calls.increment();
+			c.inFlight.decrement();
+		}
+	}
+
+	/**
+	 * equals/hashCode/toString按代理自身处理，不转发给目标对象
+	 */
+	private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			return "Instrumented[" + target + "]";
+		default:
+			throw new UnsupportedOperationException(method.toString());
+		}
+	}
+
+	@Override
+	public Map<String, MethodMetrics> getMethods() {
+		Map<String, MethodMetrics> metrics = new TreeMap<>();
+		for (Counters c : counters.values()) {
+			metrics.put(c.signature, c.snapshot());
+		}
+		return Collections.unmodifiableMap(metrics);
+	}
+
+	@Override
+	public long getCalls() {
+		return counters.values().stream().mapToLong(c -> c.calls.sum()).sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return counters.values().stream().mapToLong(c -> c.errors.sum()).sum();
+	}
+
+	@Override
+	public long getInFlight() {
+		return counters.values().stream().mapToLong(c -> c.inFlight.sum()).sum();
+	}
+
+	@Override
+	public void reset() {
+		for (Counters c : counters.values()) {
+			c.calls.reset();
+			c.errors.reset();
+			c.latency.reset();
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package com.rmi;
+
+import java.util.Map;
+
+/**
+ * InstrumentedRemote的JMX接口，jconsole中位于com.rmi/InstrumentedRemote/名称
+ *
+ * @author nerv
+ *
+ */
+public interface InstrumentedRemoteMXBean {
+
+	/**
+	 * 各远程方法的统计，键为方法签名，如add(double,double)
+	 */
+	Map<String, InstrumentedRemote.MethodMetrics> getMethods();
+
+	/**
+	 * 全部方法的调用次数
+	 */
+	long getCalls();
+
+	/**
+	 * 全部方法抛出异常的次数
+	 */
+	long getErrors();
+
+	/**
+	 * 正在执行的调用数
+	 */
+	long getInFlight();
+
+	/**
+	 * 清零全部统计（不影响正在执行的调用数）
+	 */
+	void reset();
+}
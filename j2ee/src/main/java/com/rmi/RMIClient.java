@@ -1,7 +1,23 @@
 package com.rmi;
 
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry; 
+import java.rmi.server.RemoteObject;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
 /**
  * RMI客户端，在Linux运行时需要接口Remote_（可以新建一个也可以将服务端的Remote_导出为jar并在客户端引入）
  * @author Nerv
@@ -21,5 +37,241 @@ public class RMIClient {
 		} catch(Exception e) { 
 			e.printStackTrace(); 
 		} 
-	} 
-}
\ No newline at end of file
+	}
+	
+	/**
+	 * 逐个调用与批量调用的对比：同一进程内导出RemoteImpl，经回环地址上的RMI调用（与远程调用相同的往返和序列化）
+	 * 		逐个：每个运算一次add()，单线程与threads个线程并发各一次
+	 * 		批量：每batch个运算一次compute()
+	 * 		合并：threads个线程并发调用BatchingCompute.add()，最后等待全部future
+	 * 		-Dbench.ops默认100000；结果之和应为ops * (ops + 1) / 2
+	 */
+	@Test
+	public void batchBenchmark() throws Exception {
+		int ops = Integer.getInteger("bench.ops", 100000), batch = 1000, threads = 8;
+		RemoteImpl impl = new RemoteImpl(false);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Remote_ remote = (Remote_) RemoteObject.toStub(impl);
+			for (int round = 0; round < 2; round++) {
+				long begin = System.nanoTime();
+				double sum = 0;
+				for (int i = 0; i < ops; i++) {
+					sum += remote.add(i, 1);
+				}
+				report("逐个调用add()", ops, begin, sum);
+				
+				begin = System.nanoTime();
+				DoubleAdder total = new DoubleAdder();
+				List<Future<?>> tasks = new ArrayList<>();
+				for (int t = 0; t < threads; t++) {
+					int from = t;
+					tasks.add(executor.submit(() -> {
+						for (int i = from; i < ops; i += threads) {
+							total.add(remote.add(i, 1));
+						}
+						return null;
+					}));
+				}
+				for (Future<?> task : tasks) {
+					task.get();
+				}
+				report("逐个调用add()，" + threads + "个线程", ops, begin, total.sum());
+				
+				begin = System.nanoTime();
+				sum = 0;
+				for (int i = 0; i < ops; i += batch) {
+					ComputeBatch operations = new ComputeBatch(batch);
+					for (int j = i; j < Math.min(ops, i + batch); j++) {
+						operations.add(j, 1);
+					}
+					for (double result : remote.compute(operations)) {
+						sum += result;
+					}
+				}
+				report("compute()每批" + batch + "个", ops, begin, sum);
+				
+				try (BatchingCompute compute = new BatchingCompute(remote)) {
+					begin = System.nanoTime();
+					DoubleAdder merged = new DoubleAdder();
+					tasks.clear();
+					for (int t = 0; t < threads; t++) {
+						int from = t;
+						tasks.add(executor.submit(() -> {
+							List<CompletableFuture<Double>> futures = new ArrayList<>();
+							for (int i = from; i < ops; i += threads) {
+								futures.add(compute.add(i, 1));
+							}
+							for (CompletableFuture<Double> future : futures) {
+								merged.add(future.join());
+							}
+							return null;
+						}));
+					}
+					for (Future<?> task : tasks) {
+						task.get();
+					}
+					report("BatchingCompute，" + threads + "个线程（" + compute.batches() + "批）", ops, begin, merged.sum());
+				}
+			}
+		} finally {
+			executor.shutdown();
+			UnicastRemoteObject.unexportObject(impl, true);
+		}
+	}
+	
+	/**
+	 * InstrumentedRemote的开销：同一个RemoteImpl直接导出与经统计代理导出，threads个线程并发调用add()
+	 * 		两者交替运行几轮，差别应在测量误差之内；之后通过MBeanServer读取统计，与jconsole中看到的相同
+	 * 		-Dbench.ops默认100000
+	 */
+	@Test
+	public void instrumentationOverhead() throws Exception {
+		int ops = Integer.getInteger("bench.ops", 100000), threads = 4;
+		RemoteImpl impl = new RemoteImpl(false);
+		InstrumentedRemote instrumented = InstrumentedRemote.wrap(impl);
+		ObjectName name = instrumented.register("Compute");
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Remote_ direct = (Remote_) RemoteObject.toStub(impl);
+			Remote_ wrapped = (Remote_) instrumented.export(0);
+			for (int round = 0; round < 3; round++) {
+				for (Remote_ remote : new Remote_[] {direct, wrapped}) {
+					long begin = System.nanoTime();
+					DoubleAdder total = new DoubleAdder();
+					List<Future<?>> tasks = new ArrayList<>();
+					for (int t = 0; t < threads; t++) {
+						int from = t;
+						tasks.add(executor.submit(() -> {
+							for (int i = from; i < ops; i += threads) {
+								total.add(remote.add(i, 1));
+							}
+							return null;
+						}));
+					}
+					for (Future<?> task : tasks) {
+						task.get();
+					}
+					report(remote == direct ? "直接导出" : "InstrumentedRemote", ops, begin, total.sum());
+				}
+			}
+			System.out.println(name + "：调用" + ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Calls") + "次");
+			for (Map.Entry<String, InstrumentedRemote.MethodMetrics> entry : instrumented.getMethods().entrySet()) {
+				System.out.println("	" + entry.getKey() + "：" + entry.getValue());
+			}
+		} finally {
+			executor.shutdown();
+			instrumented.unexport();
+			UnicastRemoteObject.unexportObject(impl, true);
+		}
+	}
+	
+	/**
+	 * BinaryRpc与RMI对比：同一个RemoteImpl同时由RMI和BinaryRpc导出，交替调用add()/subtract()
+	 * 		threads个线程并发调用：RMI为每个并发调用建立一个连接；BinaryRpc只有一个连接，按关联号匹配响应
+	 * 		BinaryRpc服务端在IO线程中执行（方法只是一次加减），同一次读取中的多个请求的响应合并写出
+	 * 		最后用compute()验证退回Java序列化的参数类型（ComputeBatch）
+	 * 		-Dbench.ops默认100000
+	 */
+	@Test
+	public void binaryRpc() throws Exception {
+		int ops = Integer.getInteger("bench.ops", 100000);
+		RemoteImpl impl = new RemoteImpl(false);
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try (BinaryRpc.Server server = new BinaryRpc.Server(new InetSocketAddress("127.0.0.1", 0), null).export(Remote_.class, impl).start();
+				BinaryRpc.Client client = new BinaryRpc.Client(server.getLocalAddress())) {
+			Remote_ rmi = (Remote_) RemoteObject.toStub(impl);
+			Remote_ rpc = client.proxy(Remote_.class);
+			for (int round = 0; round < 2; round++) {
+				for (int threads : new int[] {1, 16}) {
+					for (Remote_ remote : new Remote_[] {rmi, rpc}) {
+						long begin = System.nanoTime();
+						DoubleAdder total = new DoubleAdder();
+						List<Future<?>> tasks = new ArrayList<>();
+						for (int t = 0; t < threads; t++) {
+							int from = t;
+							tasks.add(executor.submit(() -> {
+								for (int i = from; i < ops; i += threads) {
+									total.add(i % 2 == 0 ? remote.add(i, 1) : remote.subtract(i, -1));
+								}
+								return null;
+							}));
+						}
+						for (Future<?> task : tasks) {
+							task.get();
+						}
+						report((remote == rmi ? "RMI，" : "BinaryRpc，") + threads + "个线程", ops, begin, total.sum());
+					}
+				}
+			}
+			ComputeBatch batch = new ComputeBatch();
+			for (int i = 0; i < 1000; i++) {
+				batch.add(i, 1);
+			}
+			double sum = 0;
+			for (double result : rpc.compute(batch)) {
+				sum += result;
+			}
+			System.out.println("BinaryRpc compute()：" + (sum == 1000 * 1001 / 2 ? "正确" : "结果错误：" + sum));
+		} finally {
+			executor.shutdown();
+			UnicastRemoteObject.unexportObject(impl, true);
+		}
+	}
+	
+	/**
+	 * TunedSocketFactory：大参数的compute()调用，默认套接字、TunedSocketFactory、TunedSocketFactory加压缩依次导出同一实现
+	 * 		每次调用的参数约为size * 17字节的ComputeBatch，结果为size * 8字节的double[]
+	 * 		回环地址上带宽不是瓶颈，压缩主要减少传输的字节数；带宽受限的链路上按压缩比估算收益
+	 * 		-Dbench.size默认200000，-Dbench.calls默认20
+	 */
+	@Test
+	public void socketFactory() throws Exception {
+		int size = Integer.getInteger("bench.size", 200000), calls = Integer.getInteger("bench.calls", 20);
+		ComputeBatch batch = new ComputeBatch(size);
+		for (int i = 0; i < size; i++) {
+			batch.add(i, 1);
+		}
+		TunedSocketFactory tuned = new TunedSocketFactory();
+		TunedSocketFactory compressed = new TunedSocketFactory(true, 256 << 10, 64 << 10, 1024);
+		List<RemoteImpl> impls = new ArrayList<>();
+		try {
+			impls.add(new RemoteImpl(false));
+			impls.add(new RemoteImpl(false, 0, tuned, tuned));
+			impls.add(new RemoteImpl(false, 0, compressed, compressed));
+			String[] names = {"默认套接字", "TunedSocketFactory", "TunedSocketFactory+压缩"};
+			long[] costs = new long[impls.size()];
+			for (int round = 0; round < 2; round++) {
+				for (int k = 0; k < impls.size(); k++) {
+					Remote_ remote = (Remote_) RemoteObject.toStub(impls.get(k));
+					long begin = System.nanoTime();
+					double sum = 0;
+					for (int c = 0; c < calls; c++) {
+						for (double result : remote.compute(batch)) {
+							sum += result;
+						}
+					}
+					long cost = costs[k] = System.nanoTime() - begin;
+					System.out.printf("%-28s 每次%6.2fms %8.1fMB/s(参数) %s%n", names[k], cost / 1e6 / calls,
+							(double) size * 17 * calls / (cost / 1e9) / (1 << 20),
+							sum == (double) size * (size + 1) / 2 * calls ? "" : "结果错误：" + sum);
+				}
+			}
+			System.out.printf("压缩：%dKB -> %dKB（%.1f%%）%n", compressed.uncompressedBytes() >> 10, compressed.compressedBytes() >> 10,
+					compressed.compressedBytes() * 100.0 / Math.max(1, compressed.uncompressedBytes()));
+			// 压缩多花的时间 = 少传的字节 / 带宽时持平，带宽更低时压缩更快（按最后一轮计算）
+			double saved = (double) (compressed.uncompressedBytes() - compressed.compressedBytes()) / 2;
+			System.out.printf("链路带宽低于约%.1fMB/s时压缩更快%n", saved / Math.max(1, costs[2] - costs[1]) * 1e9 / (1 << 20));
+		} finally {
+			for (RemoteImpl impl : impls) {
+				UnicastRemoteObject.unexportObject(impl, true);
+			}
+		}
+	}
+	
+	private static void report(String name, int ops, long begin, double sum) {
+		long cost = System.nanoTime() - begin;
+		System.out.printf("%-32s %6dms %10.0f个/秒 %s%n", name, cost / 1000000, ops * 1e9 / cost,
+				sum == (double) ops * (ops + 1) / 2 ? "" : "结果错误：" + sum);
+	}
+}
@@ -18,14 +18,22 @@ public class RMIServer {
 			 // 远程对象是在远程服务上创建的，你无法确切地知道远程服务器上的对象的名称， 
 			 // 但是,将远程对象注册到RMI Registry之后, 
 			 // 客户端就可以通过RMI Registry请求到该远程服务对象的stub，利用stub代理就可以访问远程服务对象了。 
-			 RemoteImpl remoteObject = new RemoteImpl();
+			 // 不在每次调用时打印，调用次数、延迟等由InstrumentedRemote统计，通过JMX查看（jconsole：com.rmi/InstrumentedRemote/"Compute"）
+			 RemoteImpl remoteObject = new RemoteImpl(false);
+			 // RemoteImpl在构造时已导出，改为只导出统计代理
+			 UnicastRemoteObject.unexportObject(remoteObject, true);
+			 InstrumentedRemote instrumented = InstrumentedRemote.wrap(remoteObject);
+			 instrumented.register("Compute");
 			 // 创建并导出接受指定端口请求的本地主机上的 Registry 实例
 			 LocateRegistry.createRegistry(1099);
 			 Registry registry = LocateRegistry.getRegistry();
-			 registry.bind("Compute", remoteObject); 
+			 // 默认套接字不能设置TCP_NODELAY、缓冲区大小，也不压缩；客户端工厂随存根传给客户端
+			 // 带宽受限的链路上可以压缩大参数：new TunedSocketFactory(true, 256 << 10, 64 << 10, 1024)
+			 TunedSocketFactory sockets = new TunedSocketFactory();
+			 registry.bind("Compute", instrumented.export(0, sockets, sockets)); 
 			 System.out.println("Server ready");
 			 // 如果不想再让该对象被继续调用，使用下面一行
-			 // UnicastRemoteObject.unexportObject(remoteObject, false); 
+			 // instrumented.unexport(); 
 		 } catch (Exception e) {
 			 e.printStackTrace();
 		 }
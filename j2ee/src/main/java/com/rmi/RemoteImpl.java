@@ -1,7 +1,10 @@
 package com.rmi;
 
 import java.rmi.RemoteException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.atomic.LongAdder;
 /**
  * 服务器端实现远程接口
  * 必须继承UnicastRemoteObject，以允许JVM创建远程的存根/代理。
@@ -11,25 +14,55 @@ import java.rmi.server.UnicastRemoteObject;
  */
 public class RemoteImpl extends UnicastRemoteObject implements Remote_{
 
-	private int numberOfComputations; 
+	// RMI在多个线程中并发调用远程对象的方法，计数需要线程安全
+	private final LongAdder numberOfComputations = new LongAdder(); 
+	/** 每次运算打印计数，基准测试时关闭 */
+	private final boolean verbose;
 	
 	protected RemoteImpl() throws RemoteException { 
-		numberOfComputations = 0; 
+		this(true);
+	} 
+	
+	protected RemoteImpl(boolean verbose) throws RemoteException { 
+		this.verbose = verbose;
+	} 
+	
+	/**
+	 * 用指定的套接字工厂导出，如TunedSocketFactory
+	 */
+	protected RemoteImpl(boolean verbose, int port, RMIClientSocketFactory csf, RMIServerSocketFactory ssf) throws RemoteException { 
+		super(port, csf, ssf);
+		this.verbose = verbose;
 	} 
 	
 	@Override 
 	public double add(double a, double b) throws RemoteException {
-		numberOfComputations++; 
-		System.out.println("Number of computations performed so far = " + numberOfComputations); 
+		computed(1);
 		return (a+b); 
 	} 
 	
 	@Override 
 	public double subtract(double a, double b) throws RemoteException {
-		numberOfComputations++; 
-		System.out.println("Number of computations performed so far = " + numberOfComputations); 
+		computed(1);
 		return (a-b); 
 	}
 	
+	@Override
+	public double[] compute(ComputeBatch batch) throws RemoteException {
+		double[] results = batch.compute();
+		computed(results.length);
+		return results;
+	}
+	
+	public long computations() {
+		return numberOfComputations.sum();
+	}
+	
+	private void computed(int n) {
+		numberOfComputations.add(n);
+		if (verbose) {
+			System.out.println("Number of computations performed so far = " + numberOfComputations.sum()); 
+		}
+	}
 
 }
@@ -15,4 +15,10 @@ public interface Remote_ extends Remote {
 	 // 所有方法必须抛出RemoteException 
 	public double add(double a, double b) throws RemoteException; 
 	public double subtract(double a, double b) throws RemoteException; 
+	
+	/**
+	 * 批量运算：一次远程调用完成batch中的全部运算，按顺序返回结果
+	 * 		每次远程调用都有一次往返和参数/结果的序列化，大量小运算时应合并为一批，或使用BatchingCompute
+	 */
+	public double[] compute(ComputeBatch batch) throws RemoteException;
 }
@@ -0,0 +1,504 @@
+package com.rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.rmi.server.RMISocketFactory;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * TunedSocketFactory：RMI的客户端/服务端套接字工厂，设置TCP选项、大缓冲区的流，可选压缩
+ *
+ * 	RMIServer用UnicastRemoteObject.exportObject(obj, 0)导出时使用默认套接字，无法设置TCP_NODELAY、缓冲区大小，也不能压缩
+ * 	用法：同一个实例同时作为客户端和服务端工厂导出，exportObject(obj, port, factory, factory)
+ * 		客户端工厂随存根序列化到客户端，两端的配置（是否压缩、缓冲区大小）因此相同
+ * 		RMI按（主机，端口，客户端工厂）复用连接，equals()/hashCode()按配置比较
+ * 	套接字选项：TCP_NODELAY、SO_KEEPALIVE、SO_SNDBUF/SO_RCVBUF（服务端的SO_RCVBUF在bind()前设置，大于64K时才能协商窗口扩大）
+ * 	流：套接字的流只创建一次，包装为streamBuffer大小的BufferedInputStream/BufferedOutputStream
+ * 		RMI自身的缓冲区为8K，大参数的调用会分成很多次write()
+ * 	压缩（compressionThreshold >= 0时）：输出按块写出，每次flush()或缓冲区满时一块
+ * 		块：类型1字节 + 长度4字节 + 内容；压缩块另有4字节原始长度
+ * 		不小于compressionThreshold字节的块用Deflater（LZ77 + Huffman，BEST_SPEED）压缩，压缩后不变小则原样写出
+ * 		小块（RMI的ping、DGC、小参数的调用）原样写出，不付出压缩的CPU开销
+ * 		回环地址上带宽不是瓶颈，压缩通常更慢；带宽受限的链路上，可压缩的数据才有收益
+ * 		Deflater/Inflater持有本地内存：RMI只关闭套接字，所以在TunedSocket.close()中end()，不等finalize()
+ *
+ * @author nerv
+ *
+ */
+public class TunedSocketFactory extends RMISocketFactory implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/** 不压缩 */
+	public static final int NO_COMPRESSION = -1;
+	static final byte RAW = 0, DEFLATED = 1;
+	/** 块的最大长度，超过时认为数据损坏 */
+	static final int MAX_BLOCK = 64 << 20;
+
+	private final boolean tcpNoDelay;
+	private final int socketBuffer;
+	private final int streamBuffer;
+	private final int compressionThreshold;
+	// 统计只在本JVM中有效，客户端反序列化后重新计数
+	private transient LongAdder uncompressed = new LongAdder();
+	private transient LongAdder compressed = new LongAdder();
+
+	/**
+	 * TCP_NODELAY，256K套接字缓冲区，64K流缓冲区，不压缩
+	 */
+	public TunedSocketFactory() {
+		this(true, 256 << 10, 64 << 10, NO_COMPRESSION);
+	}
+
+	/**
+	 * @param socketBuffer			SO_SNDBUF/SO_RCVBUF，0表示系统默认
+	 * @param streamBuffer			流缓冲区大小，压缩时即块的最大长度
+	 * @param compressionThreshold	不小于此长度的块压缩，NO_COMPRESSION表示不压缩
+	 */
+	public TunedSocketFactory(boolean tcpNoDelay, int socketBuffer, int streamBuffer, int compressionThreshold) {
+		if (socketBuffer < 0 || streamBuffer <= 0 || compressionThreshold < NO_COMPRESSION) {
+			throw new IllegalArgumentException(
+					"socketBuffer=" + socketBuffer + "，streamBuffer=" + streamBuffer + "，compressionThreshold=" + compressionThreshold);
+		}
+		this.tcpNoDelay = tcpNoDelay;
+		this.socketBuffer = socketBuffer;
+		this.streamBuffer = streamBuffer;
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		Socket socket = new TunedSocket(this);
+		try {
+			configure(socket);
+			socket.connect(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return socket;
+	}
+
+	@Override
+	public ServerSocket createServerSocket(int port) throws IOException {
+		ServerSocket server = new TunedServerSocket(this);
+		try {
+			if (socketBuffer > 0) {
+				server.setReceiveBufferSize(socketBuffer);
+			}
+			server.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+		return server;
+	}
+
+	/**
+	 * 压缩前写出的字节数（本JVM中经过压缩块的数据）
+	 */
+	public long uncompressedBytes() {
+		return uncompressed.sum();
+	}
+
+	/**
+	 * 压缩块实际写出的字节数（含块头）
+	 */
+	public long compressedBytes() {
+		return compressed.sum();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof TunedSocketFactory)) {
+			return false;
+		}
+		TunedSocketFactory other = (TunedSocketFactory) obj;
+		return tcpNoDelay == other.tcpNoDelay && socketBuffer == other.socketBuffer && streamBuffer == other.streamBuffer
+				&& compressionThreshold == other.compressionThreshold;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((Boolean.hashCode(tcpNoDelay) * 31 + socketBuffer) * 31 + streamBuffer) * 31 + compressionThreshold;
+	}
+
+	@Override
+	public String toString() {
+		return "TunedSocketFactory[tcpNoDelay=" + tcpNoDelay + "，socketBuffer=" + socketBuffer + "，streamBuffer=" + streamBuffer
+				+ "，compressionThreshold=" + compressionThreshold + "]";
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		uncompressed = new LongAdder();
+		compressed = new LongAdder();
+	}
+
+	void configure(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		socket.setKeepAlive(true);
+		if (socketBuffer > 0) {
+			socket.setSendBufferSize(socketBuffer);
+			socket.setReceiveBufferSize(socketBuffer);
+		}
+	}
+
+	InputStream wrap(InputStream in) {
+		return compressionThreshold == NO_COMPRESSION ? new BufferedInputStream(in, streamBuffer)
+				: new BlockInputStream(new BufferedInputStream(in, streamBuffer));
+	}
+
+	OutputStream wrap(OutputStream out) {
+		return compressionThreshold == NO_COMPRESSION ? new BufferedOutputStream(out, streamBuffer)
+				: new BlockOutputStream(out, streamBuffer, compressionThreshold, this);
+	}
+
+	/**
+	 * 流只创建一次，RMI可能多次调用getInputStream()/getOutputStream()
+	 */
+	static final class TunedSocket extends Socket {
+		private final TunedSocketFactory factory;
+		private InputStream in;
+		private OutputStream out;
+
+		TunedSocket(TunedSocketFactory factory) {
+			this.factory = factory;
+		}
+
+		@Override
+		public synchronized InputStream getInputStream() throws IOException {
+			if (in == null) {
+				in = factory.wrap(super.getInputStream());
+			}
+			return in;
+		}
+
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (out == null) {
+				out = factory.wrap(super.getOutputStream());
+			}
+			return out;
+		}
+
+		/**
+		 * RMI关闭的是套接字而不是其流：在这里释放Deflater/Inflater的本地内存，不等finalize()
+		 * 		不关闭流本身，关闭BlockOutputStream会先flush()，连接已断开时没有意义
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (in instanceof BlockInputStream) {
+					((BlockInputStream) in).end();
+				}
+				if (out instanceof BlockOutputStream) {
+					((BlockOutputStream) out).end();
+				}
+			}
+		}
+	}
+
+	/**
+	 * accept()返回TunedSocket并设置选项
+	 */
+	static final class TunedServerSocket extends ServerSocket {
+		private final TunedSocketFactory factory;
+
+		TunedServerSocket(TunedSocketFactory factory) throws IOException {
+			this.factory = factory;
+		}
+
+		@Override
+		public Socket accept() throws IOException {
+			if (isClosed()) {
+				throw new SocketException("Socket is closed");
+			}
+			Socket socket = new TunedSocket(factory);
+			try {
+				implAccept(socket);
+				factory.configure(socket);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			return socket;
+		}
+	}
+
+	/**
+	 * 按块写出，不小于threshold的块压缩
+	 */
+	static final class BlockOutputStream extends FilterOutputStream {
+		/** 原始块头：类型 + 长度 */
+		private static final int RAW_HEADER = 5;
+		/** 压缩块头：类型 + 压缩后长度 + 原始长度 */
+		private static final int DEFLATED_HEADER = 9;
+
+		/** [DEFLATED_HEADER字节预留][数据]，原始块的块头直接写在数据前面，一次write()写出 */
+		private final byte[] buffer;
+		private final byte[] deflated;
+		private final int threshold;
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final TunedSocketFactory factory;
+		private int count;
+		/** deflater已end()，由this锁保护：套接字可能在其它线程中关闭 */
+		private boolean ended;
+
+		BlockOutputStream(OutputStream out, int size, int threshold, TunedSocketFactory factory) {
+			super(out);
+			this.buffer = new byte[DEFLATED_HEADER + size];
+			this.deflated = new byte[DEFLATED_HEADER + size];
+			this.threshold = threshold;
+			this.factory = factory;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (DEFLATED_HEADER + count == buffer.length) {
+				writeBlock();
+			}
+			buffer[DEFLATED_HEADER + count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (DEFLATED_HEADER + count == buffer.length) {
+					writeBlock();
+				}
+				int n = Math.min(len, buffer.length - DEFLATED_HEADER - count);
+				System.arraycopy(b, off, buffer, DEFLATED_HEADER + count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writeBlock();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				end();
+			}
+		}
+
+		synchronized void end() {
+			if (!ended) {
+				ended = true;
+				deflater.end();
+			}
+		}
+
+		/**
+		 * 压缩buffer中的count字节到deflated
+		 * @return 压缩后的长度，不变小时返回-1
+		 */
+		private synchronized int deflate() throws IOException {
+			if (ended) {
+				throw new IOException("流已关闭");
+			}
+			deflater.reset();
+			deflater.setInput(buffer, DEFLATED_HEADER, count);
+			deflater.finish();
+			int n = deflater.deflate(deflated, DEFLATED_HEADER, count);
+			// 压缩后不变小（deflated放不下）则原样写出
+			return deflater.finished() && n < count ? n : -1;
+		}
+
+		private void writeBlock() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			if (count >= threshold) {
+				int n = deflate();
+				if (n >= 0) {
+					deflated[0] = DEFLATED;
+					putInt(deflated, 1, n);
+					putInt(deflated, 5, count);
+					out.write(deflated, 0, DEFLATED_HEADER + n);
+					factory.uncompressed.add(count);
+					factory.compressed.add(DEFLATED_HEADER + n);
+					count = 0;
+					return;
+				}
+			}
+			int start = DEFLATED_HEADER - RAW_HEADER;
+			buffer[start] = RAW;
+			putInt(buffer, start + 1, count);
+			out.write(buffer, start, RAW_HEADER + count);
+			count = 0;
+		}
+
+		private static void putInt(byte[] b, int off, int v) {
+			b[off] = (byte) (v >>> 24);
+			b[off + 1] = (byte) (v >>> 16);
+			b[off + 2] = (byte) (v >>> 8);
+			b[off + 3] = (byte) v;
+		}
+	}
+
+	/**
+	 * 读出BlockOutputStream写出的块
+	 */
+	static final class BlockInputStream extends FilterInputStream {
+		private final DataInputStream data;
+		private final Inflater inflater = new Inflater();
+		private byte[] block = new byte[0];
+		private byte[] deflated = new byte[0];
+		private int position, limit;
+		/** inflater已end()，由this锁保护 */
+		private boolean ended;
+
+		BlockInputStream(InputStream in) {
+			super(in);
+			this.data = new DataInputStream(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position == limit && !fill()) {
+				return -1;
+			}
+			return block[position++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position == limit && !fill()) {
+				return -1;
+			}
+			int n = Math.min(len, limit - position);
+			System.arraycopy(block, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return limit - position;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (position == limit && !fill()) {
+				return 0;
+			}
+			int skipped = (int) Math.min(n, limit - position);
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				end();
+			}
+		}
+
+		synchronized void end() {
+			if (!ended) {
+				ended = true;
+				inflater.end();
+			}
+		}
+
+		/**
+		 * 读入下一个非空块
+		 * @return false表示流已结束
+		 */
+		private boolean fill() throws IOException {
+			do {
+				int type = in.read();
+				if (type == -1) {
+					return false;
+				}
+				int length = data.readInt();
+				if (length < 0 || length > MAX_BLOCK) {
+					throw new IOException("块长度" + length);
+				}
+				if (type == RAW) {
+					block = ensure(block, length);
+					data.readFully(block, 0, length);
+					limit = length;
+				} else if (type == DEFLATED) {
+					int original = data.readInt();
+					if (original < 0 || original > MAX_BLOCK) {
+						throw new IOException("块长度" + original);
+					}
+					deflated = ensure(deflated, length);
+					data.readFully(deflated, 0, length);
+					block = ensure(block, original);
+					inflate(length, original);
+					limit = original;
+				} else {
+					throw new IOException("未知的块类型" + type);
+				}
+				position = 0;
+			} while (limit == 0);
+			return true;
+		}
+
+		private synchronized void inflate(int length, int original) throws IOException {
+			if (ended) {
+				throw new IOException("流已关闭");
+			}
+			inflater.reset();
+			inflater.setInput(deflated, 0, length);
+			try {
+				int n = 0;
+				while (n < original && !inflater.finished()) {
+					int inflated = inflater.inflate(block, n, original - n);
+					if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+						break;
+					}
+					n += inflated;
+				}
+				if (n != original) {
+					throw new EOFException("压缩块不完整：" + n + "/" + original);
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(e);
+			}
+		}
+
+		private static byte[] ensure(byte[] array, int length) {
+			return array.length >= length ? array : new byte[length];
+		}
+	}
+}